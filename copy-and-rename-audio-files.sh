@@ -1,12 +1,34 @@
 #!/bin/bash
 
+# Optional argument: copy the uncompressed samples of one note every N notes
+# (the others are played from the nearest one, see RootMapping.java)
+spacing=${1:-1}
+
 n=0
 
+# the uncompressed samples go to samples/, out of assets/: building packs them into
+# assets/samples.bank.wav (see build.xml), and only the bank is packaged
+mkdir -p samples
+
 for i in 3 4 5
 do
 	for j in C Db D Eb E F Gb G Ab A Bb B
 	do
 		cp "Converted audio files"/Piano.mf.$j$i.ogg res/raw/note$n.ogg
+		if [ $(($n % $spacing)) -eq 0 ]
+		then
+			# uncompressed copy for the low latency mixer
+			cp "Processed audio files"/Piano.mf.$j$i.wav samples/note$n.wav
+			# other dynamic layers, if they were processed too (played depending on
+			# the touch sensitivity preference, only with the low latency mixer)
+			for k in pp ff
+			do
+				if [ -f "Processed audio files"/Piano.$k.$j$i.wav ]
+				then
+					cp "Processed audio files"/Piano.$k.$j$i.wav samples/note$n.$k.wav
+				fi
+			done
+		fi
 		let n=$n+1
 	done
 done
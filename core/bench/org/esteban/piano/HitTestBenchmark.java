@@ -0,0 +1,87 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esteban.piano;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JMH benchmark of finding the key under a pointer (see KeyboardLayout), for the
+// layouts of the rows and octaves preferences on a 1280x800 screen, and of placing
+// the keys again (done when the size or the row order changes). The points are
+// random, over the keys and a bit beyond (see core/build.xml to run it).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+@State(Scope.Thread)
+public class HitTestBenchmark {
+	private static final float WIDTH = 1280.0f;
+	private static final float HEIGHT = 800.0f;
+	// octave bar and pedal, as in PianoLayout
+	private static final float BAR_HEIGHT = HEIGHT / 16;
+	private static final int POINTS = 1024;
+
+	@Param({"1", "2", "4"})
+	public int rows;
+
+	@Param({"1", "3"})
+	public int octavesPerRow;
+
+	private KeyboardLayout layout;
+	private float[] xs, ys;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		layout = new KeyboardLayout(rows, octavesPerRow);
+		layout.place(WIDTH, BAR_HEIGHT, HEIGHT - BAR_HEIGHT, false);
+		Random random = new Random(42);
+		xs = new float[POINTS];
+		ys = new float[POINTS];
+		for (int i = 0; i < POINTS; i++) {
+			xs[i] = random.nextFloat() * WIDTH * 1.05f;
+			ys[i] = random.nextFloat() * HEIGHT;
+		}
+		next = 0;
+	}
+
+	@Benchmark
+	public int keyAt() {
+		next = (next + 1) & (POINTS - 1);
+		return layout.keyAt(xs[next], ys[next]);
+	}
+
+	@Benchmark
+	public float place() {
+		layout.place(WIDTH, BAR_HEIGHT, HEIGHT - BAR_HEIGHT, false);
+		return layout.getRight(layout.getNumberOfKeys() - 1);
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+// Reading speed and memory of MidiFileReader on a large MIDI file, on the JVM, and
+// check of the conversions of MidiFile: the file is converted into a performance
+// log, back into a MIDI file, and read again, which must give the same events.
+// Uses a synthetic format 1 file of several megabytes with running status, tempo
+// changes, text and percussion (see Building.txt to run it).
+public class MidiParseBenchmark {
+	private static final int TRACKS = 16;
+	private static final int NOTES_PER_TRACK = 60000;
+	private static final int TICKS_PER_QUARTER = 480;
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) throws IOException {
+		File midi = File.createTempFile("benchmark", ".mid");
+		File log = File.createTempFile("benchmark", ".pnr");
+		File exported = File.createTempFile("benchmark", ".mid");
+		try {
+			synthesize(midi);
+			System.out.printf("MIDI file of %.1f MB, %d tracks%n", midi.length() / 1e6, TRACKS + 1);
+			long events = 0;
+			for (int run = 0; run < RUNS; run++) {
+				Runtime runtime = Runtime.getRuntime();
+				System.gc();
+				long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+				long start = System.nanoTime();
+				long checksum = 0;
+				FileInputStream in = new FileInputStream(midi);
+				long usedWhileReading;
+				try {
+					MidiFileReader reader = new MidiFileReader(in.getChannel());
+					events = 0;
+					while (reader.next()) {
+						checksum += reader.getNote() + reader.getValue() + reader.getTimeNanos();
+						events++;
+					}
+					usedWhileReading = runtime.totalMemory() - runtime.freeMemory();
+				} finally {
+					in.close();
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.printf("run %d: %d events in %.3f s, %.1f MB/s, %.1f M events/s,"
+						+ " heap grown by at most %d KB (checksum %d)%n", run, events, seconds,
+						midi.length() / 1e6 / seconds, events / 1e6 / seconds,
+						(usedWhileReading - usedBefore) / 1024, checksum);
+			}
+			// Round trip through a performance log
+			long start = System.nanoTime();
+			long converted = convert(midi, log, true);
+			long exportedEvents = convert(log, exported, false);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			long reread = 0;
+			FileInputStream in = new FileInputStream(exported);
+			try {
+				MidiFileReader reader = new MidiFileReader(in.getChannel());
+				while (reader.next()) {
+					reread++;
+				}
+			} finally {
+				in.close();
+			}
+			System.out.printf("Round trip in %.3f s: %d events read, %d imported, %d exported,"
+					+ " %d read back (%.1f MB)%n", seconds, events, converted, exportedEvents,
+					reread, exported.length() / 1e6);
+			if (converted != events || exportedEvents != events || reread != events) {
+				System.out.println("Round trip lost events!");
+				System.exit(1);
+			}
+		} finally {
+			midi.delete();
+			log.delete();
+			exported.delete();
+		}
+	}
+
+	private static long convert(File from, File to, boolean toPerformance) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		try {
+			RandomAccessFile out = new RandomAccessFile(to, "rw");
+			try {
+				out.setLength(0);
+				return toPerformance ? MidiFile.toPerformance(in.getChannel(), out.getChannel())
+						: MidiFile.fromPerformance(in.getChannel(), out.getChannel());
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// Format 1 file: a tempo track, then TRACKS tracks of notes on their own
+	// channels (the last one on the percussion channel, which is skipped)
+	private static void synthesize(File file) throws IOException {
+		Random random = new Random(1);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(0x4d546864); // "MThd"
+			out.writeInt(6);
+			out.writeShort(1);
+			out.writeShort(TRACKS + 1);
+			out.writeShort(TICKS_PER_QUARTER);
+			// Tempo track, with a change every 100 quarter notes
+			ByteArrayOutputStream track = new ByteArrayOutputStream();
+			for (int i = 0; i < NOTES_PER_TRACK / 100; i++) {
+				putVariableLength(track, (i == 0) ? 0 : 100 * TICKS_PER_QUARTER);
+				int micros = 400000 + random.nextInt(200000);
+				track.write(new byte[] {(byte) 0xff, 0x51, 3, (byte) (micros >> 16),
+						(byte) (micros >> 8), (byte) micros}, 0, 6);
+			}
+			writeTrack(out, track);
+			for (int channel = 0; channel < TRACKS; channel++) {
+				track.reset();
+				track.write(new byte[] {0, (byte) 0xff, 0x01, 4, 't', 'e', 'x', 't'}, 0, 8);
+				int pitch = (channel == TRACKS - 1) ? 9 : channel % 9;
+				for (int i = 0; i < NOTES_PER_TRACK; i++) {
+					int note = 21 + random.nextInt(88);
+					// note on, then a note on of velocity 0 with running status
+					putVariableLength(track, random.nextInt(TICKS_PER_QUARTER));
+					track.write(0x90 | pitch);
+					track.write(note);
+					track.write(1 + random.nextInt(127));
+					putVariableLength(track, random.nextInt(TICKS_PER_QUARTER));
+					track.write(note);
+					track.write(0);
+					if (i % 64 == 0) {
+						putVariableLength(track, 0);
+						track.write(0xb0 | pitch);
+						track.write(64);
+						track.write((i % 128 == 0) ? 127 : 0);
+					}
+				}
+				writeTrack(out, track);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeTrack(DataOutputStream out, ByteArrayOutputStream track) throws IOException {
+		track.write(new byte[] {0, (byte) 0xff, 0x2f, 0}, 0, 4);
+		out.writeInt(0x4d54726b); // "MTrk"
+		out.writeInt(track.size());
+		track.writeTo(out);
+	}
+
+	private static void putVariableLength(ByteArrayOutputStream out, int value) {
+		for (int shift = 21; shift > 0; shift -= 7) {
+			if (value >> shift != 0) {
+				out.write(0x80 | ((value >> shift) & 0x7f));
+			}
+		}
+		out.write(value & 0x7f);
+	}
+}
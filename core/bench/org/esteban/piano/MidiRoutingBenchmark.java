@@ -0,0 +1,183 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+// Routing of MIDI input (see MidiRouter), on the JVM, with a synthetic MIDI source
+// in a thread of its own playing chords as a stream of bytes: running status, real
+// time bytes in between, and messages split between reads, as from a controller.
+// Measures the time from the input to the listener at a fast playing pace, checking
+// that every event arrives in order, then the most events routed per second, with a
+// source that waits while the queue is full.
+// (see Building.txt to run it)
+public class MidiRoutingBenchmark {
+	private static final int QUEUE_CAPACITY = 1024;
+	// paced run: chords of some notes, a chord every few milliseconds
+	private static final int CHORD_NOTES = 4;
+	private static final long CHORD_NANOS = 5 * 1000000L;
+	private static final int PACED_CHORDS = 1000;
+	// flood run: notes sent as fast as the listener takes them
+	private static final int FLOOD_NOTES = 2000000;
+
+	// Listener that checks and times the events
+	private static class CheckingListener implements MidiRouter.Listener {
+		final LatencyHistogram latency = new LatencyHistogram(10000, 10000); // 10 us buckets up to 100 ms
+		volatile long received;
+		int expectedNote;
+		boolean expectOn = true;
+		boolean inOrder = true;
+
+		@Override
+		public void onNoteOn(int note, int velocity, long timeNanos) {
+			check(note, true, timeNanos);
+		}
+
+		@Override
+		public void onNoteOff(int note, long timeNanos) {
+			check(note, false, timeNanos);
+		}
+
+		@Override
+		public void onPedal(boolean down, long timeNanos) {
+			received++;
+		}
+
+		// The source plays each chord on, then off, with notes in sequence
+		private void check(int note, boolean on, long timeNanos) {
+			latency.record(System.nanoTime() - timeNanos);
+			if (on != expectOn || note != expectedNote) {
+				inOrder = false;
+			}
+			expectedNote = (note + 1) % NoteMapping.NUMBER_OF_NOTES;
+			if (on && (expectedNote % CHORD_NOTES) == 0) {
+				expectOn = false;
+				expectedNote = note + 1 - CHORD_NOTES;
+			} else if (!on && (expectedNote % CHORD_NOTES) == 0) {
+				expectOn = true;
+			}
+			received++;
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		// Paced run
+		MidiRouter router = new MidiRouter(QUEUE_CAPACITY);
+		CheckingListener listener = new CheckingListener();
+		router.start(listener);
+		long sent = play(router);
+		waitFor(listener, sent);
+		router.stop();
+		System.out.println("Paced: " + listener.received + " of " + sent + " events, "
+				+ router.getDropped() + " dropped, " + (listener.inOrder ? "in order" : "OUT OF ORDER")
+				+ ", input to listener: " + listener.latency);
+		if (listener.received != sent || !listener.inOrder) {
+			System.exit(1);
+		}
+		// Flood run
+		router = new MidiRouter(QUEUE_CAPACITY);
+		listener = new CheckingListener();
+		router.start(listener);
+		long start = System.nanoTime();
+		sent = flood(router);
+		waitFor(listener, sent);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		router.stop();
+		System.out.printf("Flood: %d of %d events in %.3f s, %.2f M events/s, %s%n", listener.received,
+				sent, seconds, listener.received / 1e6 / seconds, listener.inOrder ? "in order" : "OUT OF ORDER");
+		if (listener.received != sent || !listener.inOrder) {
+			System.exit(1);
+		}
+	}
+
+	// Send chords of notes as fast as the router takes them, from the main thread.
+	// Returns the events sent.
+	private static long flood(MidiRouter router) {
+		int note = 0;
+		for (int i = 0; i < FLOOD_NOTES; i += CHORD_NOTES) {
+			for (int status = 0x90; status >= 0x80; status -= 0x10) {
+				for (int j = 0; j < CHORD_NOTES; j++) {
+					while (!router.send(status, NoteMapping.FIRST_MIDI_NOTE + note + j, 100, System.nanoTime())) {
+						Thread.yield(); // full: let the router catch up
+					}
+				}
+			}
+			note = (note + CHORD_NOTES) % NoteMapping.NUMBER_OF_NOTES;
+		}
+		return 2L * FLOOD_NOTES;
+	}
+
+	// Play chords through the router, from a source thread, like a controller would
+	// send them. Returns the events sent.
+	private static long play(final MidiRouter router) throws InterruptedException {
+		final long[] sent = new long[1];
+		Thread source = new Thread("SyntheticMidiSource") {
+			@Override
+			public void run() {
+				Random random = new Random(1);
+				byte[] stream = new byte[64];
+				int note = 0;
+				long next = System.nanoTime();
+				for (int chord = 0; chord < PACED_CHORDS; chord++) {
+					// Chord on, with running status after the first note, and a clock byte
+					int length = 0;
+					stream[length++] = (byte) 0x90;
+					for (int i = 0; i < CHORD_NOTES; i++) {
+						stream[length++] = (byte) (NoteMapping.FIRST_MIDI_NOTE + note + i);
+						if (i == 1) {
+							stream[length++] = (byte) 0xf8;
+						}
+						stream[length++] = (byte) (1 + random.nextInt(127));
+					}
+					// Chord off, as note ons of velocity 0 and as note offs
+					stream[length++] = (byte) 0x80;
+					for (int i = 0; i < CHORD_NOTES; i++) {
+						if (i == CHORD_NOTES / 2) {
+							stream[length++] = (byte) 0x90;
+						}
+						stream[length++] = (byte) (NoteMapping.FIRST_MIDI_NOTE + note + i);
+						stream[length++] = 0;
+					}
+					// Deliver it in two reads, split anywhere
+					int split = random.nextInt(length + 1);
+					long now = System.nanoTime();
+					router.receive(stream, 0, split, now);
+					router.receive(stream, split, length - split, now);
+					sent[0] += 2 * CHORD_NOTES;
+					note = (note + CHORD_NOTES) % NoteMapping.NUMBER_OF_NOTES;
+					next += CHORD_NANOS;
+					while (System.nanoTime() < next) {
+						LockSupport.parkNanos(next - System.nanoTime());
+					}
+				}
+			}
+		};
+		source.start();
+		source.join();
+		return sent[0];
+	}
+
+	private static void waitFor(CheckingListener listener, long events) throws InterruptedException {
+		long deadline = System.nanoTime() + 10 * 1000000000L;
+		while (listener.received < events && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Trade-offs of sharing samples between notes (see RootMapping), on the JVM: for
+// several spacings, the memory of the resident samples per note of the keyboard,
+// and the mixing time per voice with linear and cubic interpolation.
+// Uses synthetic samples as long as the bundled ones (see Building.txt to run it).
+public class PitchShiftBenchmark {
+	// output of a typical device
+	private static final int OUTPUT_RATE = 48000;
+	private static final int BLOCK_FRAMES = 256;
+	// bundled samples: 44100 Hz stereo, about 2 seconds
+	private static final int SAMPLE_RATE = 44100;
+	private static final int SAMPLE_FRAMES = 2 * SAMPLE_RATE;
+	private static final int VOICES = 24;
+	private static final int WARM_UP_BLOCKS = 2000;
+	private static final int MEASURED_BLOCKS = 10000;
+	private static final int[] SPACINGS = {1, 2, 3, 4, 6};
+	private static final int FIRST_NOTE = NoteMapping.FIRST_BUNDLED_NOTE;
+	private static final int END_NOTE = FIRST_NOTE + NoteMapping.NUMBER_OF_BUNDLED_NOTES;
+	private static final int MAX_PITCH_SHIFT = 12;
+
+	public static void main(String[] args) {
+		// Bundled notes only, in the mf layer
+		PcmSample[] samples = new PcmSample[NoteMapping.NUMBER_OF_NOTES];
+		boolean[] available = new boolean[NoteMapping.NUMBER_OF_SAMPLES];
+		for (int note = FIRST_NOTE; note < END_NOTE; note++) {
+			samples[note] = synthesize(note);
+			available[note] = true;
+		}
+		System.out.println("spacing  roots  KB/note  max rate  linear ns/voice/frame  cubic ns/voice/frame");
+		for (int spacing : SPACINGS) {
+			RootMapping mapping = new RootMapping(spacing, available, MAX_PITCH_SHIFT);
+			boolean[] isRoot = new boolean[NoteMapping.NUMBER_OF_NOTES];
+			int roots = 0;
+			float maxRate = 1.0f;
+			for (int note = FIRST_NOTE; note < END_NOTE; note++) {
+				if (!isRoot[mapping.getRoot(note)]) {
+					isRoot[mapping.getRoot(note)] = true;
+					roots++;
+				}
+				maxRate = Math.max(maxRate, Math.max(mapping.getRate(note), 1.0f / mapping.getRate(note)));
+			}
+			long bytesPerNote = (long) roots * samples[FIRST_NOTE].getSizeInBytes()
+					/ NoteMapping.NUMBER_OF_BUNDLED_NOTES;
+			double linear = mixNanos(mapping, samples, PcmMixer.INTERPOLATION_LINEAR);
+			double cubic = mixNanos(mapping, samples, PcmMixer.INTERPOLATION_CUBIC);
+			System.out.printf("%7d  %5d  %7d  %8.3f  %21.2f  %20.2f%n", spacing, roots,
+					bytesPerNote / 1024, maxRate, linear, cubic);
+		}
+	}
+
+	// Average time to mix a frame of a voice, with VOICES notes of the keyboard
+	// sounding at the same time
+	private static double mixNanos(RootMapping mapping, PcmSample[] samples, int interpolation) {
+		PcmMixer mixer = new PcmMixer(OUTPUT_RATE, BLOCK_FRAMES, VOICES);
+		mixer.setInterpolation(interpolation);
+		short[] block = new short[BLOCK_FRAMES * PcmMixer.CHANNELS];
+		int nextNote = FIRST_NOTE;
+		long nanos = 0;
+		for (int i = 0; i < WARM_UP_BLOCKS + MEASURED_BLOCKS; i++) {
+			// Keep every voice busy, restarting the ones that ended
+			while (mixer.getActiveVoices() < VOICES) {
+				mixer.start(samples[mapping.getRoot(nextNote)], 0.1f, mapping.getRate(nextNote));
+				nextNote = (nextNote + 1 < END_NOTE) ? nextNote + 1 : FIRST_NOTE;
+			}
+			long start = System.nanoTime();
+			mixer.mix(block);
+			if (i >= WARM_UP_BLOCKS) {
+				nanos += System.nanoTime() - start;
+			}
+		}
+		return (double) nanos / MEASURED_BLOCKS / BLOCK_FRAMES / VOICES;
+	}
+
+	// Decaying tone with some harmonics, at the pitch of a note
+	private static PcmSample synthesize(int note) {
+		double frequency = 27.5 * Math.pow(2.0, note / 12.0); // from A0
+		short[] data = new short[SAMPLE_FRAMES * 2];
+		for (int frame = 0; frame < SAMPLE_FRAMES; frame++) {
+			double time = (double) frame / SAMPLE_RATE;
+			double value = 0.0;
+			for (int harmonic = 1; harmonic <= 6; harmonic++) {
+				value += Math.sin(2.0 * Math.PI * frequency * harmonic * time) / harmonic;
+			}
+			short level = (short) (value * 8000.0 * Math.exp(-2.0 * time));
+			data[2 * frame] = level;
+			data[2 * frame + 1] = level;
+		}
+		return new PcmSample(data, 2, SAMPLE_RATE);
+	}
+}
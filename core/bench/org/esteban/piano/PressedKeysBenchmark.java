@@ -0,0 +1,111 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esteban.piano;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JMH benchmark of the work of PianoLayout.onTouchEvent for a touch event with
+// some pointers down, without Android: finding the key of every pointer, diffing
+// the pressed keys with the previous event (see PressedKeys), and going through
+// the keys just pressed and released. The pointers wander over a keyboard of two
+// rows of two octaves, so some events press and release keys and others don't,
+// as moves do (see core/build.xml to run it).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+@State(Scope.Thread)
+public class PressedKeysBenchmark {
+	private static final float WIDTH = 1280.0f;
+	private static final float HEIGHT = 800.0f;
+	private static final int ROWS = 2;
+	private static final int OCTAVES_PER_ROW = 2;
+	// events replayed, and pixels a pointer moves per event at most
+	private static final int EVENTS = 4096;
+	private static final float STEP = 12.0f;
+
+	@Param({"1", "2", "5", "10"})
+	public int pointers;
+
+	private KeyboardLayout layout;
+	private PressedKeys pressedKeys;
+	// coordinates and pressure of every pointer of every event
+	private float[] xs, ys, pressures;
+	private int event;
+
+	@Setup
+	public void setUp() {
+		layout = new KeyboardLayout(ROWS, OCTAVES_PER_ROW);
+		layout.place(WIDTH, 0.0f, HEIGHT, false);
+		pressedKeys = new PressedKeys(layout.getNumberOfKeys());
+		Random random = new Random(42);
+		xs = new float[EVENTS * pointers];
+		ys = new float[EVENTS * pointers];
+		pressures = new float[EVENTS * pointers];
+		for (int pointer = 0; pointer < pointers; pointer++) {
+			float x = random.nextFloat() * WIDTH;
+			float y = random.nextFloat() * HEIGHT;
+			for (int i = 0; i < EVENTS; i++) {
+				x = Math.min(Math.max(x + (random.nextFloat() - 0.5f) * 2 * STEP, 0.0f), WIDTH - 1);
+				y = Math.min(Math.max(y + (random.nextFloat() - 0.5f) * 2 * STEP, 0.0f), HEIGHT - 1);
+				xs[i * pointers + pointer] = x;
+				ys[i * pointers + pointer] = y;
+				pressures[i * pointers + pointer] = random.nextFloat();
+			}
+		}
+		event = 0;
+	}
+
+	@Benchmark
+	public int touchEvent() {
+		event = (event + 1) & (EVENTS - 1);
+		int first = event * pointers;
+		pressedKeys.begin();
+		for (int i = first; i < first + pointers; i++) {
+			int key = layout.keyAt(xs[i], ys[i]);
+			if (key != KeyboardLayout.NO_KEY) {
+				pressedKeys.touch(key, pressures[i], true);
+			}
+		}
+		pressedKeys.end();
+		int changes = 0;
+		for (int i = pressedKeys.nextJustPressed(0); i != PressedKeys.NO_KEY;
+				i = pressedKeys.nextJustPressed(i + 1)) {
+			changes++;
+		}
+		for (int i = pressedKeys.nextJustReleased(0); i != PressedKeys.NO_KEY;
+				i = pressedKeys.nextJustReleased(i + 1)) {
+			changes++;
+		}
+		return changes;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esteban.piano;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JMH benchmark of mapping keys to the samples they play, for the three values of
+// the octaves preference on a keyboard of two rows of two octaves: from every key
+// to its note, sample of a dynamic layer, root and rate, as PianoLayout.playNote
+// does (mappedKeys), and creating the layout again, as moving the octaves does
+// (createLayout). Samples are shared by every 3 notes, with the pp and ff layers
+// (see core/build.xml to run it).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+@State(Scope.Thread)
+public class SampleMappingBenchmark {
+	private static final int ROWS = 2;
+	private static final int OCTAVES_PER_ROW = 2;
+	private static final int SPACING = 3;
+	private static final int MAX_PITCH_SHIFT = 36;
+
+	@Param({"34", "45", "35"})
+	public String octaves;
+
+	private NoteMapping noteMapping;
+	private RootMapping rootMapping;
+	private VelocityMap velocityMap;
+
+	@Setup
+	public void setUp() {
+		noteMapping = NoteMapping.forPreference(octaves, ROWS, OCTAVES_PER_ROW);
+		boolean[] available = new boolean[NoteMapping.NUMBER_OF_SAMPLES];
+		for (int note = NoteMapping.FIRST_BUNDLED_NOTE;
+				note < NoteMapping.FIRST_BUNDLED_NOTE + NoteMapping.NUMBER_OF_BUNDLED_NOTES; note++) {
+			for (int layer = 0; layer < NoteMapping.NUMBER_OF_LAYERS; layer++) {
+				available[layer * NoteMapping.NUMBER_OF_NOTES + note] = true;
+			}
+		}
+		rootMapping = new RootMapping(SPACING, available, MAX_PITCH_SHIFT);
+		velocityMap = new VelocityMap(0.6f, 0.5f, VelocityMap.findPlayableLayers(rootMapping));
+	}
+
+	// Map every key, at a velocity that changes from key to key
+	@Benchmark
+	public float mappedKeys() {
+		float sum = 0.0f;
+		for (int key = 0; key < noteMapping.getNumberOfKeys(); key++) {
+			int note = noteMapping.getSample(key);
+			if (note == NoteMapping.NO_SAMPLE) {
+				continue;
+			}
+			int velocity = (key * 37) % (VelocityMap.MAX_VELOCITY + 1);
+			int sample = velocityMap.getLayer(velocity) * NoteMapping.NUMBER_OF_NOTES + note;
+			int root = rootMapping.getRoot(sample);
+			if (root != NoteMapping.NO_SAMPLE) {
+				sum += root * rootMapping.getRate(sample) * velocityMap.getGain(velocity);
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public NoteMapping createLayout() {
+		return NoteMapping.forPreference(octaves, ROWS, OCTAVES_PER_ROW);
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Base of the checks of the core, run on a plain JVM (see the check target of
+// core/build.xml). A check counts its expectations and prints the ones that fail,
+// then its result; main() exits with 1 if some failed.
+public abstract class Check {
+	// failures printed, after which they are only counted
+	private static final int MAX_PRINTED_FAILURES = 20;
+	private int checked;
+	private int failed;
+
+	// Check the expectations, calling expect()
+	protected abstract void run() throws Exception;
+
+	// Count an expectation, printing it if it isn't met
+	protected void expect(boolean met, String what) {
+		checked++;
+		if (!met) {
+			failed++;
+			if (failed <= MAX_PRINTED_FAILURES) {
+				System.out.println(getClass().getSimpleName() + ": FAILED " + what);
+			}
+		}
+	}
+
+	// Expect a value
+	protected void expectEquals(long expected, long actual, String what) {
+		if (expected != actual) {
+			expect(false, what + ": " + actual + " instead of " + expected);
+		} else {
+			expect(true, what);
+		}
+	}
+
+	// Run a check, printing its result, and exit with 1 if it failed
+	protected static void main(Check check) throws Exception {
+		check.run();
+		String name = check.getClass().getSimpleName();
+		if (check.failed > 0) {
+			System.out.println(name + ": " + check.failed + " of " + check.checked + " failed");
+			System.exit(1);
+		}
+		System.out.println(name + ": OK, " + check.checked + " checked");
+	}
+}
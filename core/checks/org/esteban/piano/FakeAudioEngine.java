@@ -0,0 +1,216 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Audio engine for the checks, which plays nothing: it records the samples
+// loaded (loads can be held back, to check what happens meanwhile) and the sounds
+// started, stopped and faded out, with a clock set by the check. Samples can be
+// made unplayable, as when not loaded yet.
+public class FakeAudioEngine implements AudioEngine {
+	private final boolean[] readySamples;
+	private final boolean[] unplayableSamples;
+	private final int maxVoices;
+	// samples loaded, in order, and samples being loaded at most at once
+	private final List<Integer> loaded;
+	private final int[] loading;
+	private int maxLoadingAtOnce;
+	// loads wait while held
+	private boolean held;
+	// sounds started (their play ids are their index + 1), with their start times
+	// (Long.MIN_VALUE for right away), and the ones stopped and faded out, with the
+	// times of their fade outs
+	private final List<Integer> playedSamples;
+	private final List<Long> playedStarts;
+	private final List<Integer> stopped;
+	private final List<Integer> fadedOut;
+	private final List<Long> fadeOutStarts;
+	private long clockNanos;
+
+	// Constructor
+	public FakeAudioEngine(int numberOfSamples, int maxVoices) {
+		readySamples = new boolean[numberOfSamples];
+		unplayableSamples = new boolean[numberOfSamples];
+		this.maxVoices = maxVoices;
+		loaded = new ArrayList<Integer>();
+		loading = new int[numberOfSamples];
+		playedSamples = new ArrayList<Integer>();
+		playedStarts = new ArrayList<Long>();
+		stopped = new ArrayList<Integer>();
+		fadedOut = new ArrayList<Integer>();
+		fadeOutStarts = new ArrayList<Long>();
+	}
+
+	// Hold back the loads, or let them go on
+	public synchronized void setHeld(boolean held) {
+		this.held = held;
+		notifyAll();
+	}
+
+	// Wait until a sample is being loaded, or some time passed. Returns false if
+	// it isn't.
+	public synchronized boolean awaitLoading(int sample, long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (loading[sample] == 0 && System.currentTimeMillis() < deadline) {
+			wait(Math.max(1, deadline - System.currentTimeMillis()));
+		}
+		return loading[sample] > 0;
+	}
+
+	public synchronized List<Integer> getLoaded() {
+		return new ArrayList<Integer>(loaded);
+	}
+
+	public synchronized int getMaxLoadingAtOnce() {
+		return maxLoadingAtOnce;
+	}
+
+	// Make play fail for a sample, or play it again
+	public synchronized void setPlayable(int sample, boolean playable) {
+		unplayableSamples[sample] = !playable;
+	}
+
+	public synchronized void setClockNanos(long clockNanos) {
+		this.clockNanos = clockNanos;
+	}
+
+	public synchronized int getPlayed() {
+		return playedSamples.size();
+	}
+
+	public synchronized long getStartNanos(int playId) {
+		return playedStarts.get(playId - 1);
+	}
+
+	public synchronized boolean isStopped(int playId) {
+		return stopped.contains(playId);
+	}
+
+	public synchronized boolean isFadedOut(int playId) {
+		return fadedOut.contains(playId);
+	}
+
+	// Time of the fade out of a sound (Long.MIN_VALUE for right away)
+	public synchronized long getFadeOutNanos(int playId) {
+		return fadeOutStarts.get(fadedOut.indexOf(playId));
+	}
+
+	@Override
+	public boolean hasSample(int sample) {
+		return true;
+	}
+
+	@Override
+	public void load(int sample) {
+		synchronized (this) {
+			loading[sample]++;
+			maxLoadingAtOnce = Math.max(maxLoadingAtOnce, loading[sample]);
+			notifyAll();
+			while (held) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			loading[sample]--;
+			loaded.add(sample);
+			readySamples[sample] = true;
+		}
+	}
+
+	@Override
+	public synchronized boolean isReady(int sample) {
+		return readySamples[sample];
+	}
+
+	@Override
+	public synchronized void unload(int sample) {
+		readySamples[sample] = false;
+	}
+
+	@Override
+	public int play(int sample, float volume, float rate) {
+		return playAt(sample, volume, rate, Long.MIN_VALUE);
+	}
+
+	@Override
+	public synchronized int playAt(int sample, float volume, float rate, long startNanos) {
+		if (unplayableSamples[sample]) {
+			return 0;
+		}
+		playedSamples.add(sample);
+		playedStarts.add(startNanos);
+		return playedSamples.size();
+	}
+
+	@Override
+	public synchronized long getClockNanos() {
+		return clockNanos;
+	}
+
+	@Override
+	public synchronized void stop(int playId) {
+		stopped.add(playId);
+	}
+
+	@Override
+	public void fadeOut(int playId) {
+		fadeOutAt(playId, Long.MIN_VALUE);
+	}
+
+	@Override
+	public synchronized void fadeOutAt(int playId, long stopNanos) {
+		fadedOut.add(playId);
+		fadeOutStarts.add(stopNanos);
+	}
+
+	@Override
+	public boolean canSchedule() {
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isPlaying(int playId) {
+		return playId > 0 && !stopped.contains(playId) && !fadedOut.contains(playId);
+	}
+
+	@Override
+	public int getMaxPitchShift() {
+		return 12;
+	}
+
+	@Override
+	public int getMaxVoices() {
+		return maxVoices;
+	}
+
+	@Override
+	public SampleCache<?> getSampleCache() {
+		return null;
+	}
+
+	@Override
+	public void release() {
+	}
+}
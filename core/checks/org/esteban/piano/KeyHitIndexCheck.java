@@ -0,0 +1,114 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Check of the hit-testing index of the keyboard (see KeyHitIndex and
+// KeyboardLayout) against the scan of the key bounding rectangles it replaced:
+// black keys first, as their rectangles overlap the white ones, with the left and
+// top edges inside a key and the right and bottom ones outside. Every whole pixel
+// of the view (touches are truncated to them) is checked, beyond the edges too,
+// for keyboards of several sizes, rows and octaves in both row orders, along with
+// the exact edges of the keys.
+public class KeyHitIndexCheck extends Check {
+	// view sizes: landscape and portrait, and sizes with fractional octave widths
+	private static final int[][] SIZES = {{1280, 800}, {800, 1280}, {854, 480}, {1023, 601}};
+	private static final int MAX_ROWS = 3;
+	private static final int MAX_OCTAVES_PER_ROW = 3;
+	// octave bar and pedal height, a fraction of the view height (as PianoLayout)
+	private static final int BAR_FRACTION = 16;
+	// pixels checked beyond the view
+	private static final int MARGIN = 2;
+
+	public static void main(String[] args) throws Exception {
+		main(new KeyHitIndexCheck());
+	}
+
+	@Override
+	protected void run() {
+		for (int[] size : SIZES) {
+			for (int rows = 1; rows <= MAX_ROWS; rows++) {
+				for (int octavesPerRow = 1; octavesPerRow <= MAX_OCTAVES_PER_ROW; octavesPerRow++) {
+					checkLayout(size[0], size[1], rows, octavesPerRow, false);
+					checkLayout(size[0], size[1], rows, octavesPerRow, true);
+				}
+			}
+		}
+	}
+
+	private void checkLayout(int width, int height, int rows, int octavesPerRow,
+			boolean higherOctaveUp) {
+		KeyboardLayout layout = new KeyboardLayout(rows, octavesPerRow);
+		float top = (float) height / BAR_FRACTION;
+		float bottom = height - (float) height / BAR_FRACTION;
+		layout.place(width, top, bottom, higherOctaveUp);
+		String name = width + "x" + height + ", " + rows + " rows of " + octavesPerRow
+				+ " octaves" + (higherOctaveUp ? ", higher octave up" : "") + ": ";
+		// Every pixel, as touched
+		int mismatches = 0;
+		for (int y = -MARGIN; y < height + MARGIN; y++) {
+			for (int x = -MARGIN; x < width + MARGIN; x++) {
+				int expected = scan(layout, x, y);
+				int found = layout.keyAt(x, y);
+				if (found != expected) {
+					mismatches++;
+					expectEquals(expected, found, name + "key at " + x + "," + y);
+				}
+			}
+		}
+		expectEquals(0, mismatches, name + "pixels with another key");
+		// The exact edges of every key (the sides of white keys below the black
+		// keys), and the middle of black keys, which overlap white keys
+		for (int key = 0; key < layout.getNumberOfKeys(); key++) {
+			float left = layout.getLeft(key);
+			float right = layout.getRight(key);
+			float keyTop = layout.getTop(key);
+			float middleX = (left + right) / 2;
+			float sideY = keyTop + (layout.getBottom(key) - keyTop) * 3 / 4;
+			expectEquals(key, layout.keyAt(left, sideY), name + "left edge of key " + key);
+			expectEquals(key, layout.keyAt(middleX, keyTop), name + "top edge of key " + key);
+			expectEquals(scan(layout, right, sideY), layout.keyAt(right, sideY),
+					name + "right edge of key " + key);
+			if (layout.getShape(key) == KeyboardLayout.SHAPE_BLACK) {
+				expectEquals(key, layout.keyAt(middleX, (keyTop + layout.getBottom(key)) / 2),
+						name + "middle of black key " + key);
+			}
+		}
+		// Outside of the keys: above, below (the pedal) and to the sides
+		expectEquals(KeyboardLayout.NO_KEY, layout.keyAt(width / 2, top - 1), name + "above the keys");
+		expectEquals(KeyboardLayout.NO_KEY, layout.keyAt(width / 2, bottom), name + "at the bottom edge");
+		expectEquals(KeyboardLayout.NO_KEY, layout.keyAt(-0.5f, height / 2), name + "left of the keys");
+		expectEquals(KeyboardLayout.NO_KEY, layout.keyAt(width, height / 2), name + "at the right edge");
+		expectEquals(KeyboardLayout.NO_KEY, layout.keyAt(Float.NaN, height / 2), name + "at no point");
+	}
+
+	// Key at a point by scanning the bounding rectangles, black keys first, or NO_KEY
+	private static int scan(KeyboardLayout layout, float x, float y) {
+		for (int pass = 0; pass < 2; pass++) {
+			boolean black = (pass == 0);
+			for (int key = 0; key < layout.getNumberOfKeys(); key++) {
+				if ((layout.getShape(key) == KeyboardLayout.SHAPE_BLACK) == black
+						&& x >= layout.getLeft(key) && x < layout.getRight(key)
+						&& y >= layout.getTop(key) && y < layout.getBottom(key)) {
+					return key;
+				}
+			}
+		}
+		return KeyboardLayout.NO_KEY;
+	}
+}
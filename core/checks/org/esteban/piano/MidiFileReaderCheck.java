@@ -0,0 +1,213 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Check of the reading of MIDI files (see MidiFileReader) with small files made
+// byte by byte: running status, note ons of velocity 0, the events that aren't
+// piano events, tempo changes in the middle of format 1 files, SMPTE time, and
+// files cut short or badly formed.
+// Divisions of 500 and 50 ticks per quarter note make a tick 1 and 10 ms at the
+// default tempo, so that the times are exact.
+public class MidiFileReaderCheck extends Check {
+	private static final int TICKS_PER_QUARTER = 500;
+	private static final int TICKS_PER_QUARTER_10_MS = 50;
+	// SMPTE divisions: 25 frames per second of 40 ticks (a tick a millisecond), and
+	// 29.97 frames per second of 100 ticks
+	private static final int SMPTE_25 = 0xe728;
+	private static final int SMPTE_2997 = 0xe364;
+
+	public static void main(String[] args) throws Exception {
+		main(new MidiFileReaderCheck());
+	}
+
+	@Override
+	protected void run() throws Exception {
+		// Running status, note ons of velocity 0, and events skipped
+		List<String> events = new ArrayList<String>();
+		read(midi(0, TICKS_PER_QUARTER, 1, track(
+				0, 0x90, 60, 100, // C4 on
+				100, 62, 80, // D4 on, running status
+				100, 60, 0, // C4 off, as velocity 0
+				0, 0x80, 62, 64, // D4 off
+				50, 0xb0, 64, 127, // pedal down
+				0, 7, 100, // volume, running status
+				0, 0x99, 36, 100, // percussion
+				0, 0xc0, 5, // program change
+				0, 0x90, 20, 100, // below A0 (MIDI 21)
+				0, 0xff, 0x01, 3, 'a', 'b', 'c', // text
+				10, 0xf0, 3, 0x7e, 0, 0xf7, // system exclusive
+				0, 0xb0, 64, 0, // pedal up
+				0, 0x90, 21, 1, // A0 on
+				0, 108, 127, // C8 on
+				0, 109, 127, // beyond C8
+				0, 0xff, 0x2f, 0)), events);
+		expectEvents(Arrays.asList(
+				event(PerformanceLog.NOTE_ON, 39, 100, 0),
+				event(PerformanceLog.NOTE_ON, 41, 80, 100),
+				event(PerformanceLog.NOTE_OFF, 39, 0, 200),
+				event(PerformanceLog.NOTE_OFF, 41, 0, 200),
+				event(PerformanceLog.PEDAL, 0, 1, 250),
+				event(PerformanceLog.PEDAL, 0, 0, 260),
+				event(PerformanceLog.NOTE_ON, 0, 1, 260),
+				event(PerformanceLog.NOTE_ON, 87, 127, 260)), events, "format 0");
+		// Format 1, with the tempo doubled at tick 100 in the first track and set
+		// back at tick 180 in the third one: the tracks are merged in time order,
+		// and the tempo of any track applies to all of them
+		events.clear();
+		read(midi(1, TICKS_PER_QUARTER_10_MS, 3,
+				track(0, 0xff, 0x51, 3, 0x07, 0xa1, 0x20, // 500000 us per quarter note
+						100, 0xff, 0x51, 3, 0x03, 0xd0, 0x90, // 250000 us
+						0, 0xff, 0x2f, 0),
+				track(50, 0x90, 60, 100,
+						50, 62, 100,
+						50, 60, 0,
+						50, 62, 0,
+						0, 0xff, 0x2f, 0),
+				track(120, 0x90, 64, 100,
+						60, 0xff, 0x51, 3, 0x07, 0xa1, 0x20,
+						10, 0x80, 64, 0,
+						0, 0xff, 0x2f, 0)), events);
+		expectEvents(Arrays.asList(
+				event(PerformanceLog.NOTE_ON, 39, 100, 500),
+				event(PerformanceLog.NOTE_ON, 41, 100, 1000),
+				event(PerformanceLog.NOTE_ON, 43, 100, 1100),
+				event(PerformanceLog.NOTE_OFF, 39, 0, 1250),
+				event(PerformanceLog.NOTE_OFF, 43, 0, 1500),
+				event(PerformanceLog.NOTE_OFF, 41, 0, 1600)), events, "format 1 tempo changes");
+		// SMPTE time, where tempo changes don't apply
+		events.clear();
+		read(midi(0, SMPTE_25, 1, track(0, 0xff, 0x51, 3, 0x03, 0xd0, 0x90,
+				40, 0x90, 60, 100,
+				0x87, 0x40, 0x80, 60, 0, // after 960 ticks
+				0, 0xff, 0x2f, 0)), events);
+		expectEvents(Arrays.asList(
+				event(PerformanceLog.NOTE_ON, 39, 100, 40),
+				event(PerformanceLog.NOTE_OFF, 39, 0, 1000)), events, "SMPTE 25 frames per second");
+		MidiFileReader reader = reader(midi(0, SMPTE_2997, 1, track(0x97, 0x35, 0x90, 60, 100)));
+		expect(reader.next() && Math.abs(reader.getTimeNanos() - 1000000000L) < 1000,
+				"SMPTE 29.97 frames per second: 2997 ticks a second");
+		// A track without its end event ends with its last event
+		events.clear();
+		read(midi(0, TICKS_PER_QUARTER, 1, track(0, 0x90, 60, 100, 10, 0x80, 60, 0)), events);
+		expectEvents(Arrays.asList(
+				event(PerformanceLog.NOTE_ON, 39, 100, 0),
+				event(PerformanceLog.NOTE_OFF, 39, 0, 10)), events, "track without end");
+		// A track cut in the middle of an event (shorter than its length) gives the
+		// events before, then fails
+		byte[] whole = midi(0, TICKS_PER_QUARTER, 1, track(0, 0x90, 60, 100, 10, 0x80, 60, 0,
+				0, 0xff, 0x2f, 0));
+		events.clear();
+		expectFailure(Arrays.copyOf(whole, whole.length - 5), events, "track cut in an event");
+		expectEvents(Arrays.asList(event(PerformanceLog.NOTE_ON, 39, 100, 0)), events,
+				"events before the cut");
+		expectFailure(Arrays.copyOf(whole, whole.length - 9), events, "track cut after a time");
+		expectFailure(midi(0, TICKS_PER_QUARTER, 2, track(0, 0xff, 0x2f, 0)), events, "track missing");
+		expectFailure(Arrays.copyOf(whole, 10), events, "header cut");
+		expectFailure(midi(0, TICKS_PER_QUARTER, 1, track(0, 0xff, 0x01, 100, 'a')), events,
+				"meta event longer than its track");
+		expectFailure(midi(0, TICKS_PER_QUARTER, 1, track(0, 60, 100)), events,
+				"data without a status");
+		expectFailure(midi(0, TICKS_PER_QUARTER, 1, track(0, 0xf0, 0, 0xf7, 0, 60, 100)), events,
+				"running status after a system exclusive");
+		expectFailure(midi(0, TICKS_PER_QUARTER, 1, track(0x80, 0x80, 0x80, 0x80, 0, 0x90, 60, 100)),
+				events, "time of 5 bytes");
+		expectFailure(midi(2, TICKS_PER_QUARTER, 1, track(0, 0xff, 0x2f, 0)), events, "format 2");
+		expectFailure(midi(0, 0xe700, 1, track(0, 0xff, 0x2f, 0)), events, "SMPTE without ticks");
+	}
+
+	// Expect reading a file to fail, with an IOException
+	private void expectFailure(byte[] file, List<String> events, String what) throws IOException {
+		try {
+			read(file, events);
+			expect(false, what + ": read without failing");
+		} catch (IOException e) {
+			expect(true, what);
+		}
+	}
+
+	private void expectEvents(List<String> expected, List<String> actual, String what) {
+		expect(expected.equals(actual), what + ": " + actual + " instead of " + expected);
+	}
+
+	private static String event(int type, int note, int value, long millis) {
+		return type + " " + note + " " + value + " at " + millis + " ms";
+	}
+
+	// Read the events of a file, adding them to a list as they are read
+	private static void read(byte[] file, List<String> events) throws IOException {
+		MidiFileReader reader = reader(file);
+		while (reader.next()) {
+			long nanos = reader.getTimeNanos();
+			events.add(event(reader.getType(), reader.getNote(), reader.getValue(), nanos / 1000000)
+					+ ((nanos % 1000000 != 0) ? " and " + nanos % 1000000 + " ns" : ""));
+		}
+	}
+
+	// Reader of a file made of some bytes, kept in a temporary file
+	private static MidiFileReader reader(byte[] bytes) throws IOException {
+		File file = File.createTempFile("MidiFileReaderCheck", ".mid");
+		file.deleteOnExit();
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		return new MidiFileReader(new RandomAccessFile(file, "r").getChannel());
+	}
+
+	// A MIDI file with a header and some tracks
+	private static byte[] midi(int format, int division, int numberOfTracks, byte[]... tracks) {
+		int length = 14;
+		for (byte[] track : tracks) {
+			length += track.length;
+		}
+		byte[] file = Arrays.copyOf(bytes('M', 'T', 'h', 'd', 0, 0, 0, 6, format >> 8, format,
+				numberOfTracks >> 8, numberOfTracks, division >> 8, division), length);
+		int position = 14;
+		for (byte[] track : tracks) {
+			System.arraycopy(track, 0, file, position, track.length);
+			position += track.length;
+		}
+		return file;
+	}
+
+	// A track chunk with some bytes
+	private static byte[] track(int... values) {
+		byte[] track = Arrays.copyOf(bytes('M', 'T', 'r', 'k', 0, 0, values.length >> 8, values.length),
+				8 + values.length);
+		System.arraycopy(bytes(values), 0, track, 8, values.length);
+		return track;
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+}
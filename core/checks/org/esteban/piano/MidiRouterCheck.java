@@ -0,0 +1,131 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Check of the parsing of the MIDI input (see MidiRouter.receive): a stream of
+// bytes with running status, real time bytes in the middle of messages, system
+// exclusive and other messages not routed, delivered whole, split in two at every
+// place, and a byte at a time. The events are taken from the dispatch thread.
+public class MidiRouterCheck extends Check {
+	private static final int QUEUE_CAPACITY = 64;
+	// longest wait for the events to be dispatched
+	private static final long TIMEOUT_NANOS = 1000000000L;
+	private static final int[] STREAM = {
+		0x90, 60, 100, // C4 on
+		0xf8, // clock
+		62, 0xfe, 80, // D4 on, running status, with active sensing in between
+		0x80, 0xfa, 60, 0xf8, 64, // C4 off, with start and clock in between
+		62, 0, // D4 off, running status
+		0x90, 64, 0, // E4 off, as velocity 0
+		0xf0, 0x7e, 60, 0xf8, 100, 0xf7, // system exclusive, with a clock inside
+		60, 100, // data without a status (cancelled by the system exclusive)
+		0xb0, 7, 100, // volume
+		64, 127, // pedal down, running status
+		0xc0, 5, 6, // program changes
+		0xd0, 50, // channel pressure
+		0x91, 20, 100, 109, 100, // below A0 (MIDI 21) and above C8 (MIDI 108)
+		0xf2, 60, 100, // song position, cancelling running status
+		60, 100, // data without a status
+		0x90, 108, 1, // C8 on
+		0xb0, 64, 0xf8, 0 // pedal up, with a clock in between
+	};
+	private static final List<String> EVENTS = Arrays.asList(
+			"on 39 100", "on 41 80", "off 39", "off 41", "off 43", "pedal true", "on 87 1", "pedal false");
+
+	// Listener that keeps the events
+	private static class RecordingListener implements MidiRouter.Listener {
+		final List<String> events = new ArrayList<String>();
+		final List<Long> times = new ArrayList<Long>();
+
+		@Override
+		public synchronized void onNoteOn(int note, int velocity, long timeNanos) {
+			add("on " + note + " " + velocity, timeNanos);
+		}
+
+		@Override
+		public synchronized void onNoteOff(int note, long timeNanos) {
+			add("off " + note, timeNanos);
+		}
+
+		@Override
+		public synchronized void onPedal(boolean down, long timeNanos) {
+			add("pedal " + down, timeNanos);
+		}
+
+		private void add(String event, long timeNanos) {
+			events.add(event);
+			times.add(timeNanos);
+			notifyAll();
+		}
+
+		// Wait for some events, and return them
+		synchronized List<String> await(int count) throws InterruptedException {
+			long deadline = System.nanoTime() + TIMEOUT_NANOS;
+			while (events.size() < count && deadline - System.nanoTime() > 0) {
+				wait(1);
+			}
+			return new ArrayList<String>(events);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		main(new MidiRouterCheck());
+	}
+
+	@Override
+	protected void run() throws Exception {
+		byte[] stream = new byte[STREAM.length];
+		for (int i = 0; i < STREAM.length; i++) {
+			stream[i] = (byte) STREAM[i];
+		}
+		// Whole, and split in two at every place
+		for (int split = 0; split <= stream.length; split++) {
+			MidiRouter router = new MidiRouter(QUEUE_CAPACITY);
+			RecordingListener listener = new RecordingListener();
+			router.start(listener);
+			router.receive(stream, 0, split, 1);
+			router.receive(stream, split, stream.length - split, 2);
+			List<String> events = listener.await(EVENTS.size());
+			router.stop();
+			expect(EVENTS.equals(events), "split at " + split + ": " + events + " instead of " + EVENTS);
+			if (!EVENTS.equals(events)) {
+				break; // the others would likely fail the same way, each after a timeout
+			}
+		}
+		// A byte at a time, each event with the time of the call of its last byte
+		MidiRouter router = new MidiRouter(QUEUE_CAPACITY);
+		RecordingListener listener = new RecordingListener();
+		router.start(listener);
+		for (int i = 0; i < stream.length; i++) {
+			router.receive(stream, i, 1, i);
+		}
+		List<String> events = listener.await(EVENTS.size());
+		router.stop();
+		expect(EVENTS.equals(events), "a byte at a time: " + events + " instead of " + EVENTS);
+		long[] lastBytes = {2, 6, 11, 13, 16, 29, 47, 51};
+		for (int i = 0; i < lastBytes.length && i < listener.times.size(); i++) {
+			expectEquals(lastBytes[i], listener.times.get(i), "time of " + EVENTS.get(i));
+		}
+		expectEquals(0, router.getDropped(), "events dropped");
+	}
+}
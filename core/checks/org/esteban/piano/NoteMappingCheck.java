@@ -0,0 +1,89 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Check of the mapping of keys to samples (see NoteMapping): the three octave
+// layouts of the preference against the sample files the keyboard used to load
+// for them (note<i>.ogg for "34", note<i + 12> for "45" and note<i + (i / 12) * 12>
+// for "35", with i the key), plus the ends of the piano, other rows and octaves,
+// moving octaves and the dynamic layers.
+public class NoteMappingCheck extends Check {
+	private static final int KEYS = 24;
+
+	public static void main(String[] args) throws Exception {
+		main(new NoteMappingCheck());
+	}
+
+	@Override
+	protected void run() {
+		// The layouts of the preference, with the bundled sample files of old
+		NoteMapping octaves34 = NoteMapping.forPreference("34", 2, 1);
+		NoteMapping octaves45 = NoteMapping.forPreference("45", 2, 1);
+		NoteMapping octaves35 = NoteMapping.forPreference("35", 2, 1);
+		expectEquals(KEYS, octaves35.getNumberOfKeys(), "keys of 2 rows of 1 octave");
+		for (int i = 0; i < KEYS; i++) {
+			expectEquals(i, bundledFile(octaves34, i), "34: file of key " + i);
+			expectEquals(i + 12, bundledFile(octaves45, i), "45: file of key " + i);
+			expectEquals(i + (i / 12) * 12, bundledFile(octaves35, i), "35: file of key " + i);
+		}
+		expectEquals(39, octaves34.getSample(12), "34: key 12 is C4");
+		expectEquals(27, octaves35.getLowestNote(), "35: lowest note C3");
+		expectEquals(62, octaves35.getHighestNote(), "35: highest note B5");
+		// Rows without a digit continue after the previous one, within the piano
+		NoteMapping rows = NoteMapping.forPreference("3", 3, 2);
+		int[] expectedOctaves = {3, 4, 5, 6, 7, 8};
+		for (int group = 0; group < expectedOctaves.length; group++) {
+			expectEquals(expectedOctaves[group], rows.getOctave(group), "3, 3 rows: octave " + group);
+		}
+		NoteMapping clamped = NoteMapping.forPreference("7", 1, 3);
+		expectEquals(8, clamped.getOctave(2), "7, 3 octaves: last octave");
+		// The ends of the piano: A0 is the first note, C8 the last one
+		NoteMapping ends = new NoteMapping(0, 8);
+		for (int i = 0; i < 12; i++) {
+			expectEquals((i < 9) ? NoteMapping.NO_SAMPLE : i - 9, ends.getSample(i),
+					"octave 0: sample of key " + i);
+			expectEquals((i == 0) ? NoteMapping.NUMBER_OF_NOTES - 1 : NoteMapping.NO_SAMPLE,
+					ends.getSample(12 + i), "octave 8: sample of key " + (12 + i));
+		}
+		expectEquals(60, NoteMapping.FIRST_MIDI_NOTE + NoteMapping.getNote(4, 0), "C4 is MIDI 60");
+		// Moving octaves, up to the ends
+		NoteMapping shifted = octaves35.shifted(1);
+		expect(shifted != null && shifted.getOctave(0) == 4 && shifted.getOctave(1) == 6,
+				"35 moved up an octave");
+		expect(octaves35.shifted(3) != null, "35 moved up to octave 8");
+		expect(octaves35.shifted(4) == null, "35 moved beyond C8");
+		expect(octaves35.shifted(-3) != null, "35 moved down to octave 0");
+		expect(octaves35.shifted(-4) == null, "35 moved below A0");
+		// Dynamic layers
+		for (int layer = 0; layer < NoteMapping.NUMBER_OF_LAYERS; layer++) {
+			int sample = octaves35.getSample(5, layer);
+			expectEquals(layer * NoteMapping.NUMBER_OF_NOTES + octaves35.getSample(5), sample,
+					"sample of key 5 in layer " + layer);
+			expectEquals(layer, NoteMapping.getLayer(sample), "layer of sample " + sample);
+			expectEquals(octaves35.getSample(5), NoteMapping.getNote(sample), "note of sample " + sample);
+		}
+		expectEquals(NoteMapping.NO_SAMPLE, ends.getSample(0, NoteMapping.LAYER_FF),
+				"ff sample of a key below A0");
+	}
+
+	// Number of the bundled sample file (note0.ogg to note35.ogg) of a key
+	private static int bundledFile(NoteMapping mapping, int key) {
+		return mapping.getSample(key) - NoteMapping.FIRST_BUNDLED_NOTE;
+	}
+}
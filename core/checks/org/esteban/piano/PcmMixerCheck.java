@@ -0,0 +1,119 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.util.Arrays;
+
+// Check of the placement of sounds by the mixer (see PcmMixer): a sample of
+// constant level started and released at output frames inside blocks must sound
+// from its start frame, fade out from its release frame, and be silent after.
+// Also checks the limiter of the 16 bit output: quiet mixes go through as they are,
+// and loud ones are compressed below the full scale instead of clipped.
+public class PcmMixerCheck extends Check {
+	private static final int SAMPLE_RATE = 1000;
+	private static final int BLOCK_FRAMES = 64;
+	private static final int BLOCKS = 8;
+	private static final int FADE_FRAMES = 10;
+	// level of the sample: half of the full scale
+	private static final float LEVEL = 0.5f;
+	private static final float TOLERANCE = 1e-4f;
+
+	public static void main(String[] args) throws Exception {
+		main(new PcmMixerCheck());
+	}
+
+	@Override
+	protected void run() {
+		short[] data = new short[SAMPLE_RATE];
+		Arrays.fill(data, (short) (LEVEL * 32768));
+		PcmSample sample = new PcmSample(data, 1, SAMPLE_RATE);
+		// Started and released in the middle of blocks, the release given first
+		// for a later frame, then for an earlier one
+		PcmMixer mixer = new PcmMixer(SAMPLE_RATE, BLOCK_FRAMES, 4);
+		int voice = mixer.start(sample, 1.0f, 1.0f, 100);
+		mixer.release(voice, FADE_FRAMES, 400);
+		mixer.release(voice, FADE_FRAMES, 300);
+		expectLevels(mix(mixer), 100, 300, "started at 100, released at 300");
+		expect(!mixer.isPlaying(voice), "voice freed after its release");
+		// Released before it starts: it fades out from its start
+		mixer = new PcmMixer(SAMPLE_RATE, BLOCK_FRAMES, 4);
+		voice = mixer.start(sample, 1.0f, 1.0f, 200);
+		mixer.release(voice, FADE_FRAMES, 150);
+		expectLevels(mix(mixer), 200, 200, "started at 200, released at 150");
+		// Released at a frame already mixed: right away, in the next block
+		mixer = new PcmMixer(SAMPLE_RATE, BLOCK_FRAMES, 4);
+		voice = mixer.start(sample, 1.0f, 1.0f);
+		float[] block = new float[BLOCK_FRAMES * PcmMixer.CHANNELS];
+		mixer.mix(block);
+		mixer.release(voice, FADE_FRAMES, 10);
+		float[] out = mix(mixer);
+		expectLevels(out, 0, 0, "released at a frame already mixed");
+		// A single voice below the knee of the limiter, then 2 and 8 voices beyond
+		// the full scale
+		expectEquals(13106, mix16(sample, 0.8f, 1), "16 bit value of a voice at 0.4");
+		int twoVoices = mix16(sample, 1.0f, 2);
+		expect(twoVoices > 0.85f * 32767 && twoVoices < 0.9f * 32767,
+				"16 bit value of 2 voices at 0.5: " + twoVoices);
+		int eightVoices = mix16(sample, 1.0f, 8);
+		expect(eightVoices > twoVoices && eightVoices < 32767,
+				"16 bit value of 8 voices at 0.5: " + eightVoices);
+	}
+
+	// Value of the first frame of the 16 bit mix of some voices at a gain
+	private static int mix16(PcmSample sample, float gain, int voices) {
+		PcmMixer mixer = new PcmMixer(SAMPLE_RATE, BLOCK_FRAMES, voices);
+		for (int i = 0; i < voices; i++) {
+			mixer.start(sample, gain);
+		}
+		short[] block = new short[BLOCK_FRAMES * PcmMixer.CHANNELS];
+		mixer.mix(block);
+		return block[0];
+	}
+
+	// Expect a constant level from a start to a release frame, then a fade out to
+	// silence
+	private void expectLevels(float[] out, int startFrame, int releaseFrame, String what) {
+		int wrong = 0;
+		for (int frame = 0; frame < BLOCKS * BLOCK_FRAMES; frame++) {
+			float expected = 0.0f;
+			if (frame >= startFrame && frame < releaseFrame) {
+				expected = LEVEL;
+			} else if (frame >= releaseFrame && frame < releaseFrame + FADE_FRAMES) {
+				expected = LEVEL * (1.0f - (float) (frame - releaseFrame) / FADE_FRAMES);
+			}
+			for (int channel = 0; channel < PcmMixer.CHANNELS; channel++) {
+				if (Math.abs(out[frame * PcmMixer.CHANNELS + channel] - expected) > TOLERANCE) {
+					wrong++;
+				}
+			}
+		}
+		expectEquals(0, wrong, what + ": values off");
+	}
+
+	// Mix some blocks
+	private static float[] mix(PcmMixer mixer) {
+		float[] out = new float[BLOCKS * BLOCK_FRAMES * PcmMixer.CHANNELS];
+		float[] block = new float[BLOCK_FRAMES * PcmMixer.CHANNELS];
+		for (int i = 0; i < BLOCKS; i++) {
+			mixer.mix(block);
+			System.arraycopy(block, 0, out, i * block.length, block.length);
+		}
+		return out;
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Check of the sharing of samples between notes (see RootMapping), with the
+// samples copy-and-rename-audio-files.sh copies for each spacing: note<n> for every
+// n multiple of the spacing, counting the bundled notes from C3. Every bundled
+// note must be played from one of them, closer than the spacing (half of it but
+// past the last root), and at its own pitch.
+public class RootMappingCheck extends Check {
+	private static final int MAX_SPACING = 4;
+	// most semitones the mixer plays a sample away from its pitch
+	private static final int MAX_SHIFT = 36;
+
+	public static void main(String[] args) throws Exception {
+		main(new RootMappingCheck());
+	}
+
+	@Override
+	protected void run() {
+		for (int spacing = 1; spacing <= MAX_SPACING; spacing++) {
+			// The samples copied by the script, in the mf layer
+			boolean[] availableSamples = new boolean[NoteMapping.NUMBER_OF_SAMPLES];
+			for (int n = 0; n < NoteMapping.NUMBER_OF_BUNDLED_NOTES; n++) {
+				availableSamples[NoteMapping.FIRST_BUNDLED_NOTE + n] = (n % spacing == 0);
+			}
+			RootMapping mapping = new RootMapping(spacing, availableSamples, MAX_SHIFT);
+			for (int n = 0; n < NoteMapping.NUMBER_OF_BUNDLED_NOTES; n++) {
+				int note = NoteMapping.FIRST_BUNDLED_NOTE + n;
+				int root = mapping.getRoot(note);
+				String name = "spacing " + spacing + ", note" + n;
+				expect(root != NoteMapping.NO_SAMPLE && availableSamples[root],
+						name + ": root " + root + " copied");
+				expect(Math.abs(root - note) < spacing, name + ": root " + root + " near");
+				double pitch = Math.log(mapping.getRate(note)) / Math.log(2.0) * 12.0;
+				expect(Math.abs(pitch - (note - root)) < 1e-3, name + ": rate " + mapping.getRate(note));
+			}
+			// Notes beyond the bundled ones, down to the most the samples can be shifted
+			expectEquals(NoteMapping.FIRST_BUNDLED_NOTE, mapping.getRoot(0),
+					"spacing " + spacing + ": root of A0");
+		}
+	}
+}
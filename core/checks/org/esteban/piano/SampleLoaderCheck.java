@@ -0,0 +1,90 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.util.Arrays;
+
+// Check of the background loading of samples (see SampleLoader): a sample asked
+// for again while a worker loads it isn't loaded a second time at once, and urgent
+// requests go before the others.
+public class SampleLoaderCheck extends Check implements SampleLoader.Listener {
+	private static final int SAMPLES = 16;
+	// longest wait for the workers
+	private static final long TIMEOUT_MILLIS = 5000;
+	private boolean allReady;
+
+	public static void main(String[] args) throws Exception {
+		main(new SampleLoaderCheck());
+	}
+
+	@Override
+	protected void run() throws InterruptedException {
+		// A sample requested again, in both ways, while a worker loads it, with
+		// other workers idle
+		FakeAudioEngine engine = new FakeAudioEngine(SAMPLES, 1);
+		SampleLoader loader = new SampleLoader(engine, SAMPLES, 4, this);
+		engine.setHeld(true);
+		loader.request(5);
+		expect(engine.awaitLoading(5, TIMEOUT_MILLIS), "sample being loaded");
+		loader.requestFirst(5);
+		loader.request(5);
+		expectEquals(1, loader.getPending(), "pending samples while loading one");
+		engine.setHeld(false);
+		expect(awaitAllReady(), "every sample ready");
+		expectEquals(1, engine.getMaxLoadingAtOnce(), "loads of a sample at once");
+		expect(engine.getLoaded().equals(Arrays.asList(5)), "samples loaded: " + engine.getLoaded());
+		loader.shutdown();
+		// Urgent requests first, while the only worker is busy
+		engine = new FakeAudioEngine(SAMPLES, 1);
+		loader = new SampleLoader(engine, SAMPLES, 1, this);
+		engine.setHeld(true);
+		loader.request(1);
+		expect(engine.awaitLoading(1, TIMEOUT_MILLIS), "first sample being loaded");
+		loader.request(2);
+		loader.request(3);
+		loader.requestFirst(4);
+		loader.requestFirst(3);
+		engine.setHeld(false);
+		expect(awaitAllReady(), "every sample ready");
+		expect(engine.getLoaded().equals(Arrays.asList(1, 3, 4, 2)),
+				"loading order: " + engine.getLoaded());
+		loader.shutdown();
+	}
+
+	// Wait until the loader reports every sample ready
+	private synchronized boolean awaitAllReady() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!allReady && System.currentTimeMillis() < deadline) {
+			wait(Math.max(1, deadline - System.currentTimeMillis()));
+		}
+		boolean ready = allReady;
+		allReady = false;
+		return ready;
+	}
+
+	@Override
+	public void onSampleReady(int sample) {
+	}
+
+	@Override
+	public synchronized void onAllSamplesReady(long millis) {
+		allReady = true;
+		notifyAll();
+	}
+}
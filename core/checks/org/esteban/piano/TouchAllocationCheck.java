@@ -0,0 +1,163 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+// Check that the touch path allocates no memory once running: copying the
+// pointers of an event (see TouchPoints), finding their keys and diffing them with
+// the previous event (see TouchKeys and PressedKeys), and handing the changes to a
+// listener that works out the sample and velocity of each key pressed, as
+// PianoLayout does. Events of 1 to 10 pointers, which go down, slide over the keys
+// and the pedal strip, and go up, are handled until the classes are loaded and the
+// JIT compiled them (compiling and switching to compiled code allocate a little,
+// once), then again while the bytes allocated by the thread are counted, which
+// must stay at 0. Run with -Xint, it checks the code as written, without the
+// allocations the JIT can remove.
+public class TouchAllocationCheck extends Check implements TouchKeys.Listener {
+	private static final float WIDTH = 1280.0f;
+	private static final float HEIGHT = 800.0f;
+	private static final float TOP = 50.0f;
+	private static final float BOTTOM = 750.0f;
+	private static final int ROWS = 2;
+	private static final int OCTAVES_PER_ROW = 2;
+	private static final int MAX_POINTERS = 10;
+	// events of each gesture, and passes over all the gestures before and while
+	// counting
+	private static final int GESTURE_EVENTS = 200;
+	private static final int WARM_UP_PASSES = 100;
+	private static final int COUNTED_PASSES = 20;
+	private static final float STEP = 15.0f;
+	private final KeyboardLayout layout;
+	private final NoteMapping noteMapping;
+	private final RootMapping rootMapping;
+	private final VelocityMap velocityMap;
+	private final TouchPoints points;
+	private final TouchKeys touchKeys;
+	private final Random random;
+	// pointers of the gesture: positions, pressures and sizes
+	private final float[] xs, ys, pressures, sizes;
+	// work done by the listener, so it isn't optimized away
+	private int pressed, released, velocities;
+
+	// Constructor
+	private TouchAllocationCheck() {
+		layout = new KeyboardLayout(ROWS, OCTAVES_PER_ROW);
+		layout.place(WIDTH, TOP, BOTTOM, false);
+		noteMapping = NoteMapping.forPreference("35", ROWS, OCTAVES_PER_ROW);
+		boolean[] availableSamples = new boolean[NoteMapping.NUMBER_OF_SAMPLES];
+		for (int i = 0; i < NoteMapping.NUMBER_OF_BUNDLED_NOTES; i++) {
+			availableSamples[NoteMapping.FIRST_BUNDLED_NOTE + i] = true;
+		}
+		rootMapping = new RootMapping(1, availableSamples, 12);
+		velocityMap = new VelocityMap(0.6f, 0.5f, VelocityMap.findPlayableLayers(rootMapping));
+		points = new TouchPoints();
+		touchKeys = new TouchKeys(layout);
+		random = new Random(1);
+		xs = new float[MAX_POINTERS];
+		ys = new float[MAX_POINTERS];
+		pressures = new float[MAX_POINTERS];
+		sizes = new float[MAX_POINTERS];
+	}
+
+	public static void main(String[] args) throws Exception {
+		main(new TouchAllocationCheck());
+	}
+
+	@Override
+	protected void run() {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		expect(threads.isThreadAllocatedMemorySupported(), "counting of allocated bytes");
+		long thread = Thread.currentThread().getId();
+		for (int pass = 0; pass < WARM_UP_PASSES; pass++) {
+			handleGestures();
+		}
+		// Bytes allocated by counting alone, taken off the count
+		long start = threads.getThreadAllocatedBytes(thread);
+		long counting = threads.getThreadAllocatedBytes(thread) - start;
+		start = threads.getThreadAllocatedBytes(thread);
+		for (int pass = 0; pass < COUNTED_PASSES; pass++) {
+			handleGestures();
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - start - counting;
+		expect(pressed > 0 && released > 0, "keys pressed and released");
+		expectEquals(0, allocated, "bytes allocated by " + COUNTED_PASSES * MAX_POINTERS
+				* GESTURE_EVENTS + " touch events");
+	}
+
+	// A gesture with each number of pointers
+	private void handleGestures() {
+		for (int count = 1; count <= MAX_POINTERS; count++) {
+			for (int pointer = 0; pointer < count; pointer++) {
+				xs[pointer] = random.nextFloat() * WIDTH;
+				ys[pointer] = TOP + random.nextFloat() * (HEIGHT - TOP);
+				pressures[pointer] = random.nextFloat();
+				sizes[pointer] = random.nextFloat();
+				handleEvent(pointer == 0 ? TouchPoints.ACTION_DOWN : TouchPoints.ACTION_POINTER_DOWN,
+						pointer, pointer + 1);
+			}
+			for (int event = 0; event < GESTURE_EVENTS; event++) {
+				for (int pointer = 0; pointer < count; pointer++) {
+					xs[pointer] = Math.max(0.0f, Math.min(WIDTH - 1,
+							xs[pointer] + (random.nextFloat() - 0.5f) * 2 * STEP));
+					ys[pointer] = Math.max(TOP, Math.min(HEIGHT - 1,
+							ys[pointer] + (random.nextFloat() - 0.5f) * 2 * STEP));
+				}
+				handleEvent(TouchPoints.ACTION_MOVE, 0, count);
+			}
+			for (int pointer = count - 1; pointer >= 0; pointer--) {
+				handleEvent(pointer == 0 ? TouchPoints.ACTION_UP : TouchPoints.ACTION_POINTER_UP,
+						pointer, pointer + 1);
+			}
+		}
+	}
+
+	// Handle an event with some of the pointers, as PianoLayout.onTouchEvent
+	private void handleEvent(int action, int actionIndex, int count) {
+		points.set(action, actionIndex, 0);
+		for (int pointer = 0; pointer < count; pointer++) {
+			points.add(pointer, xs[pointer], ys[pointer], pressures[pointer], sizes[pointer]);
+		}
+		touchKeys.find(points, velocityMap);
+		touchKeys.dispatch(this);
+	}
+
+	@Override
+	public void onPedalTouched(boolean touched) {
+	}
+
+	@Override
+	public void onKeyPressed(int key, float strength) {
+		int velocity = velocityMap.getVelocity(strength);
+		int sample = velocityMap.getLayer(velocity) * NoteMapping.NUMBER_OF_NOTES
+				+ noteMapping.getSample(key);
+		if (noteMapping.getSample(key) != NoteMapping.NO_SAMPLE
+				&& rootMapping.getRoot(sample) != NoteMapping.NO_SAMPLE) {
+			velocities += velocity;
+		}
+		pressed++;
+	}
+
+	@Override
+	public void onKeyReleased(int key) {
+		released++;
+	}
+}
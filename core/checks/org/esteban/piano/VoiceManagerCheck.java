@@ -0,0 +1,108 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Check of the voice allocation (see VoiceManager) with an engine that plays
+// nothing (see FakeAudioEngine): inaudible voices are only reclaimed for released
+// keys, by fading them out, and the decay of notes started later counts from
+// their start; stolen and retriggered voices are faded out too, but only once the
+// new sound plays. Notes given ahead of time, as a playback does, have their
+// starts and releases placed at their own times.
+public class VoiceManagerCheck extends Check {
+	private static final int KEYS = 8;
+	private static final long SECOND = 1000000000L;
+	private static final long MILLISECOND = 1000000L;
+
+	public static void main(String[] args) throws Exception {
+		main(new VoiceManagerCheck());
+	}
+
+	@Override
+	protected void run() {
+		// A held key keeps its voice however long, and a sustained one loses it,
+		// faded out, once inaudible (-60 dB after some 5 s)
+		FakeAudioEngine engine = new FakeAudioEngine(NoteMapping.NUMBER_OF_SAMPLES, 4);
+		VoiceManager voices = new VoiceManager(engine, KEYS);
+		voices.noteOn(0, 30, 1.0f, 1.0f);
+		voices.setSustain(true);
+		voices.noteOn(1, 31, 1.0f, 1.0f);
+		voices.noteOff(1);
+		expectEquals(VoiceManager.NOTE_SUSTAINED, voices.getNoteState(1), "state of a sustained key");
+		engine.setClockNanos(10 * SECOND);
+		expectEquals(1, voices.getActiveVoices(), "voices after 10 s");
+		expectEquals(VoiceManager.NOTE_HELD, voices.getNoteState(0), "state of a held key");
+		expect(!engine.isFadedOut(1) && !engine.isStopped(1), "held voice kept");
+		expect(engine.isFadedOut(2), "inaudible sustained voice faded out");
+		expect(!engine.isStopped(2), "inaudible sustained voice not cut");
+		expectEquals(VoiceManager.NOTE_IDLE, voices.getNoteState(1), "state of a reclaimed key");
+		// A note started 4 s later decays from then
+		engine = new FakeAudioEngine(NoteMapping.NUMBER_OF_SAMPLES, 4);
+		voices = new VoiceManager(engine, KEYS);
+		voices.setSustain(true);
+		voices.noteOn(2, 32, 1.0f, 1.0f, 4 * SECOND);
+		voices.noteOff(2);
+		expectEquals(4 * SECOND, engine.getStartNanos(1), "start time given to the engine");
+		engine.setClockNanos(6 * SECOND);
+		expectEquals(1, voices.getActiveVoices(), "voices 2 s after a later start");
+		engine.setClockNanos(10 * SECOND);
+		expectEquals(0, voices.getActiveVoices(), "voices 6 s after a later start");
+		expect(engine.isFadedOut(1), "voice started later faded out");
+		// With every voice busy, the voice of a released key is stolen before the
+		// held ones, and a key struck again fades its sound out
+		engine = new FakeAudioEngine(NoteMapping.NUMBER_OF_SAMPLES, 2);
+		voices = new VoiceManager(engine, KEYS);
+		voices.setSustain(true);
+		voices.noteOn(3, 33, 1.0f, 1.0f);
+		voices.noteOff(3);
+		voices.noteOn(4, 34, 0.5f, 1.0f);
+		voices.noteOn(5, 35, 0.5f, 1.0f);
+		expect(engine.isFadedOut(1) && !engine.isFadedOut(2), "released voice stolen");
+		voices.noteOn(4, 34, 0.5f, 1.0f);
+		expect(engine.isFadedOut(2), "retriggered voice faded out");
+		expectEquals(4, engine.getPlayed(), "sounds started");
+		expectEquals(2, voices.getActiveVoices(), "voices in use");
+		// A sample that can't play (not loaded yet) neither steals a voice nor damps
+		// its key
+		engine.setPlayable(36, false);
+		expect(!voices.noteOn(6, 36, 1.0f, 1.0f), "unplayable sample not played");
+		engine.setPlayable(34, false);
+		expect(!voices.noteOn(4, 34, 1.0f, 1.0f), "unplayable retriggered sample not played");
+		expect(!engine.isFadedOut(3) && !engine.isFadedOut(4), "voices kept for unplayable samples");
+		expectEquals(VoiceManager.NOTE_HELD, voices.getNoteState(4), "state of a key struck again in vain");
+		// A note repeated 40 ms after its release, all given 100 ms ahead (at the
+		// time 0) in order: the first note is released at its own time, and its
+		// release doesn't touch the second one; the pedal is placed the same way
+		engine = new FakeAudioEngine(NoteMapping.NUMBER_OF_SAMPLES, 4);
+		voices = new VoiceManager(engine, KEYS);
+		voices.noteOn(7, 37, 1.0f, 1.0f, 50 * MILLISECOND);
+		voices.noteOff(7, 80 * MILLISECOND);
+		voices.noteOn(7, 37, 1.0f, 1.0f, 120 * MILLISECOND);
+		voices.noteOff(7, 200 * MILLISECOND);
+		expectEquals(120 * MILLISECOND, engine.getStartNanos(2), "start of the repeated note");
+		expectEquals(80 * MILLISECOND, engine.getFadeOutNanos(1), "release of the first note");
+		expectEquals(200 * MILLISECOND, engine.getFadeOutNanos(2), "release of the repeated note");
+		voices.setSustain(true, 210 * MILLISECOND);
+		voices.noteOn(7, 37, 1.0f, 1.0f, 230 * MILLISECOND);
+		voices.noteOff(7, 250 * MILLISECOND);
+		expect(!engine.isFadedOut(3), "note released with the pedal down held");
+		voices.setSustain(false, 300 * MILLISECOND);
+		expect(engine.isFadedOut(3) && engine.getFadeOutNanos(3) == 300 * MILLISECOND,
+				"sustained note released with the pedal");
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Sound output used by the keyboard.
+// Samples are identified by their number in the complete set of notes and dynamic
+// layers (see NoteMapping).
+public interface AudioEngine {
+	// See if the audio of a sample is available (optional layers may be missing)
+	boolean hasSample(int sample);
+
+	// Make the sample of a note ready to be played. Returns once it is ready (or
+	// failed), so it may take long: call it from a background thread (SampleLoader).
+	void load(int sample);
+
+	// See if the sample of a note is ready to be played
+	boolean isReady(int sample);
+
+	// Free the sample of a note
+	void unload(int sample);
+
+	// Play the sample of a note, faster or slower by a rate that changes its pitch
+	// (1 for its own pitch, see getMaxPitchShift). Returns an identification to stop it
+	// later, or 0 if it couldn't be played (for instance, because it isn't ready yet).
+	int play(int sample, float volume, float rate);
+
+	// Play the sample of a note at a time of the engine clock (see getClockNanos),
+	// as close to it as the engine can, or right away if it already passed. The
+	// sound must be started ahead of time to be placed accurately.
+	int playAt(int sample, float volume, float rate, long startNanos);
+
+	// Time of the engine, to schedule sounds with playAt (may be read from any thread)
+	long getClockNanos();
+
+	// See if playAt and fadeOutAt place the sounds at their time (otherwise they act
+	// right away, and must be called at the time)
+	boolean canSchedule();
+
+	// Stop a sound started by play
+	void stop(int playId);
+
+	// Stop a sound started by play with a short fade out, to avoid clicks
+	void fadeOut(int playId);
+
+	// Same as fadeOut, from a time of the engine clock (see playAt), or right away
+	// if it already passed
+	void fadeOutAt(int playId, long stopNanos);
+
+	// See if a sound started by play may still be sounding
+	boolean isPlaying(int playId);
+
+	// Most semitones a sample can be played away from its own pitch
+	int getMaxPitchShift();
+
+	// Maximum sounds that can be played at the same time, besides the ones fading out
+	int getMaxVoices();
+
+	// Cache of the loaded samples, to query its statistics
+	SampleCache<?> getSampleCache();
+
+	// Free all resources
+	void release();
+}
@@ -0,0 +1,65 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Statistics of the time spent drawing frames and of the area redrawn
+public class FrameStats {
+	private int frames;
+	private long totalNanos, maxNanos;
+	private long totalPixels;
+
+	// Record a drawn frame
+	public void record(long nanos, long pixels) {
+		frames++;
+		totalNanos += nanos;
+		maxNanos = Math.max(maxNanos, nanos);
+		totalPixels += pixels;
+	}
+
+	public void reset() {
+		frames = 0;
+		totalNanos = 0;
+		maxNanos = 0;
+		totalPixels = 0;
+	}
+
+	public int getFrames() {
+		return frames;
+	}
+
+	// Average time per frame, in nanoseconds
+	public long getAverageNanos() {
+		return (frames > 0) ? totalNanos / frames : 0;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	// Average pixels redrawn per frame
+	public long getAveragePixels() {
+		return (frames > 0) ? totalPixels / frames : 0;
+	}
+
+	@Override
+	public String toString() {
+		return frames + " frames, average " + (getAverageNanos() / 1000) + " us, max "
+				+ (maxNanos / 1000) + " us, " + getAveragePixels() + " pixels redrawn per frame";
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esteban.piano;
+
+import java.util.Arrays;
+
+// Spatial index that finds the key under a point of the keyboard in constant time.
+// The keyboard is divided into a grid of equal cells, each one holding the note
+// number of the key that covers it. Key bounds are snapped to the grid, so the grid
+// must be fine enough for every key edge to fall on a cell boundary.
+public class KeyHitIndex {
+	// value returned when there is no key at a point
+	public static final int NO_KEY = -1;
+	// distance to a cell edge, in pixels, below which a point is taken as on the
+	// edge: the key edges are floats, a little off their exact places, and whole
+	// pixels are always farther from a cell edge (cells are wider than one pixel)
+	private static final float EDGE_TOLERANCE = 1.0f / 1024;
+	// grid dimensions, in cells
+	private final int columns, rows;
+	// note number of the key covering each cell, row after row
+	private final int[] cells;
+	// factors to convert view coordinates into cell coordinates
+	private float columnScale, rowScale;
+
+	// Constructor
+	public KeyHitIndex(int columns, int rows) {
+		if (columns <= 0 || rows <= 0) {
+			throw new IllegalArgumentException("Grid of " + columns + "x" + rows + " cells");
+		}
+		this.columns = columns;
+		this.rows = rows;
+		cells = new int[columns * rows];
+		Arrays.fill(cells, NO_KEY);
+	}
+
+	// Remove all keys and set the size of the area covered by the grid
+	public void reset(float width, float height) {
+		Arrays.fill(cells, NO_KEY);
+		columnScale = (width > 0.0f) ? columns / width : 0.0f;
+		rowScale = (height > 0.0f) ? rows / height : 0.0f;
+	}
+
+	// Add the bounding rectangle of a key. Keys added later cover the keys added
+	// before them, so white keys must be added before black keys.
+	public void addKey(int note, float left, float top, float right, float bottom) {
+		int firstColumn = Math.max(0, Math.round(left * columnScale));
+		int lastColumn = Math.min(columns, Math.round(right * columnScale));
+		int firstRow = Math.max(0, Math.round(top * rowScale));
+		int lastRow = Math.min(rows, Math.round(bottom * rowScale));
+		if (firstColumn >= lastColumn) {
+			return; // empty or outside the grid
+		}
+		for (int row = firstRow; row < lastRow; row++) {
+			Arrays.fill(cells, row * columns + firstColumn, row * columns + lastColumn, note);
+		}
+	}
+
+	// Get the note number of the key at a point, or NO_KEY if there is none
+	public int noteAt(float x, float y) {
+		if (!(x >= 0.0f && y >= 0.0f)) {
+			return NO_KEY; // also for NaN
+		}
+		int column = (int) ((x + EDGE_TOLERANCE) * columnScale);
+		int row = (int) ((y + EDGE_TOLERANCE) * rowScale);
+		if (column >= columns || row >= rows) {
+			return NO_KEY;
+		}
+		return cells[row * columns + column];
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Lock-free handoff of the key states from the thread that handles touches to the
+// thread that draws them, by triple buffering: the publisher fills a buffer of its
+// own and swaps it with the latest one, and the consumer swaps its buffer with the
+// latest one when there is a new one. Neither thread ever waits for the other.
+public class KeyStateHandoff {
+	// flag of the latest buffer index, set while the consumer hasn't taken it
+	private static final int NEW = 4;
+	private static final int INDEX = 3;
+	private final int[][] buffers;
+	// buffer being filled by the publisher
+	private int writeIndex;
+	// buffer being read by the consumer
+	private int readIndex;
+	// latest published buffer, with the NEW flag
+	private final AtomicInteger latest;
+
+	// Constructor
+	public KeyStateHandoff(int numberOfKeys) {
+		buffers = new int[3][numberOfKeys];
+		writeIndex = 0;
+		readIndex = 1;
+		latest = new AtomicInteger(2);
+	}
+
+	// Buffer to fill with the state of each key before publishing it (publisher only)
+	public int[] getWriteBuffer() {
+		return buffers[writeIndex];
+	}
+
+	// Make the filled buffer the latest states (publisher only)
+	public void publish() {
+		writeIndex = latest.getAndSet(writeIndex | NEW) & INDEX;
+	}
+
+	// Get the latest states if they changed since the last call, or null
+	// (consumer only; the buffer can be read until the next call)
+	public int[] take() {
+		if ((latest.get() & NEW) == 0) {
+			return null;
+		}
+		readIndex = latest.getAndSet(readIndex) & INDEX;
+		return buffers[readIndex];
+	}
+}
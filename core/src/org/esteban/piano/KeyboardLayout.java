@@ -0,0 +1,159 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esteban.piano;
+
+// Geometry of the keys of the keyboard, without drawing them: the shape and the
+// bounding rectangle of every key, and the index that finds the key under a point.
+// The keys are in rows of whole octaves across the width of the keyboard, between
+// a top and a bottom edge (the octave bar and the pedal). Every key edge is a
+// multiple of 1/168 of an octave width and 1/2 of a row height, so the hit-testing
+// grid has exactly that resolution.
+public class KeyboardLayout {
+	// key shapes (see KeySprites)
+	//  ___         __      __      __
+	// |  |        |  |    |  |    |  |
+	// |  |_      _|  |   _|  |_   |__|
+	// |    |    |    |  |      |
+	// |____|    |____|  |______|
+	//  C, F     E, B    D, G, A   black
+	public static final int SHAPE_CF = 0;
+	public static final int SHAPE_SYMMETRIC = 1;
+	public static final int SHAPE_EB = 2;
+	public static final int SHAPE_BLACK = 3;
+	public static final int NUMBER_OF_SHAPES = 4;
+	// value returned when there is no key at a point
+	public static final int NO_KEY = KeyHitIndex.NO_KEY;
+	// units of the width of an octave, and width of the keys in them
+	public static final int UNITS_PER_OCTAVE = 168;
+	public static final int WHITE_KEY_UNITS = 24;
+	public static final int BLACK_KEY_UNITS = 14;
+	private static final int HIT_INDEX_ROWS_PER_ROW = 2;
+	// shape and place of each key of an octave (from C to B), in units
+	private static final int[] SHAPES_IN_OCTAVE = {SHAPE_CF, SHAPE_BLACK, SHAPE_SYMMETRIC,
+			SHAPE_BLACK, SHAPE_EB, SHAPE_CF, SHAPE_BLACK, SHAPE_SYMMETRIC, SHAPE_BLACK,
+			SHAPE_SYMMETRIC, SHAPE_BLACK, SHAPE_EB};
+	private static final int[] PLACES_IN_OCTAVE = {0, 17, 24, 41, 48, 72, 89, 96, 113, 120, 137, 144};
+	private final int numberOfRows;
+	private final int octavesPerRow;
+	private final int numberOfKeys;
+	private final int[] keyShapes;
+	// left, top, right and bottom of each key, in view coordinates
+	private final float[] keyBounds;
+	private final KeyHitIndex hitIndex;
+	// size of an octave and a row, and top and bottom edges of the keys, once placed
+	private float octaveWidth, rowHeight;
+	private float top, bottom;
+
+	// Constructor, for some rows of some octaves each
+	public KeyboardLayout(int numberOfRows, int octavesPerRow) {
+		this.numberOfRows = numberOfRows;
+		this.octavesPerRow = octavesPerRow;
+		numberOfKeys = numberOfRows * octavesPerRow * NoteMapping.NOTES_PER_OCTAVE;
+		keyShapes = new int[numberOfKeys];
+		for (int i = 0; i < numberOfKeys; i++) {
+			keyShapes[i] = SHAPES_IN_OCTAVE[i % NoteMapping.NOTES_PER_OCTAVE];
+		}
+		keyBounds = new float[4 * numberOfKeys];
+		hitIndex = new KeyHitIndex(UNITS_PER_OCTAVE * octavesPerRow,
+				HIT_INDEX_ROWS_PER_ROW * numberOfRows);
+	}
+
+	// Place the keys across a width, between a top and a bottom edge. Lower rows
+	// go down, or up if the higher octaves are up.
+	public void place(float width, float top, float bottom, boolean higherOctaveUp) {
+		this.top = top;
+		this.bottom = bottom;
+		octaveWidth = width / octavesPerRow;
+		rowHeight = (bottom - top) / numberOfRows;
+		// Edges are worked out from their units with a single rounding, so that keys
+		// sharing an edge have the same one, and the last one is the width
+		int keysPerRow = octavesPerRow * NoteMapping.NOTES_PER_OCTAVE;
+		int unitsPerRow = octavesPerRow * UNITS_PER_OCTAVE;
+		int halfRows = HIT_INDEX_ROWS_PER_ROW * numberOfRows;
+		for (int i = 0; i < numberOfKeys; i++) {
+			int row = i / keysPerRow;
+			int rowOnScreen = higherOctaveUp ? (numberOfRows - 1 - row) : row;
+			int octaveInRow = (i % keysPerRow) / NoteMapping.NOTES_PER_OCTAVE;
+			boolean black = (keyShapes[i] == SHAPE_BLACK);
+			int left = octaveInRow * UNITS_PER_OCTAVE + PLACES_IN_OCTAVE[i % NoteMapping.NOTES_PER_OCTAVE];
+			int right = left + (black ? BLACK_KEY_UNITS : WHITE_KEY_UNITS);
+			int keyTop = rowOnScreen * HIT_INDEX_ROWS_PER_ROW;
+			int keyBottom = keyTop + (black ? 1 : HIT_INDEX_ROWS_PER_ROW);
+			keyBounds[4 * i] = left * width / unitsPerRow;
+			keyBounds[4 * i + 1] = top + keyTop * (bottom - top) / halfRows;
+			keyBounds[4 * i + 2] = right * width / unitsPerRow;
+			keyBounds[4 * i + 3] = top + keyBottom * (bottom - top) / halfRows;
+		}
+		// Fill the index, with white keys first because their bounding rectangles
+		// overlap with black keys
+		hitIndex.reset(width, bottom - top);
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < numberOfKeys; i++) {
+				if ((keyShapes[i] == SHAPE_BLACK) == (pass == 1)) {
+					hitIndex.addKey(i, keyBounds[4 * i], keyBounds[4 * i + 1] - top,
+							keyBounds[4 * i + 2], keyBounds[4 * i + 3] - top);
+				}
+			}
+		}
+	}
+
+	// Get the key at a point of the view, or NO_KEY if there is none
+	public int keyAt(float x, float y) {
+		return hitIndex.noteAt(x, y - top);
+	}
+
+	public int getNumberOfKeys() {
+		return numberOfKeys;
+	}
+
+	public int getShape(int key) {
+		return keyShapes[key];
+	}
+
+	public float getLeft(int key) {
+		return keyBounds[4 * key];
+	}
+
+	public float getTop(int key) {
+		return keyBounds[4 * key + 1];
+	}
+
+	public float getRight(int key) {
+		return keyBounds[4 * key + 2];
+	}
+
+	public float getBottom(int key) {
+		return keyBounds[4 * key + 3];
+	}
+
+	public float getOctaveWidth() {
+		return octaveWidth;
+	}
+
+	public float getRowHeight() {
+		return rowHeight;
+	}
+
+	public float getKeysTop() {
+		return top;
+	}
+
+	public float getKeysBottom() {
+		return bottom;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Keyboard layouts already placed, for the last few view sizes (one per
+// orientation), so that rotating the device back to a size already seen, even in
+// a new activity, reuses the placed keys and their hit-testing index.
+public class KeyboardLayoutCache {
+	// placed layouts, with the arguments they were created and placed with, most
+	// recently used first (null if unused)
+	private final KeyboardLayout[] layouts;
+	private final int[] rows, octaves;
+	private final float[] widths, tops, bottoms;
+	private final boolean[] higherOctavesUp;
+
+	// Constructor, for some layouts
+	public KeyboardLayoutCache(int capacity) {
+		layouts = new KeyboardLayout[capacity];
+		rows = new int[capacity];
+		octaves = new int[capacity];
+		widths = new float[capacity];
+		tops = new float[capacity];
+		bottoms = new float[capacity];
+		higherOctavesUp = new boolean[capacity];
+	}
+
+	// Get a layout of some rows of some octaves, placed across a width between a top
+	// and a bottom edge (see KeyboardLayout.place), placing a new one (instead of
+	// the least recently used) if there is none
+	public synchronized KeyboardLayout get(int numberOfRows, int octavesPerRow, float width,
+			float top, float bottom, boolean higherOctaveUp) {
+		int found = layouts.length - 1; // the least recently used, if not found
+		KeyboardLayout layout = null;
+		for (int i = 0; i < layouts.length; i++) {
+			if (layouts[i] != null && rows[i] == numberOfRows && octaves[i] == octavesPerRow
+					&& widths[i] == width && tops[i] == top && bottoms[i] == bottom
+					&& higherOctavesUp[i] == higherOctaveUp) {
+				found = i;
+				layout = layouts[i];
+				break;
+			}
+		}
+		if (layout == null) {
+			layout = new KeyboardLayout(numberOfRows, octavesPerRow);
+			layout.place(width, top, bottom, higherOctaveUp);
+		}
+		// Move it to the front
+		System.arraycopy(layouts, 0, layouts, 1, found);
+		System.arraycopy(rows, 0, rows, 1, found);
+		System.arraycopy(octaves, 0, octaves, 1, found);
+		System.arraycopy(widths, 0, widths, 1, found);
+		System.arraycopy(tops, 0, tops, 1, found);
+		System.arraycopy(bottoms, 0, bottoms, 1, found);
+		System.arraycopy(higherOctavesUp, 0, higherOctavesUp, 1, found);
+		layouts[0] = layout;
+		rows[0] = numberOfRows;
+		octaves[0] = octavesPerRow;
+		widths[0] = width;
+		tops[0] = top;
+		bottoms[0] = bottom;
+		higherOctavesUp[0] = higherOctaveUp;
+		return layout;
+	}
+
+	// Forget every layout
+	public synchronized void clear() {
+		for (int i = 0; i < layouts.length; i++) {
+			layouts[i] = null;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.PrintWriter;
+
+// Histogram of durations (latencies, frame times) with buckets of a fixed width,
+// allocated once so that recording doesn't allocate memory.
+// Durations longer than the last bucket are counted in it.
+public class LatencyHistogram {
+	private final long bucketNanos;
+	private final int[] counts;
+	private int count;
+	private long totalNanos, maxNanos;
+
+	// Constructor
+	public LatencyHistogram(long bucketNanos, int buckets) {
+		this.bucketNanos = bucketNanos;
+		counts = new int[buckets];
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		int bucket = (int) Math.min(nanos / bucketNanos, counts.length - 1);
+		counts[bucket]++;
+		count++;
+		totalNanos += nanos;
+		maxNanos = Math.max(maxNanos, nanos);
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		totalNanos = 0;
+		maxNanos = 0;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getMeanNanos() {
+		return (count > 0) ? totalNanos / count : 0;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	// Duration below which a fraction (0 to 1) of the recorded ones are, rounded up
+	// to the end of its bucket
+	public long getPercentileNanos(double fraction) {
+		long needed = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int bucket = 0; bucket < counts.length; bucket++) {
+			seen += counts[bucket];
+			if (seen >= needed && seen > 0) {
+				return Math.min((bucket + 1) * bucketNanos, maxNanos);
+			}
+		}
+		return maxNanos;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append(count).append(" samples, p50 ");
+		appendMillis(text, getPercentileNanos(0.5));
+		text.append(" ms, p99 ");
+		appendMillis(text, getPercentileNanos(0.99));
+		text.append(" ms, max ");
+		appendMillis(text, maxNanos);
+		return text.append(" ms").toString();
+	}
+
+	// Write the summary and the counts of the buckets used, one per line with the
+	// start of the bucket in milliseconds, to compare runs
+	public void dump(PrintWriter out, String name) {
+		out.println(name + ": " + this + ", mean " + (getMeanNanos() / 1000) + " us");
+		for (int bucket = 0; bucket < counts.length; bucket++) {
+			if (counts[bucket] > 0) {
+				StringBuilder line = new StringBuilder("  ");
+				appendMillis(line, bucket * bucketNanos);
+				out.println(line.append(' ').append(counts[bucket]));
+			}
+		}
+	}
+
+	// Append milliseconds with one decimal, without allocating memory (to update
+	// text often, as the statistics shown over the keyboard)
+	public static void appendMillis(StringBuilder text, long nanos) {
+		long tenths = (nanos + 50000) / 100000;
+		text.append(tenths / 10).append('.').append(tenths % 10);
+	}
+}
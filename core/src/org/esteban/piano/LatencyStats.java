@@ -0,0 +1,100 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Latencies of the stages between an input and its sound and picture, in
+// histograms allocated once, so tracing doesn't allocate memory:
+//   touch to hit test: from the time of a touch event until its keys are found
+//   touch to play: until their sounds are started (the engine adds its own latency)
+//   touch to frame: until the first frame showing the keys changed is drawn
+//   touch handling: time spent handling a touch event
+//   frame time: time spent drawing a frame
+//   MIDI to play: from the reception of a MIDI note until its sound is started
+// Times are of System.nanoTime, the clock of the event times too (as milliseconds
+// of SystemClock.uptimeMillis, so touch latencies are up to 1 ms long).
+// Each histogram is recorded by a single thread: the touch ones by the UI thread,
+// the frame ones by the thread that draws, the MIDI one by the MIDI thread. Others
+// may read them at any time, for approximate figures.
+public class LatencyStats {
+	public static final int TOUCH_TO_HIT_TEST = 0;
+	public static final int TOUCH_TO_PLAY = 1;
+	public static final int TOUCH_TO_FRAME = 2;
+	public static final int TOUCH_HANDLING = 3;
+	public static final int FRAME_TIME = 4;
+	public static final int MIDI_TO_PLAY = 5;
+	private static final String[] NAMES = {"Touch to hit test", "Touch to play", "Touch to frame",
+			"Touch handling", "Frame time", "MIDI to play"};
+	// 0.1 ms buckets up to 100 ms
+	private static final long BUCKET_NANOS = 100000;
+	private static final int BUCKETS = 1000;
+	// value of pendingInput when every change is drawn
+	private static final long NO_INPUT = Long.MIN_VALUE;
+	private final LatencyHistogram[] histograms;
+	// time of the first input whose changes aren't drawn yet
+	private final AtomicLong pendingInput;
+
+	// Constructor
+	public LatencyStats() {
+		histograms = new LatencyHistogram[NAMES.length];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram(BUCKET_NANOS, BUCKETS);
+		}
+		pendingInput = new AtomicLong(NO_INPUT);
+	}
+
+	public LatencyHistogram get(int stage) {
+		return histograms[stage];
+	}
+
+	// Record the time an input took to reach a stage
+	public void record(int stage, long inputNanos, long nowNanos) {
+		histograms[stage].record(nowNanos - inputNanos);
+	}
+
+	// Note that an input changed the keys: the next frame drawn shows it (unless an
+	// earlier input is still waiting for it)
+	public void keysChanged(long inputNanos) {
+		pendingInput.compareAndSet(NO_INPUT, inputNanos);
+	}
+
+	// Record a frame drawn between two times and shown at the end
+	public void frameDrawn(long startNanos, long endNanos) {
+		histograms[FRAME_TIME].record(endNanos - startNanos);
+		frameShown(endNanos);
+	}
+
+	// Record the latency of the input shown by a frame (for frames drawn at one time
+	// and shown at another)
+	public void frameShown(long nowNanos) {
+		long input = pendingInput.getAndSet(NO_INPUT);
+		if (input != NO_INPUT) {
+			histograms[TOUCH_TO_FRAME].record(nowNanos - input);
+		}
+	}
+
+	// Write every histogram, to compare devices and builds
+	public void dump(PrintWriter out) {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i].dump(out, NAMES[i]);
+		}
+	}
+}
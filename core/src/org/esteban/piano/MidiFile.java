@@ -0,0 +1,167 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Conversion of recorded performances (see PerformanceLog) to and from Standard
+// MIDI Files. Both ways stream through buffers of fixed size.
+// Exported files are format 0 (a single track, channel 1) with a tick per
+// millisecond: 500 ticks per quarter note at 120 quarter notes per minute. The
+// notes of the piano are MIDI notes 21 (A0) to 108 (C8), and the sustain pedal is
+// controller 64.
+public class MidiFile {
+	private static final int TICKS_PER_QUARTER = 500;
+	private static final int MICROS_PER_QUARTER = 500000;
+	private static final long NANOS_PER_TICK = MICROS_PER_QUARTER * 1000L / TICKS_PER_QUARTER;
+	// events converted at a time
+	private static final int BUFFER_EVENTS = 1024;
+	// bytes of the file header and of the track header
+	private static final int HEADER_BYTES = 14;
+	private static final int TRACK_HEADER_BYTES = 8;
+	// longest MIDI event written: 4 bytes of time and 3 of message
+	private static final int MAX_EVENT_BYTES = 7;
+
+	private MidiFile() {
+	}
+
+	// Convert a MIDI file into a performance log. Returns the events converted.
+	public static long toPerformance(FileChannel midi, FileChannel log) throws IOException {
+		MidiFileReader reader = new MidiFileReader(midi);
+		ByteBuffer buffer = PerformanceLog.allocate(BUFFER_EVENTS);
+		PerformanceLog.putHeader(buffer);
+		long events = 0;
+		long lastTime = 0;
+		while (reader.next()) {
+			if (buffer.remaining() < PerformanceLog.EVENT_BYTES) {
+				buffer.flip();
+				writeFully(log, buffer);
+				buffer.clear();
+			}
+			lastTime += PerformanceLog.putEvent(buffer, reader.getTimeNanos() - lastTime,
+					reader.getType(), reader.getNote(), reader.getValue());
+			events++;
+		}
+		buffer.flip();
+		writeFully(log, buffer);
+		return events;
+	}
+
+	// Convert a performance log into a MIDI file. Returns the events converted.
+	public static long fromPerformance(FileChannel log, FileChannel midi) throws IOException {
+		ByteBuffer in = PerformanceLog.allocate(BUFFER_EVENTS);
+		PerformanceLog.readHeader(log, in);
+		ByteBuffer out = ByteBuffer.allocate(BUFFER_EVENTS * MAX_EVENT_BYTES); // big endian
+		// File header and tempo, with the track length written at the end
+		out.putInt(0x4d546864); // "MThd"
+		out.putInt(6);
+		out.putShort((short) 0); // format
+		out.putShort((short) 1); // tracks
+		out.putShort((short) TICKS_PER_QUARTER);
+		out.putInt(0x4d54726b); // "MTrk"
+		out.putInt(0);
+		out.put(new byte[] {0, (byte) 0xff, 0x51, 3, (byte) (MICROS_PER_QUARTER >> 16),
+				(byte) (MICROS_PER_QUARTER >> 8), (byte) MICROS_PER_QUARTER});
+		long trackBytes = 7;
+		long events = 0;
+		long time = 0;
+		long lastTick = 0;
+		int runningStatus = 0;
+		boolean ended = false;
+		while (!ended) {
+			ended = PerformanceLog.readEvents(log, in);
+			for (; in.remaining() >= PerformanceLog.EVENT_BYTES;
+					in.position(in.position() + PerformanceLog.EVENT_BYTES)) {
+				time += PerformanceLog.getDeltaNanos(in);
+				int note = PerformanceLog.getNote(in);
+				int status;
+				int data1;
+				int data2;
+				switch (PerformanceLog.getType(in)) {
+				case PerformanceLog.NOTE_ON:
+					status = 0x90;
+					data1 = NoteMapping.FIRST_MIDI_NOTE + note;
+					data2 = Math.max(1, Math.min(PerformanceLog.getValue(in), 127));
+					break;
+				case PerformanceLog.NOTE_OFF:
+					status = 0x80;
+					data1 = NoteMapping.FIRST_MIDI_NOTE + note;
+					data2 = 64;
+					break;
+				case PerformanceLog.PEDAL:
+					status = 0xb0;
+					data1 = 64;
+					data2 = (PerformanceLog.getValue(in) != 0) ? 127 : 0;
+					break;
+				default:
+					continue; // unknown events are skipped
+				}
+				if (data1 > 127) {
+					continue;
+				}
+				// Ticks from the total time, so that rounding doesn't add up
+				long tick = (time + NANOS_PER_TICK / 2) / NANOS_PER_TICK;
+				if (out.remaining() < MAX_EVENT_BYTES) {
+					out.flip();
+					writeFully(midi, out);
+					out.clear();
+				}
+				int start = out.position();
+				putVariableLength(out, (int) Math.min(tick - lastTick, 0x0fffffff));
+				if (status != runningStatus) {
+					out.put((byte) status);
+					runningStatus = status;
+				}
+				out.put((byte) data1);
+				out.put((byte) data2);
+				trackBytes += out.position() - start;
+				lastTick = tick;
+				events++;
+			}
+		}
+		out.put(new byte[] {0, (byte) 0xff, 0x2f, 0}); // end of track
+		trackBytes += 4;
+		out.flip();
+		writeFully(midi, out);
+		// Track length
+		ByteBuffer length = ByteBuffer.allocate(4);
+		length.putInt((int) trackBytes);
+		length.flip();
+		midi.position(HEADER_BYTES + TRACK_HEADER_BYTES - 4);
+		writeFully(midi, length);
+		return events;
+	}
+
+	private static void putVariableLength(ByteBuffer buffer, int value) {
+		for (int shift = 21; shift > 0; shift -= 7) {
+			if (value >> shift != 0) {
+				buffer.put((byte) (0x80 | ((value >> shift) & 0x7f)));
+			}
+		}
+		buffer.put((byte) (value & 0x7f));
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Streaming reader of the piano events of a Standard MIDI File (format 0 or 1).
+// Each track is read through its own small buffer from its place in the file, and
+// the tracks are merged in time order as they are read, so files of any size are
+// read without holding them in memory. Tempo changes of any track apply to all of
+// them, as in format 1 files.
+// Notes outside the piano and the percussion channel (10) are skipped, as are the
+// events other than notes and the sustain pedal (controller 64).
+// Usage: next() until it returns false, reading the parts of each event.
+public class MidiFileReader {
+	// bytes read from the file at a time for each track
+	private static final int TRACK_BUFFER_BYTES = 4096;
+	// tempo until the file sets one (120 quarter notes per minute)
+	private static final int DEFAULT_MICROS_PER_QUARTER = 500000;
+	private static final int PERCUSSION_CHANNEL = 9;
+	private static final int SUSTAIN_CONTROLLER = 64;
+
+	// A track being read
+	private static class Track {
+		// next byte of the file to read into the buffer, and end of the track
+		long position;
+		final long end;
+		final ByteBuffer buffer;
+		// status of the previous channel event, for running status, or 0
+		int runningStatus;
+		// tick of the next event, unless the track ended
+		long tick;
+		boolean ended;
+
+		// Constructor
+		Track(long start, long end) {
+			position = start;
+			this.end = end;
+			buffer = ByteBuffer.allocate(TRACK_BUFFER_BYTES);
+			buffer.limit(0);
+		}
+	}
+
+	private final FileChannel file;
+	private final Track[] tracks;
+	// ticks per quarter note, or 0 for SMPTE time (see nanosPerTick)
+	private final int ticksPerQuarter;
+	// tick and time of the last tempo change, and time per tick since then
+	private long tempoTick;
+	private long tempoNanos;
+	private double nanosPerTick;
+	// current event
+	private long timeNanos;
+	private int type;
+	private int note;
+	private int value;
+
+	// Constructor, reading the header and finding the tracks (the file must stay
+	// open while reading)
+	public MidiFileReader(FileChannel file) throws IOException {
+		this.file = file;
+		ByteBuffer header = ByteBuffer.allocate(14);
+		readFully(0, header);
+		if (header.getInt(0) != 0x4d546864) { // "MThd"
+			throw new IOException("Not a MIDI file");
+		}
+		int format = header.getShort(8);
+		int numberOfTracks = header.getShort(10) & 0xffff;
+		int division = header.getShort(12);
+		if (format < 0 || format > 1) {
+			throw new IOException("MIDI file format " + format + " not supported");
+		}
+		if (division > 0) {
+			ticksPerQuarter = division;
+			nanosPerTick = DEFAULT_MICROS_PER_QUARTER * 1000.0 / division;
+		} else {
+			// Frames per second (negative, -29 for 29.97) and ticks per frame
+			int framesPerSecond = -(division >> 8);
+			int ticksPerFrame = division & 0xff;
+			if (framesPerSecond <= 0 || ticksPerFrame == 0) {
+				throw new IOException("Bad MIDI time division " + division);
+			}
+			ticksPerQuarter = 0;
+			nanosPerTick = 1e9 / ((framesPerSecond == 29 ? 29.97 : framesPerSecond) * ticksPerFrame);
+		}
+		// Find the tracks, skipping other chunks
+		tracks = new Track[numberOfTracks];
+		long position = 8 + (header.getInt(4) & 0xffffffffL);
+		long size = file.size();
+		ByteBuffer chunk = ByteBuffer.allocate(8);
+		int found = 0;
+		while (found < numberOfTracks && position + 8 <= size) {
+			chunk.clear();
+			readFully(position, chunk);
+			long start = position + 8;
+			long end = Math.min(start + (chunk.getInt(4) & 0xffffffffL), size);
+			if (chunk.getInt(0) == 0x4d54726b) { // "MTrk"
+				tracks[found++] = new Track(start, end);
+			}
+			position = end;
+		}
+		if (found < numberOfTracks) {
+			throw new IOException("Truncated MIDI file: " + found + " of " + numberOfTracks + " tracks");
+		}
+		for (Track track : tracks) {
+			readDelta(track);
+		}
+	}
+
+	// Move to the next piano event. Returns false at the end of the file.
+	public boolean next() throws IOException {
+		while (true) {
+			// Track with the earliest event
+			Track track = null;
+			for (Track candidate : tracks) {
+				if (!candidate.ended && (track == null || candidate.tick < track.tick)) {
+					track = candidate;
+				}
+			}
+			if (track == null) {
+				return false;
+			}
+			boolean found = readEvent(track);
+			readDelta(track);
+			if (found) {
+				return true;
+			}
+		}
+	}
+
+	// Time of the event since the start of the file
+	public long getTimeNanos() {
+		return timeNanos;
+	}
+
+	// Type of the event, as in a PerformanceLog (NOTE_ON, NOTE_OFF or PEDAL)
+	public int getType() {
+		return type;
+	}
+
+	// Note of the event (0 for A0, see NoteMapping)
+	public int getNote() {
+		return note;
+	}
+
+	// Velocity of a note on, or 1 for a pedal down
+	public int getValue() {
+		return value;
+	}
+
+	// Read the event of a track at its tick. Returns true if it is a piano event.
+	private boolean readEvent(Track track) throws IOException {
+		int status = readByte(track);
+		if (status < 0x80) {
+			// Running status: the byte is the first data byte
+			if (track.runningStatus == 0) {
+				throw new IOException("MIDI event without status");
+			}
+			return readChannelEvent(track, track.runningStatus, status);
+		}
+		if (status < 0xf0) {
+			track.runningStatus = status;
+			return readChannelEvent(track, status, readByte(track));
+		}
+		if (status == 0xff) {
+			int metaType = readByte(track);
+			int length = readVariableLength(track);
+			if (metaType == 0x51 && length == 3) { // tempo
+				int micros = (readByte(track) << 16) | (readByte(track) << 8) | readByte(track);
+				if (ticksPerQuarter != 0) {
+					tempoNanos = timeAt(track.tick);
+					tempoTick = track.tick;
+					nanosPerTick = micros * 1000.0 / ticksPerQuarter;
+				}
+			} else if (metaType == 0x2f) { // end of track
+				track.ended = true;
+			} else {
+				skip(track, length);
+			}
+			return false;
+		}
+		// System exclusive, or other system messages (not expected in files)
+		track.runningStatus = 0;
+		if (status == 0xf0 || status == 0xf7) {
+			skip(track, readVariableLength(track));
+		}
+		return false;
+	}
+
+	// Read the rest of a channel event with a status and its first data byte
+	private boolean readChannelEvent(Track track, int status, int data1) throws IOException {
+		int command = status & 0xf0;
+		if (command == 0xc0 || command == 0xd0) {
+			return false; // a single data byte
+		}
+		int data2 = readByte(track);
+		if ((status & 0x0f) == PERCUSSION_CHANNEL) {
+			return false;
+		}
+		switch (command) {
+		case 0x90:
+		case 0x80:
+			int pianoNote = data1 - NoteMapping.FIRST_MIDI_NOTE;
+			if (pianoNote < 0 || pianoNote >= NoteMapping.NUMBER_OF_NOTES) {
+				return false;
+			}
+			boolean on = (command == 0x90) && (data2 > 0); // note on velocity 0 is a note off
+			setEvent(track, on ? PerformanceLog.NOTE_ON : PerformanceLog.NOTE_OFF, pianoNote,
+					on ? data2 : 0);
+			return true;
+		case 0xb0:
+			if (data1 != SUSTAIN_CONTROLLER) {
+				return false;
+			}
+			setEvent(track, PerformanceLog.PEDAL, 0, (data2 >= 64) ? 1 : 0);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void setEvent(Track track, int eventType, int eventNote, int eventValue) {
+		timeNanos = timeAt(track.tick);
+		type = eventType;
+		note = eventNote;
+		value = eventValue;
+	}
+
+	// Time of a tick at the current tempo
+	private long timeAt(long tick) {
+		return tempoNanos + (long) ((tick - tempoTick) * nanosPerTick);
+	}
+
+	// Read the time to the next event of a track, or mark it as ended
+	private void readDelta(Track track) throws IOException {
+		if (track.ended || (track.position >= track.end && !track.buffer.hasRemaining())) {
+			track.ended = true; // also without end of track event
+			return;
+		}
+		track.tick += readVariableLength(track);
+	}
+
+	private int readVariableLength(Track track) throws IOException {
+		int result = 0;
+		for (int i = 0; i < 4; i++) {
+			int b = readByte(track);
+			result = (result << 7) | (b & 0x7f);
+			if (b < 0x80) {
+				return result;
+			}
+		}
+		throw new IOException("Bad MIDI variable length number");
+	}
+
+	private int readByte(Track track) throws IOException {
+		if (!track.buffer.hasRemaining()) {
+			fill(track);
+		}
+		return track.buffer.get() & 0xff;
+	}
+
+	private void skip(Track track, int length) throws IOException {
+		int buffered = Math.min(length, track.buffer.remaining());
+		track.buffer.position(track.buffer.position() + buffered);
+		track.position += length - buffered;
+		if (track.position > track.end) {
+			throw new IOException("Truncated MIDI track");
+		}
+	}
+
+	// Read the next part of a track into its buffer
+	private void fill(Track track) throws IOException {
+		long remaining = track.end - track.position;
+		if (remaining <= 0) {
+			throw new IOException("Truncated MIDI track");
+		}
+		track.buffer.clear();
+		track.buffer.limit((int) Math.min(remaining, track.buffer.capacity()));
+		readFully(track.position, track.buffer);
+		track.position += track.buffer.limit();
+		track.buffer.flip();
+	}
+
+	// Fill a buffer from a place of the file
+	private void readFully(long position, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = file.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Truncated MIDI file");
+			}
+			position += read;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Routes the notes and sustain pedal of a MIDI input (see UsbMidiInput) to a
+// listener, which plays them like the keys touched.
+// The input thread only parses the messages and puts the events into a
+// NoteEventQueue; a dispatch thread of the router takes them out and calls the
+// listener. So the input is never held up by the listener, and the listener runs
+// apart from the UI thread, whatever it is drawing. The dispatch thread can be
+// stopped and started again (for instance while the listener changes its audio
+// engine) without losing the events meanwhile, as long as they fit in the queue.
+// Pure Java, so it can be driven by any source of MIDI bytes.
+public class MidiRouter {
+	// Receives the events, from the dispatch thread, with the time they were
+	// received (of the clock of the input)
+	public interface Listener {
+		void onNoteOn(int note, int velocity, long timeNanos);
+		void onNoteOff(int note, long timeNanos);
+		void onPedal(boolean down, long timeNanos);
+	}
+
+	private static final int SUSTAIN_CONTROLLER = 64;
+	// longest sleep of the dispatch thread, so that it notices when it is stopped
+	private static final long IDLE_NANOS = 100 * 1000000L;
+	private final NoteEventQueue queue;
+	// state of the parser of MIDI bytes (only used by the input thread): status of
+	// the message being received, its data bytes, and whether a system exclusive
+	// message is being skipped
+	private int runningStatus;
+	private int data1;
+	private int dataBytes;
+	private boolean inSystemExclusive;
+	// dispatch thread, or null
+	private Thread dispatcher;
+	private volatile boolean dispatching;
+
+	// Constructor, with a queue of some events (a power of 2)
+	public MidiRouter(int capacity) {
+		queue = new NoteEventQueue(capacity);
+	}
+
+	// Route a MIDI channel message, from the input thread. Messages other than notes
+	// and the sustain pedal, and notes beyond the piano, are ignored. Returns false
+	// if the event was dropped because the queue was full.
+	public boolean send(int status, int data1, int data2, long timeNanos) {
+		switch (status & 0xf0) {
+		case 0x90:
+		case 0x80:
+			int note = data1 - NoteMapping.FIRST_MIDI_NOTE;
+			if (note < 0 || note >= NoteMapping.NUMBER_OF_NOTES) {
+				return true;
+			}
+			if ((status & 0xf0) == 0x90 && data2 > 0) { // note on velocity 0 is a note off
+				return queue.offer(PerformanceLog.NOTE_ON, note, data2, timeNanos);
+			}
+			return queue.offer(PerformanceLog.NOTE_OFF, note, 0, timeNanos);
+		case 0xb0:
+			if (data1 != SUSTAIN_CONTROLLER) {
+				return true;
+			}
+			return queue.offer(PerformanceLog.PEDAL, 0, (data2 >= 64) ? 1 : 0, timeNanos);
+		default:
+			return true;
+		}
+	}
+
+	// Route the messages of a stream of MIDI bytes, from the input thread. Messages
+	// can be split between calls, use running status and have real time bytes in
+	// between.
+	public void receive(byte[] bytes, int offset, int length, long timeNanos) {
+		for (int i = offset; i < offset + length; i++) {
+			int b = bytes[i] & 0xff;
+			if (b >= 0xf8) {
+				continue; // real time messages, which can come anywhere
+			}
+			if (b >= 0x80) {
+				inSystemExclusive = (b == 0xf0);
+				runningStatus = (b < 0xf0) ? b : 0; // system messages cancel running status
+				dataBytes = 0;
+				continue;
+			}
+			if (inSystemExclusive || runningStatus == 0) {
+				continue;
+			}
+			int command = runningStatus & 0xf0;
+			if (command == 0xc0 || command == 0xd0) {
+				continue; // single data byte messages, not routed
+			}
+			if (dataBytes == 0) {
+				data1 = b;
+				dataBytes = 1;
+			} else {
+				send(runningStatus, data1, b, timeNanos);
+				dataBytes = 0;
+			}
+		}
+	}
+
+	// Events dropped because the listener didn't keep up (read from the input thread)
+	public int getDropped() {
+		return queue.getDropped();
+	}
+
+	// Start calling a listener with the events, from a thread of the router
+	public synchronized void start(final Listener listener) {
+		if (dispatcher != null) {
+			return;
+		}
+		dispatching = true;
+		dispatcher = new Thread("MidiRouter") {
+			@Override
+			public void run() {
+				dispatch(listener);
+			}
+		};
+		dispatcher.setPriority(Thread.MAX_PRIORITY);
+		queue.setConsumer(dispatcher);
+		dispatcher.start();
+	}
+
+	// Stop calling the listener, waiting for the dispatch thread to end
+	public synchronized void stop() {
+		if (dispatcher == null) {
+			return;
+		}
+		dispatching = false;
+		queue.setConsumer(null);
+		LockSupport.unpark(dispatcher);
+		try {
+			dispatcher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		dispatcher = null;
+	}
+
+	private void dispatch(Listener listener) {
+		while (dispatching) {
+			while (dispatching && queue.poll()) {
+				long time = queue.getTimeNanos();
+				switch (queue.getType()) {
+				case PerformanceLog.NOTE_ON:
+					listener.onNoteOn(queue.getNote(), queue.getValue(), time);
+					break;
+				case PerformanceLog.NOTE_OFF:
+					listener.onNoteOff(queue.getNote(), time);
+					break;
+				case PerformanceLog.PEDAL:
+					listener.onPedal(queue.getValue() != 0, time);
+					break;
+				default:
+					break;
+				}
+			}
+			queue.await(IDLE_NANOS);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Lock-free queue of note events (see PerformanceLog for the types) from one
+// producer thread to one consumer thread.
+// The events are kept in a ring allocated beforehand, indexed by the count of
+// events put (written only by the producer) and taken (only by the consumer), so
+// neither side allocates memory or waits for the other. Events that don't fit are
+// dropped and counted. The consumer can sleep while the queue is empty: the
+// producer wakes it up when it puts an event, only if it is asleep.
+public class NoteEventQueue {
+	// ring of events: time and packed type, note and value
+	private final long[] times;
+	private final int[] events;
+	private final int mask;
+	private volatile long put;
+	private volatile long taken;
+	private int dropped; // only used by the producer
+	// consumer thread to wake up, or null, and whether it is going to sleep
+	private volatile Thread consumer;
+	private volatile boolean sleeping;
+	// event taken last (only used by the consumer)
+	private long timeNanos;
+	private int event;
+
+	// Constructor, for a ring of some events (a power of 2)
+	public NoteEventQueue(int capacity) {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Ring of " + capacity + " events");
+		}
+		times = new long[capacity];
+		events = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	// Put an event, from the producer thread. Returns false if it had to be dropped.
+	public boolean offer(int type, int note, int value, long timeNanos) {
+		long count = put;
+		if (count - taken >= times.length) {
+			dropped++;
+			return false;
+		}
+		int slot = (int) (count & mask);
+		times[slot] = timeNanos;
+		events[slot] = (type << 16) | (note << 8) | value;
+		put = count + 1; // publishes the slot
+		if (sleeping) {
+			Thread waiting = consumer;
+			if (waiting != null) {
+				LockSupport.unpark(waiting);
+			}
+		}
+		return true;
+	}
+
+	// Events dropped because the queue was full (read from the producer thread)
+	public int getDropped() {
+		return dropped;
+	}
+
+	// Set the thread that waits for events in await(), or null
+	public void setConsumer(Thread thread) {
+		consumer = thread;
+	}
+
+	// Take the next event, from the consumer thread, to read it with the getters.
+	// Returns false if the queue is empty.
+	public boolean poll() {
+		long count = taken;
+		if (count == put) {
+			return false;
+		}
+		int slot = (int) (count & mask);
+		timeNanos = times[slot];
+		event = events[slot];
+		taken = count + 1; // frees the slot
+		return true;
+	}
+
+	// Sleep until there may be events, the consumer thread is unparked or some
+	// time has passed, from the consumer thread
+	public void await(long maxNanos) {
+		sleeping = true;
+		if (taken == put) { // checked after announcing the sleep, so no event is missed
+			LockSupport.parkNanos(this, maxNanos);
+		}
+		sleeping = false;
+	}
+
+	// Parts of the event taken last
+	public long getTimeNanos() {
+		return timeNanos;
+	}
+
+	public int getType() {
+		return event >>> 16;
+	}
+
+	public int getNote() {
+		return (event >> 8) & 0xff;
+	}
+
+	public int getValue() {
+		return event & 0xff;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Mapping from the keys of the keyboard to the samples of their notes.
+// Notes are numbered from 0 (A0) to 87 (C8), the range of a full piano. Samples are
+// bundled for notes 27 (C3) to 62 (B5), as res/raw/note0.ogg to res/raw/note35.ogg;
+// the other notes are played from them at another pitch (see RootMapping). Each note
+// can have a sample for each dynamic layer (mf, the bundled one, and the optional pp
+// and ff recordings): the sample number is layer * NUMBER_OF_NOTES + note, so mf
+// samples have the number of their notes.
+// A layout puts one whole octave in each group of 12 keys, for instance octaves 3
+// and 5 for the "35" value of the octaves preference. Keys of notes beyond the ends
+// of the piano have no sample. The sample of every key is worked out once, when the
+// layout is created, so the cost doesn't depend on the range of the piano.
+public class NoteMapping {
+	public static final int NOTES_PER_OCTAVE = 12;
+	public static final int NUMBER_OF_NOTES = 88;
+	// octaves that have some note of the piano (octave 0 only has A0 to B0, and
+	// octave 8 only C8)
+	public static final int LOWEST_OCTAVE = 0;
+	public static final int HIGHEST_OCTAVE = 8;
+	// MIDI note number of the first note (A0)
+	public static final int FIRST_MIDI_NOTE = 21;
+	// bundled samples: first note (C3) and number of notes
+	public static final int FIRST_BUNDLED_NOTE = 27;
+	public static final int NUMBER_OF_BUNDLED_NOTES = 36;
+	// value of keys without sample
+	public static final int NO_SAMPLE = -1;
+	// dynamic layers
+	public static final int LAYER_MF = 0;
+	public static final int LAYER_PP = 1;
+	public static final int LAYER_FF = 2;
+	public static final int NUMBER_OF_LAYERS = 3;
+	public static final int NUMBER_OF_SAMPLES = NUMBER_OF_NOTES * NUMBER_OF_LAYERS;
+	// octave of each group of 12 keys
+	private final int[] octaves;
+	// sample of each key, or NO_SAMPLE
+	private final int[] keySamples;
+
+	// Constructor, given the octave of each group of 12 keys
+	public NoteMapping(int... octaves) {
+		this.octaves = octaves.clone();
+		keySamples = new int[octaves.length * NOTES_PER_OCTAVE];
+		for (int key = 0; key < keySamples.length; key++) {
+			int octave = octaves[key / NOTES_PER_OCTAVE];
+			if (octave < LOWEST_OCTAVE || octave > HIGHEST_OCTAVE) {
+				throw new IllegalArgumentException("No notes in octave " + octave);
+			}
+			int note = getNote(octave, key % NOTES_PER_OCTAVE);
+			keySamples[key] = (note >= 0 && note < NUMBER_OF_NOTES) ? note : NO_SAMPLE;
+		}
+	}
+
+	// Note number of a note of an octave (0 for C, 11 for B), which may be beyond
+	// the ends of the piano
+	public static int getNote(int octave, int noteInOctave) {
+		return octave * NOTES_PER_OCTAVE + noteInOctave - 9; // A0 is 0
+	}
+
+	// Get the layout of a value of the octaves preference, for a keyboard of some
+	// rows of some octaves each. The value has the digits of the first octave of
+	// each row, lower row first (for instance "35"); rows without a digit continue
+	// after the previous one.
+	public static NoteMapping forPreference(String value, int rows, int octavesPerRow) {
+		int[] octaves = new int[rows * octavesPerRow];
+		for (int row = 0; row < rows; row++) {
+			int first;
+			if (row < value.length()) {
+				first = Character.digit(value.charAt(row), 10);
+			} else {
+				first = octaves[(row - 1) * octavesPerRow] + octavesPerRow;
+			}
+			for (int i = 0; i < octavesPerRow; i++) {
+				// keep within the piano
+				octaves[row * octavesPerRow + i] = Math.min(first + i, HIGHEST_OCTAVE);
+			}
+		}
+		return new NoteMapping(octaves);
+	}
+
+	// Layout with every octave moved up (or down, if negative) by some octaves, or
+	// null if some octave would be beyond the piano
+	public NoteMapping shifted(int shift) {
+		int[] shiftedOctaves = new int[octaves.length];
+		for (int i = 0; i < octaves.length; i++) {
+			shiftedOctaves[i] = octaves[i] + shift;
+			if (shiftedOctaves[i] < LOWEST_OCTAVE || shiftedOctaves[i] > HIGHEST_OCTAVE) {
+				return null;
+			}
+		}
+		return new NoteMapping(shiftedOctaves);
+	}
+
+	public int getNumberOfKeys() {
+		return keySamples.length;
+	}
+
+	// Octave of a group of 12 keys
+	public int getOctave(int group) {
+		return octaves[group];
+	}
+
+	// Lowest and highest notes of the layout, even if beyond the ends of the piano
+	public int getLowestNote() {
+		int lowest = Integer.MAX_VALUE;
+		for (int octave : octaves) {
+			lowest = Math.min(lowest, getNote(octave, 0));
+		}
+		return lowest;
+	}
+
+	public int getHighestNote() {
+		int highest = Integer.MIN_VALUE;
+		for (int octave : octaves) {
+			highest = Math.max(highest, getNote(octave, NOTES_PER_OCTAVE - 1));
+		}
+		return highest;
+	}
+
+	// Sample of the note of a key, in the mf layer, or NO_SAMPLE
+	public int getSample(int key) {
+		return keySamples[key];
+	}
+
+	// Sample of the note of a key in a dynamic layer, or NO_SAMPLE
+	public int getSample(int key, int layer) {
+		int sample = keySamples[key];
+		return (sample == NO_SAMPLE) ? NO_SAMPLE : layer * NUMBER_OF_NOTES + sample;
+	}
+
+	// Note of a sample
+	public static int getNote(int sample) {
+		return sample % NUMBER_OF_NOTES;
+	}
+
+	// Dynamic layer of a sample
+	public static int getLayer(int sample) {
+		return sample / NUMBER_OF_NOTES;
+	}
+}
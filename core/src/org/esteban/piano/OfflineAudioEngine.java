@@ -0,0 +1,137 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Audio engine that mixes the samples of a sample bank on demand instead of playing
+// them: the caller pulls the mixed blocks (see mix), as fast as it can take them.
+// Its clock is the position of the mix, so events scheduled with playAt land on
+// their exact frame. Pure Java, to render without a device.
+public class OfflineAudioEngine implements AudioEngine {
+	// maximum simultaneous voices, plus the extra voices that can be fading out,
+	// and most semitones a sample is played away from its pitch (as PcmAudioEngine)
+	private static final int MAX_VOICES = 24;
+	private static final int MAX_FADING_VOICES = 8;
+	private static final int MAX_PITCH_SHIFT = 36;
+	// duration of the fade out of stopped voices
+	private static final int FADE_MILLIS = 50;
+	private final SampleBank bank;
+	private final PcmMixer mixer;
+
+	// Constructor, given the samples, the output rate and the frames mixed at a time
+	public OfflineAudioEngine(SampleBank bank, int sampleRate, int blockFrames) {
+		this.bank = bank;
+		mixer = new PcmMixer(sampleRate, blockFrames, MAX_VOICES + MAX_FADING_VOICES);
+		mixer.setInterpolation(PcmMixer.INTERPOLATION_CUBIC); // for pitch-shifted samples
+	}
+
+	public PcmMixer getMixer() {
+		return mixer;
+	}
+
+	// Mix the next block (see PcmMixer.mix)
+	public void mix(short[] out) {
+		mixer.mix(out);
+	}
+
+	@Override
+	public boolean hasSample(int sample) {
+		return bank.has(sample);
+	}
+
+	@Override
+	public void load(int sample) {
+		// nothing to do: the bank has every sample ready
+	}
+
+	@Override
+	public boolean isReady(int sample) {
+		return bank.has(sample);
+	}
+
+	@Override
+	public void unload(int sample) {
+		// nothing to do: the bank keeps them
+	}
+
+	@Override
+	public int play(int sample, float volume, float rate) {
+		return bank.has(sample) ? mixer.start(bank.get(sample), volume, rate) : 0;
+	}
+
+	@Override
+	public int playAt(int sample, float volume, float rate, long startNanos) {
+		if (!bank.has(sample)) {
+			return 0;
+		}
+		return mixer.start(bank.get(sample), volume, rate,
+				(long) ((double) startNanos * mixer.getSampleRate() / 1e9));
+	}
+
+	@Override
+	public void stop(int playId) {
+		mixer.stop(playId);
+	}
+
+	@Override
+	public void fadeOut(int playId) {
+		mixer.release(playId, mixer.getSampleRate() * FADE_MILLIS / 1000);
+	}
+
+	@Override
+	public void fadeOutAt(int playId, long stopNanos) {
+		mixer.release(playId, mixer.getSampleRate() * FADE_MILLIS / 1000,
+				(long) ((double) stopNanos * mixer.getSampleRate() / 1e9));
+	}
+
+	@Override
+	public boolean isPlaying(int playId) {
+		return mixer.isPlaying(playId);
+	}
+
+	@Override
+	public long getClockNanos() {
+		return (long) ((double) mixer.getFramePosition() * 1e9 / mixer.getSampleRate());
+	}
+
+	@Override
+	public boolean canSchedule() {
+		return true;
+	}
+
+	@Override
+	public int getMaxPitchShift() {
+		return MAX_PITCH_SHIFT;
+	}
+
+	@Override
+	public int getMaxVoices() {
+		return MAX_VOICES;
+	}
+
+	// Nothing is cached: the samples are views of the bank
+	@Override
+	public SampleCache<?> getSampleCache() {
+		return null;
+	}
+
+	@Override
+	public void release() {
+		mixer.stopAll();
+	}
+}
@@ -0,0 +1,369 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+// Software mixer of note samples.
+// Mixes the active voices block by block into a stereo buffer at a fixed output
+// rate, resampling each sample when its rate differs or it is played at another
+// pitch (see RootMapping), by linear or cubic (4 point Hermite) interpolation.
+// Cubic interpolation costs about 3 times more per voice but keeps pitch-shifted
+// samples cleaner, so it is only used for them.
+// Voices can be released with a linear fade out, to stop them without clicks, and
+// started and released at given output frames, to place them with sample accuracy.
+// The 16 bit output goes through a soft limiter, as the voices add up beyond the
+// full scale when many keys sound together.
+// It doesn't depend on Android: the audio engine feeds the mixed blocks to the
+// device. Voices are started and stopped from the UI thread while the blocks are
+// mixed in the audio thread, so all public methods are synchronized.
+public class PcmMixer {
+	// channels of the mixed output (interleaved)
+	public static final int CHANNELS = 2;
+	// resampling methods
+	public static final int INTERPOLATION_LINEAR = 0;
+	public static final int INTERPOLATION_CUBIC = 1;
+	// level of the mix above which it is compressed smoothly towards the full scale
+	// (-6 dB), instead of clipped
+	private static final float LIMITER_KNEE = 0.5f;
+	// output frames per second
+	private final int sampleRate;
+	// frames mixed per block
+	private final int blockFrames;
+	// voices that can sound at the same time
+	private final Voice[] voices;
+	// accumulator of the mixed block
+	private final float[] mixBuffer;
+	// identification given to the last started voice
+	private int lastVoiceId;
+	// resampling method of the pitch-shifted voices (the others use linear)
+	private int interpolation;
+	// output frames mixed so far
+	private long framesMixed;
+
+	// A sample being played
+	private static class Voice {
+		int id; // 0 when the voice is free
+		PcmSample sample;
+		double position; // in sample frames
+		double step; // sample frames per output frame
+		float gain;
+		float envelope; // level applied to the gain, 1 until released
+		float envelopeStep; // level decrease per output frame, 0 until released
+		long releaseFrame; // output frame of a later release, or Long.MAX_VALUE
+		int releaseFadeFrames; // frames of the fade out of that release
+		boolean cubic; // resampled by cubic interpolation
+		int delay; // output frames left before it starts
+	}
+
+	// Constructor
+	public PcmMixer(int sampleRate, int blockFrames, int maxVoices) {
+		this.sampleRate = sampleRate;
+		this.blockFrames = blockFrames;
+		voices = new Voice[maxVoices];
+		for (int i = 0; i < maxVoices; i++) {
+			voices[i] = new Voice();
+		}
+		mixBuffer = new float[blockFrames * CHANNELS];
+		lastVoiceId = 0;
+		interpolation = INTERPOLATION_LINEAR;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getBlockFrames() {
+		return blockFrames;
+	}
+
+	public int getMaxVoices() {
+		return voices.length;
+	}
+
+	public synchronized int getInterpolation() {
+		return interpolation;
+	}
+
+	public synchronized void setInterpolation(int interpolation) {
+		this.interpolation = interpolation;
+	}
+
+	// Position of the next block to mix, in output frames since the mixer was created
+	public synchronized long getFramePosition() {
+		return framesMixed;
+	}
+
+	// Start playing a sample at its own pitch (see the other start method)
+	public int start(PcmSample sample, float gain) {
+		return start(sample, gain, 1.0f);
+	}
+
+	// Start playing a sample, faster or slower by a rate that changes its pitch (2
+	// for an octave up). When all voices are busy, the quietest voice being released
+	// is cut. Returns the voice identification, or 0 if all voices are busy and none
+	// is being released.
+	public int start(PcmSample sample, float gain, float rate) {
+		return start(sample, gain, rate, Long.MIN_VALUE);
+	}
+
+	// Start playing a sample at an output frame (see getFramePosition), or right
+	// away if that frame was already mixed
+	public synchronized int start(PcmSample sample, float gain, float rate, long startFrame) {
+		Voice voice = null;
+		for (Voice candidate : voices) {
+			if (candidate.id == 0) {
+				voice = candidate;
+				break;
+			}
+			if (candidate.envelopeStep > 0.0f &&
+					(voice == null || candidate.envelope < voice.envelope)) {
+				voice = candidate;
+			}
+		}
+		if (voice != null) {
+			lastVoiceId = (lastVoiceId == Integer.MAX_VALUE) ? 1 : lastVoiceId + 1;
+			voice.id = lastVoiceId;
+			voice.sample = sample;
+			voice.position = 0.0;
+			voice.step = (double) sample.getSampleRate() * rate / sampleRate;
+			voice.gain = gain;
+			voice.envelope = 1.0f;
+			voice.envelopeStep = 0.0f;
+			voice.releaseFrame = Long.MAX_VALUE;
+			voice.cubic = (interpolation == INTERPOLATION_CUBIC) && (rate != 1.0f);
+			voice.delay = (startFrame > framesMixed)
+					? (int) Math.min(startFrame - framesMixed, Integer.MAX_VALUE) : 0;
+			return voice.id;
+		}
+		return 0;
+	}
+
+	// Stop a voice right away (nothing happens if it already finished)
+	public synchronized void stop(int voiceId) {
+		for (Voice voice : voices) {
+			if (voice.id == voiceId && voiceId != 0) {
+				free(voice);
+			}
+		}
+	}
+
+	// Fade a voice out during some frames and then stop it
+	public void release(int voiceId, int fadeFrames) {
+		release(voiceId, fadeFrames, Long.MIN_VALUE);
+	}
+
+	// Fade a voice out from an output frame (see getFramePosition), or right away if
+	// that frame was already mixed
+	public synchronized void release(int voiceId, int fadeFrames, long releaseFrame) {
+		for (Voice voice : voices) {
+			if (voice.id == voiceId && voiceId != 0) {
+				if (releaseFrame <= framesMixed) {
+					fade(voice, fadeFrames);
+				} else if (releaseFrame < voice.releaseFrame) {
+					voice.releaseFrame = releaseFrame;
+					voice.releaseFadeFrames = fadeFrames;
+				}
+			}
+		}
+	}
+
+	// See if a voice is still playing (including its release)
+	public synchronized boolean isPlaying(int voiceId) {
+		for (Voice voice : voices) {
+			if (voice.id == voiceId && voiceId != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Stop all voices
+	public synchronized void stopAll() {
+		for (Voice voice : voices) {
+			free(voice);
+		}
+	}
+
+	// Number of voices currently playing
+	public synchronized int getActiveVoices() {
+		int active = 0;
+		for (Voice voice : voices) {
+			if (voice.id != 0) {
+				active++;
+			}
+		}
+		return active;
+	}
+
+	// Mix the next block into a float buffer of blockFrames * CHANNELS values in [-1, 1]
+	public synchronized void mix(float[] out) {
+		Arrays.fill(out, 0, blockFrames * CHANNELS, 0.0f);
+		for (Voice voice : voices) {
+			if (voice.id != 0) {
+				mixVoice(voice, out);
+			}
+		}
+		framesMixed += blockFrames;
+	}
+
+	// Mix the next block into a 16 bit buffer of blockFrames * CHANNELS values,
+	// limited to the full scale
+	public void mix(short[] out) {
+		mix(mixBuffer);
+		for (int i = 0; i < blockFrames * CHANNELS; i++) {
+			out[i] = (short) (limit(mixBuffer[i]) * 32767.0f);
+		}
+	}
+
+	// Level of the mix as it is up to the knee, and above it compressed towards the
+	// full scale, which it only reaches when far beyond (with the same slope at the
+	// knee, so that it bends without a click)
+	private static float limit(float value) {
+		if (value > LIMITER_KNEE) {
+			return LIMITER_KNEE + (1.0f - LIMITER_KNEE)
+					* (float) Math.tanh((value - LIMITER_KNEE) / (1.0f - LIMITER_KNEE));
+		}
+		if (value < -LIMITER_KNEE) {
+			return -LIMITER_KNEE - (1.0f - LIMITER_KNEE)
+					* (float) Math.tanh((-value - LIMITER_KNEE) / (1.0f - LIMITER_KNEE));
+		}
+		return value;
+	}
+
+	// Add a voice to the block from its start, fading it out from its release if it
+	// falls in the block, and freeing it when its sample ends
+	private void mixVoice(Voice voice, float[] out) {
+		int firstFrame = 0;
+		if (voice.delay > 0) {
+			if (voice.delay >= blockFrames) {
+				voice.delay -= blockFrames; // starts in a later block
+				return;
+			}
+			firstFrame = voice.delay;
+			voice.delay = 0;
+		}
+		if (voice.releaseFrame - framesMixed < blockFrames) {
+			int releaseFrame = (int) Math.max(firstFrame, voice.releaseFrame - framesMixed);
+			mixVoice(voice, out, firstFrame, releaseFrame);
+			if (voice.id == 0) {
+				return; // ended before
+			}
+			fade(voice, voice.releaseFadeFrames);
+			voice.releaseFrame = Long.MAX_VALUE;
+			firstFrame = releaseFrame;
+		}
+		mixVoice(voice, out, firstFrame, blockFrames);
+	}
+
+	// Add a voice to some frames of the block
+	private void mixVoice(Voice voice, float[] out, int firstFrame, int endFrame) {
+		if (voice.cubic) {
+			mixVoiceCubic(voice, out, firstFrame, endFrame);
+		} else {
+			mixVoiceLinear(voice, out, firstFrame, endFrame);
+		}
+	}
+
+	// Start the fade out of a voice (unless a faster one started already)
+	private static void fade(Voice voice, int fadeFrames) {
+		voice.envelopeStep = Math.max(voice.envelopeStep, voice.envelope / Math.max(fadeFrames, 1));
+	}
+
+	// Add a voice to the block, interpolating between 2 frames
+	private void mixVoiceLinear(Voice voice, float[] out, int firstFrame, int endFrame) {
+		ShortBuffer data = voice.sample.getData();
+		int channels = voice.sample.getChannels();
+		int lastFrame = voice.sample.getFrames() - 1;
+		float gain = voice.gain / 32768.0f;
+		double position = voice.position;
+		double step = voice.step;
+		float envelope = voice.envelope;
+		float envelopeStep = voice.envelopeStep;
+		for (int frame = firstFrame; frame < endFrame; frame++) {
+			int index = (int) position;
+			if (index >= lastFrame || envelope <= 0.0f) {
+				free(voice);
+				return;
+			}
+			float fraction = (float) (position - index);
+			int left = index * channels;
+			int right = left + channels - 1; // same as left for mono samples
+			float leftValue = data.get(left) + (data.get(left + channels) - data.get(left)) * fraction;
+			float rightValue = data.get(right) + (data.get(right + channels) - data.get(right)) * fraction;
+			out[frame * CHANNELS] += leftValue * gain * envelope;
+			out[frame * CHANNELS + 1] += rightValue * gain * envelope;
+			position += step;
+			envelope -= envelopeStep;
+		}
+		voice.position = position;
+		voice.envelope = envelope;
+	}
+
+	// Add a voice to the block, interpolating between 4 frames (the 2 around the
+	// position and their neighbours)
+	private void mixVoiceCubic(Voice voice, float[] out, int firstFrame, int endFrame) {
+		ShortBuffer data = voice.sample.getData();
+		int channels = voice.sample.getChannels();
+		int lastFrame = voice.sample.getFrames() - 2; // keep a frame after the pair
+		float gain = voice.gain / 32768.0f;
+		double position = voice.position;
+		double step = voice.step;
+		float envelope = voice.envelope;
+		float envelopeStep = voice.envelopeStep;
+		for (int frame = firstFrame; frame < endFrame; frame++) {
+			int index = (int) position;
+			if (index >= lastFrame || envelope <= 0.0f) {
+				free(voice);
+				return;
+			}
+			float fraction = (float) (position - index);
+			int left = index * channels;
+			int previous = (index > 0) ? -channels : 0; // repeat the first frame
+			float leftValue = hermite(data.get(left + previous), data.get(left),
+					data.get(left + channels), data.get(left + 2 * channels), fraction);
+			float rightValue = leftValue;
+			if (channels > 1) {
+				int right = left + 1;
+				rightValue = hermite(data.get(right + previous), data.get(right),
+						data.get(right + channels), data.get(right + 2 * channels), fraction);
+			}
+			out[frame * CHANNELS] += leftValue * gain * envelope;
+			out[frame * CHANNELS + 1] += rightValue * gain * envelope;
+			position += step;
+			envelope -= envelopeStep;
+		}
+		voice.position = position;
+		voice.envelope = envelope;
+	}
+
+	// Value at a fraction of the way from y0 to y1, given their neighbours
+	private static float hermite(float yPrevious, float y0, float y1, float y2, float fraction) {
+		float c1 = 0.5f * (y1 - yPrevious);
+		float c2 = yPrevious - 2.5f * y0 + 2.0f * y1 - 0.5f * y2;
+		float c3 = 0.5f * (y2 - yPrevious) + 1.5f * (y0 - y1);
+		return ((c3 * fraction + c2) * fraction + c1) * fraction + y0;
+	}
+
+	private void free(Voice voice) {
+		voice.id = 0;
+		voice.sample = null;
+	}
+}
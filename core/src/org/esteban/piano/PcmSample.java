@@ -0,0 +1,69 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.nio.ShortBuffer;
+
+// Decoded audio of a note: 16 bit PCM frames, with interleaved channels.
+// The audio is in a buffer, either an array or a view of a mapped sample bank
+// (see SampleBank); it is read with absolute gets, so the buffer position is unused.
+public class PcmSample {
+	// audio data, channels interleaved
+	private final ShortBuffer data;
+	// channels per frame (1 or 2)
+	private final int channels;
+	// frames per second
+	private final int sampleRate;
+
+	// Constructor for audio in an array
+	public PcmSample(short[] data, int channels, int sampleRate) {
+		this(ShortBuffer.wrap(data), channels, sampleRate);
+	}
+
+	// Constructor
+	public PcmSample(ShortBuffer data, int channels, int sampleRate) {
+		if (channels != 1 && channels != 2) {
+			throw new IllegalArgumentException("Unsupported number of channels: " + channels);
+		}
+		this.data = data;
+		this.channels = channels;
+		this.sampleRate = sampleRate;
+	}
+
+	public ShortBuffer getData() {
+		return data;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getFrames() {
+		return data.limit() / channels;
+	}
+
+	// Memory used by the audio data, in bytes
+	public int getSizeInBytes() {
+		return data.limit() * 2;
+	}
+}
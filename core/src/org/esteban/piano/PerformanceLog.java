@@ -0,0 +1,126 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Format of the files of recorded performances (see PerformanceRecorder and
+// PerformancePlayer). Events have a fixed size and the time since the previous one,
+// so a file can be appended to while recording and read while playing, without
+// holding a session in memory.
+// Format, little endian like the sample bank:
+//   header: magic number ("PNOR"), version
+//   events: time since the previous event in microseconds (int), type, note (0 for
+//     A0, see NoteMapping), value (velocity of a note on, 1 for a pedal down) and a
+//     reserved byte
+public class PerformanceLog {
+	public static final int MAGIC = 0x524f4e50; // "PNOR"
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 8;
+	public static final int EVENT_BYTES = 8;
+	// event types
+	public static final int NOTE_ON = 1;
+	public static final int NOTE_OFF = 2;
+	public static final int PEDAL = 3;
+
+	// Put the header into a little endian buffer
+	public static void putHeader(ByteBuffer buffer) {
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+	}
+
+	// Check the header from a little endian buffer
+	public static void getHeader(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+			throw new IOException("Not a performance log");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException("Performance log version " + version + " not supported");
+		}
+	}
+
+	// Put an event into a little endian buffer. Times too far apart are shortened.
+	// Returns the time stored, which callers add up so that the microseconds cut
+	// off from each event don't add up over a long performance.
+	public static long putEvent(ByteBuffer buffer, long deltaNanos, int type, int note, int value) {
+		int micros = (int) Math.max(0, Math.min(deltaNanos / 1000, Integer.MAX_VALUE));
+		buffer.putInt(micros);
+		buffer.put((byte) type);
+		buffer.put((byte) note);
+		buffer.put((byte) value);
+		buffer.put((byte) 0);
+		return micros * 1000L;
+	}
+
+	// Parts of an event at the position of a little endian buffer
+	public static long getDeltaNanos(ByteBuffer buffer) {
+		return (buffer.getInt(buffer.position()) & 0xffffffffL) * 1000;
+	}
+
+	public static int getType(ByteBuffer buffer) {
+		return buffer.get(buffer.position() + 4) & 0xff;
+	}
+
+	public static int getNote(ByteBuffer buffer) {
+		return buffer.get(buffer.position() + 5) & 0xff;
+	}
+
+	public static int getValue(ByteBuffer buffer) {
+		return buffer.get(buffer.position() + 6) & 0xff;
+	}
+
+	// Read and check the header of a file into a buffer from allocate, leaving it
+	// for readEvents
+	public static void readHeader(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		buffer.limit(HEADER_BYTES);
+		read(channel, buffer);
+		buffer.flip();
+		getHeader(buffer);
+	}
+
+	// Read more events of a file into a buffer after readHeader, keeping the
+	// partial event left unread the previous time, and flip it for getting them.
+	// Returns true at the end of the file.
+	public static boolean readEvents(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.compact();
+		boolean ended = read(channel, buffer);
+		buffer.flip();
+		return ended;
+	}
+
+	// Fill a buffer from a file. Returns true at the end of the file.
+	private static boolean read(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// New buffer for some events, in the byte order of the format
+	public static ByteBuffer allocate(int events) {
+		return ByteBuffer.allocate(HEADER_BYTES + events * EVENT_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
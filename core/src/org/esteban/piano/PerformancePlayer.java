@@ -0,0 +1,141 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+// Player of a PerformanceLog file, reading it as it goes.
+// The events are handed to the listener in order, along with the time of the engine
+// clock when they must sound. With an engine that schedules sounds (see
+// AudioEngine.canSchedule), each event is handed over LOOKAHEAD_NANOS before its
+// time, so that the engine places the notes and their releases exactly, whatever
+// the delays of this thread and of the listener (see VoiceManager); otherwise it is
+// handed over at its time.
+public class PerformancePlayer extends Thread {
+	// Receives the events, from the player thread
+	public interface Listener {
+		void onNoteOn(int note, int velocity, long startNanos);
+		void onNoteOff(int note, long startNanos);
+		void onPedal(boolean down, long startNanos);
+		// called once, when the last event is due or the player is stopped (error is
+		// null unless the file couldn't be read)
+		void onPlaybackEnded(IOException error);
+	}
+
+	// time events are handed over before they must sound, to engines that schedule
+	private static final long LOOKAHEAD_NANOS = 100 * 1000000L;
+	// events read from the file at a time
+	private static final int READ_EVENTS = 256;
+	private final File file;
+	private final AudioEngine engine;
+	private final Listener listener;
+	private final long lookaheadNanos;
+	private volatile boolean running;
+
+	// Constructor, given the engine whose clock times the events
+	public PerformancePlayer(File file, AudioEngine engine, Listener listener) {
+		super("PerformancePlayer");
+		this.file = file;
+		this.engine = engine;
+		this.listener = listener;
+		lookaheadNanos = engine.canSchedule() ? LOOKAHEAD_NANOS : 0;
+		running = true;
+	}
+
+	// Stop playing, waiting for the player to end
+	public void quit() {
+		running = false;
+		LockSupport.unpark(this);
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		IOException error = null;
+		FileInputStream input = null;
+		try {
+			input = new FileInputStream(file);
+			play(input.getChannel());
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					// nothing else to do with it
+				}
+			}
+		}
+		listener.onPlaybackEnded(error);
+	}
+
+	private void play(FileChannel channel) throws IOException {
+		ByteBuffer buffer = PerformanceLog.allocate(READ_EVENTS);
+		PerformanceLog.readHeader(channel, buffer);
+		long time = engine.getClockNanos() + lookaheadNanos;
+		while (running) {
+			if (PerformanceLog.readEvents(channel, buffer)
+					&& buffer.remaining() < PerformanceLog.EVENT_BYTES) {
+				waitUntil(time); // end of the file, once the last event is due
+				return;
+			}
+			while (running && buffer.remaining() >= PerformanceLog.EVENT_BYTES) {
+				time += PerformanceLog.getDeltaNanos(buffer);
+				waitUntil(time - lookaheadNanos);
+				int note = PerformanceLog.getNote(buffer);
+				switch (PerformanceLog.getType(buffer)) {
+				case PerformanceLog.NOTE_ON:
+					if (note < NoteMapping.NUMBER_OF_NOTES) {
+						listener.onNoteOn(note, PerformanceLog.getValue(buffer), time);
+					}
+					break;
+				case PerformanceLog.NOTE_OFF:
+					if (note < NoteMapping.NUMBER_OF_NOTES) {
+						listener.onNoteOff(note, time);
+					}
+					break;
+				case PerformanceLog.PEDAL:
+					listener.onPedal(PerformanceLog.getValue(buffer) != 0, time);
+					break;
+				default:
+					break; // unknown events are skipped
+				}
+				buffer.position(buffer.position() + PerformanceLog.EVENT_BYTES);
+			}
+		}
+	}
+
+	// Sleep until a time of the engine clock, unless stopped
+	private void waitUntil(long nanos) {
+		long remaining;
+		while (running && (remaining = nanos - engine.getClockNanos()) > 0) {
+			LockSupport.parkNanos(this, remaining);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Recorder of the notes played into a PerformanceLog file, through a ring of
+// events (see RingRecorder).
+public class PerformanceRecorder extends RingRecorder {
+	// type, note and value of the event in each slot of the ring
+	private final int[] events;
+
+	// Constructor, replacing a file. The ring holds some events (a power of 2).
+	public PerformanceRecorder(File file, int capacity) throws IOException {
+		super("PerformanceRecorder", file, capacity, createHeader(capacity));
+		events = new int[capacity];
+	}
+
+	private static ByteBuffer createHeader(int capacity) {
+		ByteBuffer buffer = PerformanceLog.allocate(capacity);
+		PerformanceLog.putHeader(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	// Record an event, from the touch thread, at a time (of any clock used for the
+	// whole recording). Returns false if it had to be dropped.
+	public boolean record(int type, int note, int value, long timeNanos) {
+		int slot = nextSlot();
+		if (slot < 0) {
+			return false;
+		}
+		events[slot] = (type << 16) | (note << 8) | value;
+		publish(slot, timeNanos);
+		return true;
+	}
+
+	@Override
+	protected long putEvent(ByteBuffer buffer, int slot, long deltaNanos) {
+		return PerformanceLog.putEvent(buffer, deltaNanos,
+				events[slot] >>> 16, (events[slot] >> 8) & 0xff, events[slot] & 0xff);
+	}
+}
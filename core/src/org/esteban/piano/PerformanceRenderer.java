@@ -0,0 +1,196 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+// Renders a PerformanceLog file into a WAVE file as fast as it can be mixed.
+// The events go through a VoiceManager, like the keys played live, on an
+// OfflineAudioEngine, so the notes sound with the same samples, roots, layers,
+// sustain and dampening. Blocks are mixed up to each event and written as they
+// fill a buffer, so memory doesn't grow with the length of the performance.
+// Notes start at their exact frame; note offs and pedal changes are applied at the
+// start of the block they fall in.
+public class PerformanceRenderer {
+	// frames mixed at a time, and blocks written at a time
+	private static final int BLOCK_FRAMES = 256;
+	private static final int WRITE_BLOCKS = 64;
+	// longest time the sound is rendered after the last event, for sustained notes
+	private static final long MAX_TAIL_NANOS = 10 * 1000000000L;
+	// events read from the log at a time
+	private static final int READ_EVENTS = 256;
+	// bytes of the WAVE header written before the audio
+	private static final int WAVE_HEADER_BYTES = 44;
+	private final OfflineAudioEngine engine;
+	private final RootMapping rootMapping;
+	private final VelocityMap velocityMap;
+	private final VoiceManager voiceManager;
+	// mixed block, and the output buffer with its view for the mixed blocks
+	private final short[] block;
+	private final ByteBuffer output;
+	private final ShortBuffer outputSamples;
+
+	// Constructor, given the samples, the output rate, the spacing of the samples
+	// used (see RootMapping) and whether the pp and ff layers are played
+	public PerformanceRenderer(SampleBank bank, int sampleRate, int spacing, boolean dynamic) {
+		engine = new OfflineAudioEngine(bank, sampleRate, BLOCK_FRAMES);
+		boolean[] availableSamples = new boolean[NoteMapping.NUMBER_OF_SAMPLES];
+		for (int sample = 0; sample < availableSamples.length; sample++) {
+			availableSamples[sample] = engine.hasSample(sample);
+		}
+		rootMapping = new RootMapping(spacing, availableSamples, engine.getMaxPitchShift());
+		// The log has the velocities, so only the layers of the map matter
+		velocityMap = dynamic
+				? new VelocityMap(1.0f, 0.0f, VelocityMap.findPlayableLayers(rootMapping))
+				: new VelocityMap();
+		voiceManager = new VoiceManager(engine, NoteMapping.NUMBER_OF_NOTES);
+		block = new short[BLOCK_FRAMES * PcmMixer.CHANNELS];
+		output = ByteBuffer.allocate(WRITE_BLOCKS * block.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+		outputSamples = output.asShortBuffer();
+	}
+
+	public int getSampleRate() {
+		return engine.getMixer().getSampleRate();
+	}
+
+	// Render a log into a WAVE file (16 bit stereo). Returns the frames rendered.
+	public long render(FileChannel log, FileChannel wave) throws IOException {
+		PcmMixer mixer = engine.getMixer();
+		ByteBuffer events = PerformanceLog.allocate(READ_EVENTS);
+		PerformanceLog.readHeader(log, events);
+		wave.position(WAVE_HEADER_BYTES); // the header is written once the size is known
+		long time = 0;
+		boolean ended = false;
+		while (!ended) {
+			ended = PerformanceLog.readEvents(log, events);
+			while (events.remaining() >= PerformanceLog.EVENT_BYTES) {
+				time += PerformanceLog.getDeltaNanos(events);
+				long frame = (long) ((double) time * mixer.getSampleRate() / 1e9);
+				while (mixer.getFramePosition() + BLOCK_FRAMES <= frame) {
+					mixBlock(wave);
+				}
+				apply(events, time);
+				events.position(events.position() + PerformanceLog.EVENT_BYTES);
+			}
+		}
+		// Let the notes ring until they end
+		long lastFrame = mixer.getFramePosition()
+				+ (long) ((double) MAX_TAIL_NANOS * mixer.getSampleRate() / 1e9);
+		while (mixer.getActiveVoices() > 0 && mixer.getFramePosition() < lastFrame) {
+			mixBlock(wave);
+		}
+		flush(wave);
+		voiceManager.allNotesOff();
+		long frames = mixer.getFramePosition();
+		writeHeader(wave, frames);
+		return frames;
+	}
+
+	// Play an event of the log, like the keys would (see MainActivity.playNote)
+	private void apply(ByteBuffer events, long time) {
+		int note = PerformanceLog.getNote(events);
+		switch (PerformanceLog.getType(events)) {
+		case PerformanceLog.NOTE_ON:
+			if (note >= NoteMapping.NUMBER_OF_NOTES) {
+				break;
+			}
+			int velocity = Math.min(PerformanceLog.getValue(events), VelocityMap.MAX_VELOCITY);
+			int sample = velocityMap.getLayer(velocity) * NoteMapping.NUMBER_OF_NOTES + note;
+			if (rootMapping.getRoot(sample) == NoteMapping.NO_SAMPLE) {
+				sample = note; // the mf layer instead
+			}
+			int root = rootMapping.getRoot(sample);
+			if (root != NoteMapping.NO_SAMPLE) {
+				voiceManager.noteOn(note, root, velocityMap.getGain(velocity),
+						rootMapping.getRate(sample), time);
+			}
+			break;
+		case PerformanceLog.NOTE_OFF:
+			if (note < NoteMapping.NUMBER_OF_NOTES) {
+				voiceManager.noteOff(note);
+			}
+			break;
+		case PerformanceLog.PEDAL:
+			voiceManager.setSustain(PerformanceLog.getValue(events) != 0);
+			break;
+		default:
+			break; // unknown events are skipped
+		}
+	}
+
+	// Mix a block into the output buffer, writing the buffer when full
+	private void mixBlock(FileChannel wave) throws IOException {
+		engine.mix(block);
+		outputSamples.put(block);
+		if (!outputSamples.hasRemaining()) {
+			flush(wave);
+		}
+	}
+
+	private void flush(FileChannel wave) throws IOException {
+		output.limit(outputSamples.position() * 2);
+		output.position(0);
+		writeFully(wave, output);
+		output.clear();
+		outputSamples.clear();
+	}
+
+	// Write the WAVE header at the start of the file, for some frames of audio
+	private void writeHeader(FileChannel wave, long frames) throws IOException {
+		int frameBytes = 2 * PcmMixer.CHANNELS;
+		long dataBytes = frames * frameBytes;
+		if (dataBytes > 0xffffffffL - WAVE_HEADER_BYTES) {
+			throw new IOException("Performance too long for a WAVE file");
+		}
+		int sampleRate = getSampleRate();
+		ByteBuffer header = ByteBuffer.allocate(WAVE_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		putTag(header, "RIFF");
+		header.putInt((int) (dataBytes + WAVE_HEADER_BYTES - 8));
+		putTag(header, "WAVE");
+		putTag(header, "fmt ");
+		header.putInt(16); // size of the format chunk
+		header.putShort((short) 1); // PCM
+		header.putShort((short) PcmMixer.CHANNELS);
+		header.putInt(sampleRate);
+		header.putInt(sampleRate * frameBytes);
+		header.putShort((short) frameBytes);
+		header.putShort((short) 16); // bits per sample
+		putTag(header, "data");
+		header.putInt((int) dataBytes);
+		header.flip();
+		wave.position(0);
+		writeFully(wave, header);
+	}
+
+	private static void putTag(ByteBuffer buffer, String tag) {
+		for (int i = 0; i < tag.length(); i++) {
+			buffer.put((byte) tag.charAt(i));
+		}
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esteban.piano;
+
+import java.util.Arrays;
+
+// State of the pressed keys between touch events.
+// Kept in bit sets (one bit per note) allocated once, so that working out which
+// keys were just pressed or just released doesn't allocate memory on every event.
+// Usage for each event: begin(), touch() for every pointer on a key, end().
+public class PressedKeys {
+	// value returned by the iteration methods when there are no more keys
+	public static final int NO_KEY = -1;
+	// notes in the keyboard
+	private final int numberOfNotes;
+	// bit sets of keys
+	private final long[] touched; // affected by a pointer in the current event
+	private final long[] pressed; // pressed in the current event
+	private final long[] oldPressed; // pressed in the previous event
+	private final long[] justPressed; // pressed now but not before
+	private final long[] justReleased; // pressed before but not now
+	// maximum pressure on each touched key
+	private final float[] pressure;
+
+	// Constructor
+	public PressedKeys(int numberOfNotes) {
+		this.numberOfNotes = numberOfNotes;
+		int words = (numberOfNotes + 63) / 64;
+		touched = new long[words];
+		pressed = new long[words];
+		oldPressed = new long[words];
+		justPressed = new long[words];
+		justReleased = new long[words];
+		pressure = new float[numberOfNotes];
+	}
+
+	// Start collecting the keys of a new touch event
+	public void begin() {
+		Arrays.fill(touched, 0L);
+		Arrays.fill(pressed, 0L);
+	}
+
+	// Record a key under a pointer, with the pointer pressure. The key stays
+	// pressed unless the pointer is being lifted.
+	public void touch(int note, float notePressure, boolean down) {
+		int word = note >> 6;
+		long bit = 1L << note;
+		if ((touched[word] & bit) == 0) {
+			touched[word] |= bit;
+			pressure[note] = notePressure;
+		} else {
+			pressure[note] = Math.max(pressure[note], notePressure);
+		}
+		if (down) {
+			pressed[word] |= bit;
+		}
+	}
+
+	// Finish the current touch event, comparing its pressed keys with the previous ones
+	public void end() {
+		for (int word = 0; word < pressed.length; word++) {
+			justPressed[word] = pressed[word] & ~oldPressed[word];
+			justReleased[word] = oldPressed[word] & ~pressed[word];
+			oldPressed[word] = pressed[word];
+		}
+	}
+
+	// Forget every pressed key, as if all pointers were lifted
+	public void clear() {
+		Arrays.fill(touched, 0L);
+		Arrays.fill(pressed, 0L);
+		Arrays.fill(oldPressed, 0L);
+		Arrays.fill(justPressed, 0L);
+		Arrays.fill(justReleased, 0L);
+	}
+
+	public int getNumberOfNotes() {
+		return numberOfNotes;
+	}
+
+	public boolean isPressed(int note) {
+		return isSet(pressed, note);
+	}
+
+	public boolean isJustPressed(int note) {
+		return isSet(justPressed, note);
+	}
+
+	public boolean isJustReleased(int note) {
+		return isSet(justReleased, note);
+	}
+
+	// Maximum pressure on a key touched in the current event
+	public float getPressure(int note) {
+		return isSet(touched, note) ? pressure[note] : 0.0f;
+	}
+
+	// Iterate over the just pressed keys: first key from a note number on, or NO_KEY
+	public int nextJustPressed(int fromNote) {
+		return nextSet(justPressed, fromNote);
+	}
+
+	// Iterate over the just released keys: first key from a note number on, or NO_KEY
+	public int nextJustReleased(int fromNote) {
+		return nextSet(justReleased, fromNote);
+	}
+
+	private boolean isSet(long[] bits, int note) {
+		return (note >= 0) && (note < numberOfNotes) && ((bits[note >> 6] & (1L << note)) != 0);
+	}
+
+	private int nextSet(long[] bits, int fromNote) {
+		if (fromNote < 0) {
+			fromNote = 0;
+		}
+		int word = fromNote >> 6;
+		if (word >= bits.length) {
+			return NO_KEY;
+		}
+		long remaining = bits[word] & (-1L << fromNote);
+		while (remaining == 0) {
+			word++;
+			if (word >= bits.length) {
+				return NO_KEY;
+			}
+			remaining = bits[word];
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(remaining);
+	}
+}
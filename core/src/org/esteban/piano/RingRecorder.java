@@ -0,0 +1,161 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+// Recorder of events into a file, shared by PerformanceRecorder and
+// TouchTraceRecorder, which encode the events.
+// The touch thread only puts each event into a ring allocated beforehand: no
+// memory allocation, locks or file access. The recorder thread takes the events
+// out and appends them to the file every FLUSH_MILLIS, so a session is never held
+// in memory. Events that don't fit in the ring (if the file can't keep up) are
+// dropped and counted.
+public abstract class RingRecorder extends Thread {
+	// time between writes to the file
+	private static final long FLUSH_MILLIS = 500;
+	private final FileOutputStream output;
+	private final FileChannel channel;
+	// ring of event times (the subclasses keep the rest of each event in the same
+	// slot), indexed by the count of events put (written by the touch thread) or
+	// taken (by the recorder thread)
+	private final long[] times;
+	private final int mask;
+	private volatile long put;
+	private volatile long taken;
+	private int dropped; // only used by the touch thread
+	// encoded events, and time of the last one written
+	private final ByteBuffer buffer;
+	private long lastTimeNanos;
+	private volatile boolean running;
+	private volatile IOException error;
+
+	// Constructor, replacing a file with a header, in a buffer ready to be written
+	// that also fits the events of a whole ring. The ring holds some events (a
+	// power of 2).
+	protected RingRecorder(String name, File file, int capacity, ByteBuffer header) throws IOException {
+		super(name);
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Ring of " + capacity + " events");
+		}
+		times = new long[capacity];
+		mask = capacity - 1;
+		buffer = header;
+		output = new FileOutputStream(file);
+		channel = output.getChannel();
+		write();
+		lastTimeNanos = Long.MIN_VALUE;
+		running = true;
+	}
+
+	// Slot for the next event, from the touch thread, or -1 if the ring is full
+	// (the event is then dropped)
+	protected final int nextSlot() {
+		long count = put;
+		if (count - taken >= times.length) {
+			dropped++;
+			return -1;
+		}
+		return (int) (count & mask);
+	}
+
+	// Record the event filled into the slot from nextSlot, at a time (of any clock
+	// used for the whole recording)
+	protected final void publish(int slot, long timeNanos) {
+		times[slot] = timeNanos;
+		put = put + 1; // publishes the slot
+	}
+
+	// Put the event of a slot into the buffer, given the time since the previous
+	// one. Returns the time stored (see PerformanceLog.putEvent).
+	protected abstract long putEvent(ByteBuffer buffer, int slot, long deltaNanos);
+
+	// Events recorded and dropped (read them from the touch thread)
+	public long getRecorded() {
+		return put;
+	}
+
+	public int getDropped() {
+		return dropped;
+	}
+
+	// Error that stopped the writing, or null
+	public IOException getError() {
+		return error;
+	}
+
+	// Write the last events and close the file, waiting for it
+	public void finish() {
+		running = false;
+		LockSupport.unpark(this);
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				LockSupport.parkNanos(this, FLUSH_MILLIS * 1000000L);
+				flush();
+			}
+			flush();
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			try {
+				output.close();
+			} catch (IOException e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+		}
+	}
+
+	// Append the events in the ring to the file
+	private void flush() throws IOException {
+		long count = put;
+		buffer.clear();
+		for (long event = taken; event < count; event++) {
+			int slot = (int) (event & mask);
+			if (lastTimeNanos == Long.MIN_VALUE) {
+				lastTimeNanos = times[slot]; // the first event starts the recording
+			}
+			lastTimeNanos += putEvent(buffer, slot, times[slot] - lastTimeNanos);
+		}
+		taken = count; // frees the slots
+		buffer.flip();
+		write();
+	}
+
+	private void write() throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Sharing of samples between neighbouring notes, to keep fewer samples in memory.
+// Only the notes at every spacing semitones from C3, the first bundled note (the
+// roots: C, D, E, F#, G#, A# for a spacing of 2, C, D#, F#, A for 3, C, E, G# for
+// 4), are played from their own samples, as copied by
+// copy-and-rename-audio-files.sh for that spacing, and the other notes from the
+// sample of the nearest root, faster or slower to change its pitch. The root and
+// playback rate of every sample (see NoteMapping) are worked out once, in tables.
+// A spacing of 1 plays every note from its own sample. Notes without samples (like
+// the ones beyond the bundled range) are played from the nearest available root, as
+// long as it is close enough to be played at their pitch.
+public class RootMapping {
+	// semitones between roots
+	private final int spacing;
+	// root sample and playback rate of each sample
+	private final int[] roots;
+	private final float[] rates;
+
+	// Constructor, given the spacing, the samples that can be played, and the most
+	// semitones a sample can be played away from its pitch
+	public RootMapping(int spacing, boolean[] availableSamples, int maxShift) {
+		if (spacing < 1) {
+			throw new IllegalArgumentException("Spacing of " + spacing + " semitones");
+		}
+		this.spacing = spacing;
+		roots = new int[NoteMapping.NUMBER_OF_SAMPLES];
+		rates = new float[NoteMapping.NUMBER_OF_SAMPLES];
+		for (int sample = 0; sample < roots.length; sample++) {
+			int layerStart = sample - NoteMapping.getNote(sample);
+			int note = NoteMapping.getNote(sample);
+			int root = findRoot(note, layerStart, availableSamples);
+			if (root == NoteMapping.NO_SAMPLE || Math.abs(note - root) > maxShift) {
+				roots[sample] = NoteMapping.NO_SAMPLE; // not playable
+				rates[sample] = 1.0f;
+			} else {
+				roots[sample] = layerStart + root;
+				rates[sample] = (float) Math.pow(2.0, (note - root) / 12.0);
+			}
+		}
+	}
+
+	// Nearest root of a note in a layer (the higher one if two are equally near,
+	// because slowing a sample down sounds more natural than speeding it up), or
+	// NO_SAMPLE if there are none
+	private int findRoot(int note, int layerStart, boolean[] availableSamples) {
+		int best = NoteMapping.NO_SAMPLE;
+		int bestDistance = Integer.MAX_VALUE;
+		for (int candidate = 0; candidate < NoteMapping.NUMBER_OF_NOTES; candidate++) {
+			if ((candidate - NoteMapping.FIRST_BUNDLED_NOTE) % spacing != 0
+					|| !availableSamples[layerStart + candidate]) {
+				continue;
+			}
+			int distance = Math.abs(candidate - note);
+			if (distance < bestDistance || (distance == bestDistance && candidate > best)) {
+				best = candidate;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	public int getSpacing() {
+		return spacing;
+	}
+
+	// Sample that plays a sample, or NO_SAMPLE if it can't be played (or it is
+	// NO_SAMPLE itself)
+	public int getRoot(int sample) {
+		return (sample != NoteMapping.NO_SAMPLE) ? roots[sample] : NoteMapping.NO_SAMPLE;
+	}
+
+	// Rate to play the root of a sample at (1 when it is its own root)
+	public float getRate(int sample) {
+		return (sample != NoteMapping.NO_SAMPLE) ? rates[sample] : 1.0f;
+	}
+}
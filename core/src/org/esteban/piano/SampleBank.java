@@ -0,0 +1,149 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Bank of uncompressed samples in a single file, packed at build time by
+// SampleBankWriter and mapped into memory at run time: the samples are views of the
+// mapped file, so opening the bank doesn't read or decode any audio, and the system
+// pages the audio in when it is played.
+// Format, little endian like WAVE files:
+//   header: magic number ("PNOB"), version, number of entries
+//   index: for each entry, sample number (see NoteMapping), channels, sample rate,
+//     frames, and offset of its audio from the start of the bank
+//   audio: 16 bit PCM frames of each entry, channels interleaved, at 4 byte
+//     aligned offsets
+public class SampleBank {
+	public static final int MAGIC = 0x424f4e50; // "PNOB"
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 12;
+	public static final int ENTRY_BYTES = 20;
+	// samples by number, null for the missing ones
+	private final PcmSample[] samples;
+
+	// Constructor, given the bank contents
+	public SampleBank(ByteBuffer bank) throws IOException {
+		ByteBuffer header = bank.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int entries = checkHeader(header);
+		if (HEADER_BYTES + (long) entries * ENTRY_BYTES > header.limit()) {
+			throw new IOException("Truncated sample bank index");
+		}
+		// Size the table for the highest sample number
+		int numberOfSamples = 0;
+		for (int entry = 0; entry < entries; entry++) {
+			numberOfSamples = Math.max(numberOfSamples, header.getInt(HEADER_BYTES + entry * ENTRY_BYTES) + 1);
+		}
+		samples = new PcmSample[numberOfSamples];
+		// Make a view of the audio of each entry
+		for (int entry = 0; entry < entries; entry++) {
+			int index = HEADER_BYTES + entry * ENTRY_BYTES;
+			int sample = header.getInt(index);
+			int channels = header.getInt(index + 4);
+			int sampleRate = header.getInt(index + 8);
+			int frames = header.getInt(index + 12);
+			int offset = header.getInt(index + 16);
+			long end = offset + (long) frames * channels * 2;
+			if (sample < 0 || frames < 0 || offset < 0 || end > header.limit()) {
+				throw new IOException("Bad sample bank entry " + entry);
+			}
+			ByteBuffer audio = bank.duplicate();
+			audio.limit((int) end);
+			audio.position(offset);
+			samples[sample] = new PcmSample(audio.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer(),
+					channels, sampleRate);
+		}
+	}
+
+	// See which samples a bank has from the index at the start of its contents,
+	// without reading their audio (for a bank that can't be mapped yet). Returns a
+	// flag for each sample number below a limit.
+	public static boolean[] readSamples(InputStream in, int numberOfSamples) throws IOException {
+		int entries = checkHeader(readFully(in, HEADER_BYTES));
+		if ((long) entries * ENTRY_BYTES > Integer.MAX_VALUE) {
+			throw new IOException("Truncated sample bank index");
+		}
+		ByteBuffer index = readFully(in, entries * ENTRY_BYTES);
+		boolean[] found = new boolean[numberOfSamples];
+		for (int entry = 0; entry < entries; entry++) {
+			int sample = index.getInt(entry * ENTRY_BYTES);
+			if (sample >= 0 && sample < numberOfSamples) {
+				found[sample] = true;
+			}
+		}
+		return found;
+	}
+
+	// Check the header of a bank. Returns the number of entries.
+	private static int checkHeader(ByteBuffer header) throws IOException {
+		if (header.remaining() < HEADER_BYTES || header.getInt(0) != MAGIC) {
+			throw new IOException("Not a sample bank");
+		}
+		if (header.getInt(4) != VERSION) {
+			throw new IOException("Sample bank version " + header.getInt(4) + " not supported");
+		}
+		int entries = header.getInt(8);
+		if (entries < 0) {
+			throw new IOException("Truncated sample bank index");
+		}
+		return entries;
+	}
+
+	private static ByteBuffer readFully(InputStream in, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		for (int read = 0; read < length; ) {
+			int count = in.read(bytes, read, length - read);
+			if (count < 0) {
+				throw new IOException("Truncated sample bank index");
+			}
+			read += count;
+		}
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	// Map a bank stored in part of a file (the file can be closed afterwards)
+	public static SampleBank map(FileChannel file, long offset, long length) throws IOException {
+		return new SampleBank(file.map(FileChannel.MapMode.READ_ONLY, offset, length));
+	}
+
+	// See if the bank has a sample
+	public boolean has(int sample) {
+		return sample >= 0 && sample < samples.length && samples[sample] != null;
+	}
+
+	// Get a sample, or null if the bank doesn't have it
+	public PcmSample get(int sample) {
+		return has(sample) ? samples[sample] : null;
+	}
+
+	// Number of samples in the bank
+	public int size() {
+		int size = 0;
+		for (PcmSample sample : samples) {
+			if (sample != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+}
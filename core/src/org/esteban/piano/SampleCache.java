@@ -0,0 +1,201 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Cache of loaded samples, identified by their sample number: layer *
+// NoteMapping.NUMBER_OF_NOTES + note, from 0 to NoteMapping.NUMBER_OF_SAMPLES - 1
+// (see NoteMapping).
+// Samples are loaded when first asked for, and stay loaded when the keyboard
+// changes octaves, so that only new notes have to be loaded. When the memory
+// held goes over a budget, the least recently used samples are unloaded.
+// Loading happens outside the lock, so samples can be loaded from several
+// threads while others are being played.
+public class SampleCache<T> {
+	// How samples are loaded and unloaded
+	public interface Loader<T> {
+		// Load a sample, returning null if it couldn't be loaded
+		T loadSample(int sample);
+
+		// Memory held by a loaded sample, in bytes
+		int sampleSize(T loaded);
+
+		// Free a loaded sample
+		void unloadSample(int sample, T loaded);
+	}
+
+	private final Loader<T> loader;
+	// loaded samples (null if not loaded) and the order of their last use
+	private final Object[] samples;
+	private final long[] lastUses;
+	private long uses;
+	// memory limit and memory held, in bytes
+	private long budget;
+	private long bytes;
+	// statistics
+	private int hits, misses;
+	private long loadNanos;
+
+	// Constructor
+	public SampleCache(Loader<T> loader, int numberOfSamples, long budget) {
+		this.loader = loader;
+		samples = new Object[numberOfSamples];
+		lastUses = new long[numberOfSamples];
+		this.budget = budget;
+	}
+
+	// Get a sample, loading it if needed. Returns null if it couldn't be loaded.
+	public T get(int sample) {
+		T loaded = getIfLoaded(sample);
+		if (loaded != null) {
+			return loaded;
+		}
+		long start = System.nanoTime();
+		loaded = loader.loadSample(sample);
+		long time = System.nanoTime() - start;
+		if (loaded == null) {
+			return null;
+		}
+		T unused = null;
+		synchronized (this) {
+			misses++;
+			loadNanos += time;
+			if (samples[sample] == null) {
+				samples[sample] = loaded;
+				bytes += loader.sampleSize(loaded);
+			} else {
+				// loaded meanwhile by another thread
+				unused = loaded;
+				loaded = sample(sample);
+			}
+			lastUses[sample] = ++uses;
+		}
+		if (unused != null) {
+			loader.unloadSample(sample, unused);
+		}
+		evict(sample);
+		return loaded;
+	}
+
+	// Get a sample only if it is already loaded, or null
+	public synchronized T getIfLoaded(int sample) {
+		T loaded = sample(sample);
+		if (loaded != null) {
+			hits++;
+			lastUses[sample] = ++uses;
+		}
+		return loaded;
+	}
+
+	// Get a sample only if it is already loaded, or null, without counting it as used
+	public synchronized T peek(int sample) {
+		return sample(sample);
+	}
+
+	public synchronized boolean isLoaded(int sample) {
+		return samples[sample] != null;
+	}
+
+	// Unload a sample
+	public void remove(int sample) {
+		T loaded;
+		synchronized (this) {
+			loaded = sample(sample);
+			if (loaded == null) {
+				return;
+			}
+			samples[sample] = null;
+			bytes -= loader.sampleSize(loaded);
+		}
+		loader.unloadSample(sample, loaded);
+	}
+
+	// Unload every sample
+	public void clear() {
+		for (int sample = 0; sample < samples.length; sample++) {
+			remove(sample);
+		}
+	}
+
+	// Change the memory limit, unloading samples if needed
+	public void setBudget(long budget) {
+		synchronized (this) {
+			this.budget = budget;
+		}
+		evict(-1);
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	// Total time spent loading samples, in nanoseconds
+	public synchronized long getLoadNanos() {
+		return loadNanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "hits " + hits + ", misses " + misses + ", " + (bytes / 1024) + " of "
+				+ (budget / 1024) + " kB held, loaded in " + (loadNanos / 1000000) + " ms";
+	}
+
+	// Unload the least recently used samples until the budget is respected, keeping
+	// the sample given (the one just loaded)
+	private void evict(int keep) {
+		while (true) {
+			int oldest = -1;
+			T loaded;
+			synchronized (this) {
+				if (bytes <= budget) {
+					return;
+				}
+				for (int sample = 0; sample < samples.length; sample++) {
+					if (samples[sample] != null && sample != keep &&
+							(oldest < 0 || lastUses[sample] < lastUses[oldest])) {
+						oldest = sample;
+					}
+				}
+				if (oldest < 0) {
+					return; // nothing else to unload
+				}
+				loaded = sample(oldest);
+				samples[oldest] = null;
+				bytes -= loader.sampleSize(loaded);
+			}
+			loader.unloadSample(oldest, loaded);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private T sample(int sample) {
+		return (T) samples[sample];
+	}
+}
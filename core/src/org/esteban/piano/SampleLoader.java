@@ -0,0 +1,168 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Loader of samples in the background.
+// A few worker threads load the requested samples through the audio engine, in
+// the order they were requested (urgent requests go first), so that the keyboard
+// can be shown and played while the rest of the notes are still loading.
+public class SampleLoader {
+	// Receiver of the loading progress (called from the worker threads)
+	public interface Listener {
+		// A sample is ready to be played
+		void onSampleReady(int sample);
+
+		// Every requested sample is ready, after some milliseconds since loading started
+		void onAllSamplesReady(long millis);
+	}
+
+	private final AudioEngine engine;
+	private final Listener listener;
+	private final Thread[] workers;
+	// requested samples not taken by a worker yet, in loading order
+	private final int[] queue;
+	private int queued;
+	// samples being loaded by a worker, and their number
+	private final boolean[] loadingSamples;
+	private int loading;
+	// when the current loading started (in ms), or -1 when everything is loaded
+	private long startMillis;
+	private boolean stopped;
+
+	// Constructor
+	public SampleLoader(AudioEngine engine, int numberOfSamples, int threads, Listener listener) {
+		this.engine = engine;
+		this.listener = listener;
+		queue = new int[numberOfSamples];
+		queued = 0;
+		loadingSamples = new boolean[numberOfSamples];
+		loading = 0;
+		startMillis = -1;
+		stopped = false;
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "SampleLoader-" + i);
+			workers[i].setDaemon(true);
+			workers[i].setPriority(Thread.MIN_PRIORITY);
+			workers[i].start();
+		}
+	}
+
+	// Ask for a sample to be loaded after the samples already requested
+	public synchronized void request(int sample) {
+		if (loadingSamples[sample] || engine.isReady(sample) || indexOf(sample) >= 0) {
+			return;
+		}
+		queue[queued++] = sample;
+		started();
+	}
+
+	// Ask for a sample to be loaded before any other
+	public synchronized void requestFirst(int sample) {
+		if (loadingSamples[sample] || engine.isReady(sample)) {
+			return; // a worker is on it already, or it's done
+		}
+		int index = indexOf(sample);
+		if (index < 0) {
+			index = queued++;
+		}
+		System.arraycopy(queue, 0, queue, 1, index);
+		queue[0] = sample;
+		started();
+	}
+
+	// Forget the samples not being loaded yet
+	public synchronized void clear() {
+		queued = 0;
+	}
+
+	// Number of samples requested and not loaded yet
+	public synchronized int getPending() {
+		return queued + loading;
+	}
+
+	// Stop the worker threads (samples being loaded are finished)
+	public synchronized void shutdown() {
+		stopped = true;
+		queued = 0;
+		notifyAll();
+	}
+
+	// Wake up the workers, and start timing if nothing was being loaded
+	private void started() {
+		if (startMillis < 0) {
+			startMillis = System.nanoTime() / 1000000;
+		}
+		notifyAll();
+	}
+
+	// Worker thread: load samples until shut down
+	private void work() {
+		while (true) {
+			int sample;
+			synchronized (this) {
+				while (queued == 0 && !stopped) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (stopped) {
+					return;
+				}
+				sample = queue[0];
+				queued--;
+				System.arraycopy(queue, 1, queue, 0, queued);
+				loadingSamples[sample] = true;
+				loading++;
+			}
+			engine.load(sample);
+			long millis = -1;
+			synchronized (this) {
+				loadingSamples[sample] = false;
+				loading--;
+				if (queued == 0 && loading == 0 && startMillis >= 0) {
+					millis = System.nanoTime() / 1000000 - startMillis;
+					startMillis = -1;
+				}
+			}
+			if (engine.isReady(sample)) {
+				listener.onSampleReady(sample);
+			}
+			if (millis >= 0) {
+				listener.onAllSamplesReady(millis);
+			}
+		}
+	}
+
+	private int indexOf(int sample) {
+		for (int i = 0; i < queued; i++) {
+			if (queue[i] == sample) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
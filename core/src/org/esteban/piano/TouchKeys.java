@@ -0,0 +1,112 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esteban.piano;
+
+// Keys pressed by the pointers of touch events, and whether the pedal strip below
+// the keys is touched: the part of PianoLayout.onTouchEvent that doesn't depend on
+// Android, shared with the replay of touch traces (see TouchTraceReplayer).
+// Usage for each event: find(), to look up the keys of the pointers, then
+// dispatch(), to hand the changes to a listener. Neither allocates memory.
+public class TouchKeys {
+	// Receiver of the changes of an event, in order: the pedal, the keys just
+	// pressed and the keys just released, each from the lowest key up
+	public interface Listener {
+		void onPedalTouched(boolean touched);
+
+		// A key was pressed with some strength (see VelocityMap)
+		void onKeyPressed(int key, float strength);
+
+		void onKeyReleased(int key);
+	}
+
+	private KeyboardLayout layout;
+	private final PressedKeys pressedKeys;
+	private boolean pedalTouched;
+	private boolean pedalChanged;
+
+	// Constructor, for the keys of a layout
+	public TouchKeys(KeyboardLayout layout) {
+		this.layout = layout;
+		pressedKeys = new PressedKeys(layout.getNumberOfKeys());
+		pedalTouched = false;
+		pedalChanged = false;
+	}
+
+	// Use another layout of the same keys (the keyboard placed for another size),
+	// keeping the keys pressed
+	public void setLayout(KeyboardLayout layout) {
+		if (layout.getNumberOfKeys() != pressedKeys.getNumberOfNotes()) {
+			throw new IllegalArgumentException("Layout of " + layout.getNumberOfKeys() + " keys");
+		}
+		this.layout = layout;
+	}
+
+	// Find the keys under the pointers of an event and compare them with the
+	// previous event, with the strength of each touch
+	public void find(TouchPoints points, VelocityMap velocityMap) {
+		pressedKeys.begin();
+		boolean pedalTouchedNow = false;
+		for (int pointer = 0; pointer < points.getPointerCount(); pointer++) {
+			float x = (int) points.getX(pointer); // whole pixels, as always
+			float y = (int) points.getY(pointer);
+			boolean down = points.isDown(pointer);
+			if (y >= layout.getKeysBottom()) {
+				pedalTouchedNow |= down;
+				continue;
+			}
+			int key = layout.keyAt(x, y);
+			if (key != KeyboardLayout.NO_KEY) {
+				pressedKeys.touch(key, velocityMap.getStrength(points.getPressure(pointer),
+						points.getSize(pointer)), down);
+			}
+		}
+		pressedKeys.end();
+		pedalChanged = (pedalTouchedNow != pedalTouched);
+		pedalTouched = pedalTouchedNow;
+	}
+
+	// Hand the changes found to a listener
+	public void dispatch(Listener listener) {
+		if (pedalChanged) {
+			listener.onPedalTouched(pedalTouched);
+		}
+		for (int i = pressedKeys.nextJustPressed(0); i != PressedKeys.NO_KEY;
+				i = pressedKeys.nextJustPressed(i + 1)) {
+			listener.onKeyPressed(i, pressedKeys.getPressure(i));
+		}
+		for (int i = pressedKeys.nextJustReleased(0); i != PressedKeys.NO_KEY;
+				i = pressedKeys.nextJustReleased(i + 1)) {
+			listener.onKeyReleased(i);
+		}
+	}
+
+	// Forget every pressed key and the pedal, as if all pointers were lifted
+	public void clear() {
+		pressedKeys.clear();
+		pedalTouched = false;
+		pedalChanged = false;
+	}
+
+	public PressedKeys getPressedKeys() {
+		return pressedKeys;
+	}
+
+	public boolean isPedalTouched() {
+		return pedalTouched;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esteban.piano;
+
+// Pointers of a touch event, copied from a MotionEvent or read from a touch trace
+// (see TouchTrace) into arrays allocated once, so the keys can be worked out from
+// them without Android (see TouchKeys). Pointers beyond MAX_POINTERS are ignored.
+public class TouchPoints {
+	// actions, with the values of MotionEvent
+	public static final int ACTION_DOWN = 0;
+	public static final int ACTION_UP = 1;
+	public static final int ACTION_MOVE = 2;
+	public static final int ACTION_CANCEL = 3;
+	public static final int ACTION_POINTER_DOWN = 5;
+	public static final int ACTION_POINTER_UP = 6;
+	public static final int MAX_POINTERS = 32;
+	private int action;
+	private int actionIndex;
+	private long timeMillis;
+	private int pointerCount;
+	private final int[] ids;
+	private final float[] xs, ys;
+	private final float[] pressures, sizes;
+
+	// Constructor
+	public TouchPoints() {
+		ids = new int[MAX_POINTERS];
+		xs = new float[MAX_POINTERS];
+		ys = new float[MAX_POINTERS];
+		pressures = new float[MAX_POINTERS];
+		sizes = new float[MAX_POINTERS];
+	}
+
+	// Start a new event, without pointers. The time is of SystemClock.uptimeMillis,
+	// like the MotionEvent times.
+	public void set(int action, int actionIndex, long timeMillis) {
+		this.action = action;
+		this.actionIndex = actionIndex;
+		this.timeMillis = timeMillis;
+		pointerCount = 0;
+	}
+
+	// Add a pointer to the event, unless there are too many
+	public void add(int id, float x, float y, float pressure, float size) {
+		if (pointerCount == MAX_POINTERS) {
+			return;
+		}
+		ids[pointerCount] = id;
+		xs[pointerCount] = x;
+		ys[pointerCount] = y;
+		pressures[pointerCount] = pressure;
+		sizes[pointerCount] = size;
+		pointerCount++;
+	}
+
+	public int getAction() {
+		return action;
+	}
+
+	// Index of the pointer that went down or up
+	public int getActionIndex() {
+		return actionIndex;
+	}
+
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	public int getPointerCount() {
+		return pointerCount;
+	}
+
+	public int getId(int pointer) {
+		return ids[pointer];
+	}
+
+	public float getX(int pointer) {
+		return xs[pointer];
+	}
+
+	public float getY(int pointer) {
+		return ys[pointer];
+	}
+
+	public float getPressure(int pointer) {
+		return pressures[pointer];
+	}
+
+	public float getSize(int pointer) {
+		return sizes[pointer];
+	}
+
+	// See if a pointer stays down after the event, or is being lifted
+	public boolean isDown(int pointer) {
+		return pointer != actionIndex || (action != ACTION_UP && action != ACTION_POINTER_UP);
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esteban.piano;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Format of the files of captured touches (see TouchTraceRecorder and
+// TouchTraceReader): the pointers of every touch event on the keyboard (the
+// historical samples batched into a move being events of their own), to replay
+// them off the device. The header has the layout of the keyboard they were
+// captured on, so they find the same keys and notes when replayed (moving the
+// octaves with the octave bar while capturing isn't replayed).
+// Format, little endian like the performance logs:
+//   header: magic number ("PNOT"), version, view width and height, top and bottom
+//     of the keys (floats, in pixels), rows, octaves per row, 1 if the higher
+//     octaves are up, a reserved byte, and the octave of each group of 12 keys (a
+//     byte each, see NoteMapping)
+//   events: time since the previous event in microseconds (int), action (see
+//     TouchPoints), action index, number of pointers and a reserved byte, then for
+//     each pointer its id, a reserved byte, x and y in 1/8 pixels, and pressure and
+//     size in 1/4096 (unsigned shorts)
+public class TouchTrace {
+	public static final int MAGIC = 0x544f4e50; // "PNOT"
+	public static final int VERSION = 1;
+	public static final int FIXED_HEADER_BYTES = 28;
+	public static final int EVENT_BYTES = 8;
+	public static final int POINTER_BYTES = 10;
+	public static final int MAX_EVENT_BYTES = EVENT_BYTES + TouchPoints.MAX_POINTERS * POINTER_BYTES;
+	// units of the coordinates, and of the pressures and sizes
+	private static final float POSITION_SCALE = 8.0f;
+	private static final float AMOUNT_SCALE = 4096.0f;
+	private final float width, height;
+	private final float keysTop, keysBottom;
+	private final int rows, octavesPerRow;
+	private final boolean higherOctaveUp;
+	private final int[] octaves;
+
+	// Constructor, given the size of the view, the place of the keys in it, and
+	// the octave of each group of 12 keys
+	public TouchTrace(float width, float height, float keysTop, float keysBottom, int rows,
+			int octavesPerRow, boolean higherOctaveUp, int[] octaves) {
+		if (octaves.length != rows * octavesPerRow) {
+			throw new IllegalArgumentException(octaves.length + " octaves for " + rows + " rows of "
+					+ octavesPerRow);
+		}
+		this.width = width;
+		this.height = height;
+		this.keysTop = keysTop;
+		this.keysBottom = keysBottom;
+		this.rows = rows;
+		this.octavesPerRow = octavesPerRow;
+		this.higherOctaveUp = higherOctaveUp;
+		this.octaves = octaves.clone();
+	}
+
+	// Read the header from a little endian buffer
+	public static TouchTrace getHeader(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < FIXED_HEADER_BYTES || buffer.getInt() != MAGIC) {
+			throw new IOException("Not a touch trace");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException("Touch trace version " + version + " not supported");
+		}
+		float width = buffer.getFloat();
+		float height = buffer.getFloat();
+		float keysTop = buffer.getFloat();
+		float keysBottom = buffer.getFloat();
+		int rows = buffer.get() & 0xff;
+		int octavesPerRow = buffer.get() & 0xff;
+		boolean higherOctaveUp = buffer.get() != 0;
+		buffer.get();
+		if (rows == 0 || octavesPerRow == 0 || buffer.remaining() < rows * octavesPerRow) {
+			throw new IOException("Bad touch trace header");
+		}
+		int[] octaves = new int[rows * octavesPerRow];
+		for (int i = 0; i < octaves.length; i++) {
+			octaves[i] = buffer.get();
+			if (octaves[i] < NoteMapping.LOWEST_OCTAVE || octaves[i] > NoteMapping.HIGHEST_OCTAVE) {
+				throw new IOException("Bad octave in touch trace header");
+			}
+		}
+		return new TouchTrace(width, height, keysTop, keysBottom, rows, octavesPerRow,
+				higherOctaveUp, octaves);
+	}
+
+	// Put the header into a little endian buffer
+	public void putHeader(ByteBuffer buffer) {
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putFloat(width);
+		buffer.putFloat(height);
+		buffer.putFloat(keysTop);
+		buffer.putFloat(keysBottom);
+		buffer.put((byte) rows);
+		buffer.put((byte) octavesPerRow);
+		buffer.put((byte) (higherOctaveUp ? 1 : 0));
+		buffer.put((byte) 0);
+		for (int octave : octaves) {
+			buffer.put((byte) octave);
+		}
+	}
+
+	public int getHeaderBytes() {
+		return FIXED_HEADER_BYTES + octaves.length;
+	}
+
+	public float getWidth() {
+		return width;
+	}
+
+	public float getHeight() {
+		return height;
+	}
+
+	// Keys placed as they were captured
+	public KeyboardLayout createLayout() {
+		KeyboardLayout layout = new KeyboardLayout(rows, octavesPerRow);
+		layout.place(width, keysTop, keysBottom, higherOctaveUp);
+		return layout;
+	}
+
+	// Notes of the keys as they were captured
+	public NoteMapping createNoteMapping() {
+		return new NoteMapping(octaves);
+	}
+
+	// Put an event into a little endian buffer. Times too far apart are shortened.
+	// Returns the time stored, which callers add up (see PerformanceLog.putEvent).
+	public static long putEvent(ByteBuffer buffer, long deltaNanos, TouchPoints points) {
+		int start = buffer.position();
+		buffer.putInt(0);
+		buffer.put((byte) points.getAction());
+		buffer.put((byte) points.getActionIndex());
+		buffer.put((byte) points.getPointerCount());
+		buffer.put((byte) 0);
+		for (int pointer = 0; pointer < points.getPointerCount(); pointer++) {
+			buffer.put((byte) points.getId(pointer));
+			buffer.put((byte) 0);
+			buffer.putShort(quantize(points.getX(pointer), POSITION_SCALE));
+			buffer.putShort(quantize(points.getY(pointer), POSITION_SCALE));
+			buffer.putShort(quantize(points.getPressure(pointer), AMOUNT_SCALE));
+			buffer.putShort(quantize(points.getSize(pointer), AMOUNT_SCALE));
+		}
+		return setDelta(buffer, start, deltaNanos);
+	}
+
+	// Set the time since the previous event of an event put at an index of a
+	// little endian buffer. Returns the time stored.
+	public static long setDelta(ByteBuffer buffer, int index, long deltaNanos) {
+		int micros = (int) Math.max(0, Math.min(deltaNanos / 1000, Integer.MAX_VALUE));
+		buffer.putInt(index, micros);
+		return micros * 1000L;
+	}
+
+	// Size of the event at the position of a little endian buffer, which must have
+	// its first EVENT_BYTES
+	public static int getEventBytes(ByteBuffer buffer) {
+		return EVENT_BYTES + (buffer.get(buffer.position() + 6) & 0xff) * POINTER_BYTES;
+	}
+
+	// Get the event at the position of a little endian buffer, given the time of
+	// the previous one. Returns the time of the event.
+	public static long getEvent(ByteBuffer buffer, TouchPoints points, long previousNanos)
+			throws IOException {
+		long timeNanos = previousNanos + (buffer.getInt() & 0xffffffffL) * 1000;
+		int action = buffer.get() & 0xff;
+		int actionIndex = buffer.get() & 0xff;
+		int pointerCount = buffer.get() & 0xff;
+		buffer.get();
+		if (pointerCount > TouchPoints.MAX_POINTERS || buffer.remaining() < pointerCount * POINTER_BYTES) {
+			throw new IOException("Bad touch trace event");
+		}
+		points.set(action, actionIndex, timeNanos / 1000000);
+		for (int pointer = 0; pointer < pointerCount; pointer++) {
+			int id = buffer.get() & 0xff;
+			buffer.get();
+			float x = (buffer.getShort() & 0xffff) / POSITION_SCALE;
+			float y = (buffer.getShort() & 0xffff) / POSITION_SCALE;
+			float pressure = (buffer.getShort() & 0xffff) / AMOUNT_SCALE;
+			float size = (buffer.getShort() & 0xffff) / AMOUNT_SCALE;
+			points.add(id, x, y, pressure, size);
+		}
+		return timeNanos;
+	}
+
+	// Value in some units, as an unsigned short
+	private static short quantize(float value, float scale) {
+		return (short) Math.max(0, Math.min(Math.round(value * scale), 0xffff));
+	}
+}
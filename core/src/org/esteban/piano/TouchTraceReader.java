@@ -0,0 +1,86 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esteban.piano;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Reader of the events of a touch trace (see TouchTrace), a buffer at a time, so a
+// long trace isn't held in memory.
+public class TouchTraceReader {
+	private static final int BUFFER_BYTES = 64 * 1024;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final TouchTrace trace;
+	private boolean endOfFile;
+	// time of the last event read, from the start of the trace
+	private long timeNanos;
+
+	// Constructor, reading the header
+	public TouchTraceReader(FileChannel channel) throws IOException {
+		this.channel = channel;
+		buffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.flip();
+		endOfFile = false;
+		fill(BUFFER_BYTES);
+		trace = TouchTrace.getHeader(buffer);
+		timeNanos = 0;
+	}
+
+	public TouchTrace getTrace() {
+		return trace;
+	}
+
+	// Read the next event into some points. Returns false at the end of the trace.
+	public boolean next(TouchPoints points) throws IOException {
+		if (!fill(TouchTrace.EVENT_BYTES)) {
+			if (buffer.hasRemaining()) {
+				throw new IOException("Truncated touch trace");
+			}
+			return false;
+		}
+		if (!fill(TouchTrace.getEventBytes(buffer))) {
+			throw new IOException("Truncated touch trace");
+		}
+		timeNanos = TouchTrace.getEvent(buffer, points, timeNanos);
+		return true;
+	}
+
+	// Time of the last event read, from the start of the trace
+	public long getTimeNanos() {
+		return timeNanos;
+	}
+
+	// Make the buffer have some bytes, reading more if needed. Returns false if
+	// the file ends before.
+	private boolean fill(int bytes) throws IOException {
+		if (buffer.remaining() >= bytes) {
+			return true;
+		}
+		buffer.compact();
+		while (!endOfFile && buffer.position() < bytes) {
+			if (channel.read(buffer) < 0) {
+				endOfFile = true;
+			}
+		}
+		buffer.flip();
+		return buffer.remaining() >= bytes;
+	}
+}
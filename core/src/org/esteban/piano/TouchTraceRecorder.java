@@ -0,0 +1,70 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Recorder of the touch events into a touch trace file (see TouchTrace), through
+// a ring of events (see RingRecorder).
+public class TouchTraceRecorder extends RingRecorder {
+	// event in each slot of the ring, encoded in MAX_EVENT_BYTES without its time
+	private final ByteBuffer slots;
+	private final ByteBuffer takenSlots;
+
+	// Constructor, replacing a file. The ring holds some events (a power of 2).
+	public TouchTraceRecorder(File file, TouchTrace trace, int capacity) throws IOException {
+		super("TouchTraceRecorder", file, capacity, createHeader(trace, capacity));
+		slots = ByteBuffer.allocate(capacity * TouchTrace.MAX_EVENT_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		takenSlots = slots.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static ByteBuffer createHeader(TouchTrace trace, int capacity) {
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(trace.getHeaderBytes(),
+				capacity * TouchTrace.MAX_EVENT_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+		trace.putHeader(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	// Record an event, from the touch thread. Returns false if it had to be dropped.
+	public boolean record(TouchPoints points) {
+		int slot = nextSlot();
+		if (slot < 0) {
+			return false;
+		}
+		slots.position(slot * TouchTrace.MAX_EVENT_BYTES);
+		TouchTrace.putEvent(slots, 0, points);
+		publish(slot, points.getTimeMillis() * 1000000L);
+		return true;
+	}
+
+	// Copy the event of a slot, then set its time
+	@Override
+	protected long putEvent(ByteBuffer buffer, int slot, long deltaNanos) {
+		int start = buffer.position();
+		takenSlots.limit(slots.capacity());
+		takenSlots.position(slot * TouchTrace.MAX_EVENT_BYTES);
+		takenSlots.limit(takenSlots.position() + TouchTrace.getEventBytes(takenSlots));
+		buffer.put(takenSlots);
+		return TouchTrace.setDelta(buffer, start, deltaNanos);
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Conversion of the strength of touches into note velocities (0 to MAX_VELOCITY),
+// and of velocities into the gain and the dynamic layer of the sample to play.
+// Everything is worked out in tables when the map is created, so that touches only
+// do array lookups.
+// The strength of a touch is its pressure, optionally mixed with its size, as
+// reported by MotionEvent (about 0 to 1).
+public class VelocityMap {
+	public static final int MAX_VELOCITY = 127;
+	// resolution of the strength table
+	private static final int STRENGTH_STEPS = 256;
+	// quietest gain, for the lightest touches
+	private static final float MIN_GAIN = 0.1f;
+	// velocities below PP_VELOCITY use the pp layer, and from FF_VELOCITY on the ff
+	// layer, when they are available
+	private static final int PP_VELOCITY = 48;
+	private static final int FF_VELOCITY = 100;
+	// velocity each layer was recorded at, played at full gain
+	private static final int[] LAYER_VELOCITIES = new int[NoteMapping.NUMBER_OF_LAYERS];
+	static {
+		LAYER_VELOCITIES[NoteMapping.LAYER_MF] = 80;
+		LAYER_VELOCITIES[NoteMapping.LAYER_PP] = 32;
+		LAYER_VELOCITIES[NoteMapping.LAYER_FF] = MAX_VELOCITY;
+	}
+	// weight of the touch size in the strength, and factor to bring sizes (usually
+	// small fractions of the screen) to the range of pressures
+	private final float sizeWeight;
+	private static final float SIZE_SCALE = 4.0f;
+	// velocity of each quantized strength
+	private final int[] strengthVelocities;
+	// gain and layer of each velocity
+	private final float[] velocityGains;
+	private final int[] velocityLayers;
+
+	// Constructor for a fixed velocity: every touch plays the mf layer at full gain
+	public VelocityMap() {
+		sizeWeight = 0.0f;
+		strengthVelocities = new int[STRENGTH_STEPS + 1];
+		velocityGains = new float[MAX_VELOCITY + 1];
+		velocityLayers = new int[MAX_VELOCITY + 1];
+		for (int i = 0; i <= STRENGTH_STEPS; i++) {
+			strengthVelocities[i] = MAX_VELOCITY;
+		}
+		for (int velocity = 0; velocity <= MAX_VELOCITY; velocity++) {
+			velocityGains[velocity] = 1.0f;
+			velocityLayers[velocity] = NoteMapping.LAYER_MF;
+		}
+	}
+
+	// Constructor, given the curve exponent (below 1 makes light touches louder),
+	// the weight of the touch size in the strength (0 to ignore it) and the
+	// layers that can be played
+	public VelocityMap(float exponent, float sizeWeight, boolean[] availableLayers) {
+		this.sizeWeight = sizeWeight;
+		strengthVelocities = new int[STRENGTH_STEPS + 1];
+		velocityGains = new float[MAX_VELOCITY + 1];
+		velocityLayers = new int[MAX_VELOCITY + 1];
+		for (int i = 0; i <= STRENGTH_STEPS; i++) {
+			double strength = (double) i / STRENGTH_STEPS;
+			strengthVelocities[i] = Math.max(1, (int) Math.round(MAX_VELOCITY * Math.pow(strength, exponent)));
+		}
+		for (int velocity = 0; velocity <= MAX_VELOCITY; velocity++) {
+			int layer = NoteMapping.LAYER_MF;
+			if (velocity < PP_VELOCITY && availableLayers[NoteMapping.LAYER_PP]) {
+				layer = NoteMapping.LAYER_PP;
+			} else if (velocity >= FF_VELOCITY && availableLayers[NoteMapping.LAYER_FF]) {
+				layer = NoteMapping.LAYER_FF;
+			}
+			velocityLayers[velocity] = layer;
+			// Loudness relative to the one of the recorded layer, which can't be exceeded
+			velocityGains[velocity] = Math.min(1.0f,
+					loudness(velocity) / loudness(LAYER_VELOCITIES[layer]));
+		}
+	}
+
+	// See which dynamic layers have a sample (or a root, see RootMapping) for every
+	// note that can be played
+	public static boolean[] findPlayableLayers(RootMapping rootMapping) {
+		boolean[] playableLayers = new boolean[NoteMapping.NUMBER_OF_LAYERS];
+		for (int layer = 0; layer < NoteMapping.NUMBER_OF_LAYERS; layer++) {
+			playableLayers[layer] = true;
+			for (int note = 0; note < NoteMapping.NUMBER_OF_NOTES; note++) {
+				if (rootMapping.getRoot(note) != NoteMapping.NO_SAMPLE && rootMapping.getRoot(
+						layer * NoteMapping.NUMBER_OF_NOTES + note) == NoteMapping.NO_SAMPLE) {
+					playableLayers[layer] = false; // a playable note is missing
+					break;
+				}
+			}
+		}
+		return playableLayers;
+	}
+
+	// Perceived loudness of a velocity, as a gain
+	private static float loudness(int velocity) {
+		float fraction = (float) velocity / MAX_VELOCITY;
+		return MIN_GAIN + (1.0f - MIN_GAIN) * fraction * fraction;
+	}
+
+	// Strength of a touch, from its pressure and size
+	public float getStrength(float pressure, float size) {
+		if (sizeWeight == 0.0f) {
+			return pressure;
+		}
+		return (1.0f - sizeWeight) * pressure + sizeWeight * size * SIZE_SCALE;
+	}
+
+	// Velocity of a touch strength
+	public int getVelocity(float strength) {
+		int step = (int) (strength * STRENGTH_STEPS);
+		if (step < 0) {
+			step = 0;
+		} else if (step > STRENGTH_STEPS) {
+			step = STRENGTH_STEPS;
+		}
+		return strengthVelocities[step];
+	}
+
+	// Gain to play a velocity at, in its layer
+	public float getGain(int velocity) {
+		return velocityGains[velocity];
+	}
+
+	// Dynamic layer to play a velocity with (see NoteMapping)
+	public int getLayer(int velocity) {
+		return velocityLayers[velocity];
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.util.Arrays;
+
+// Voice allocator between the keyboard and the audio engine.
+// Owns a fixed pool of voices, as many as the engine can play at the same time.
+// When every voice is busy, the quietest one (the oldest one among equals) is faded
+// out and reused, so the number of sounds, and therefore the playback cost, stays
+// bounded however many keys are pressed. Stopped and retriggered notes are faded
+// out instead of cut, to avoid clicks.
+// Also keeps the state of the note of each key: released keys keep sounding while
+// the sustain pedal is down, and are damped when it goes up. Voices of released
+// keys whose natural decay has made them inaudible are reclaimed (faded out, as
+// the decay is only an estimate), so that long sustained passages don't use up the
+// voices.
+// Notes can be given ahead of time with the time of the engine clock they take
+// effect at, starts and releases alike, as long as they come in time order: the
+// engine places them (see PerformancePlayer).
+// Notes are played from the UI thread and from the MIDI thread (see MidiRouter), so
+// all public methods are synchronized.
+public class VoiceManager {
+	// states of the note of a key
+	public static final int NOTE_IDLE = 0; // not sounding
+	public static final int NOTE_HELD = 1; // key pressed
+	public static final int NOTE_SUSTAINED = 2; // key released with the pedal down
+	public static final int NOTE_RELEASING = 3; // damped, fading out
+	// value used for keys without a voice
+	private static final int NO_VOICE = -1;
+	// time a damped note takes to fade out (at most, see the audio engines)
+	private static final long RELEASE_NANOS = 100 * 1000000L;
+	// estimated decay of a piano note (about 12 dB per second), and level below
+	// which a voice is inaudible (-60 dB)
+	private static final double DECAY_PER_NANO = Math.log(10.0) * 12.0 / 20.0 / 1e9;
+	private static final float INAUDIBLE_LEVEL = 0.001f;
+	// sound output
+	private final AudioEngine engine;
+	// voices: play identification (0 when free), key, volume, start order and time
+	// (when the sound starts, for sounds started later)
+	private final int[] voicePlayIds;
+	private final int[] voiceKeys;
+	private final float[] voiceVolumes;
+	private final long[] voiceStarts;
+	private final long[] voiceStartNanos;
+	// start order given to the last started voice
+	private long lastStart;
+	// voice sounding for each key, or NO_VOICE
+	private final int[] keyVoices;
+	// note state of each key, and when the notes being damped will be silent
+	private final int[] keyStates;
+	private final long[] keyReleaseEnds;
+	// position of the sustain pedal
+	private boolean sustain;
+
+	// Constructor
+	public VoiceManager(AudioEngine engine, int numberOfKeys) {
+		this.engine = engine;
+		int maxVoices = engine.getMaxVoices();
+		voicePlayIds = new int[maxVoices];
+		voiceKeys = new int[maxVoices];
+		voiceVolumes = new float[maxVoices];
+		voiceStarts = new long[maxVoices];
+		voiceStartNanos = new long[maxVoices];
+		lastStart = 0;
+		keyVoices = new int[numberOfKeys];
+		Arrays.fill(keyVoices, NO_VOICE);
+		keyStates = new int[numberOfKeys];
+		keyReleaseEnds = new long[numberOfKeys];
+		sustain = false;
+	}
+
+	public AudioEngine getEngine() {
+		return engine;
+	}
+
+	public int getMaxVoices() {
+		return voicePlayIds.length;
+	}
+
+	// Play the sample of a key at a rate (see AudioEngine.play), fading out the
+	// sound the key was already making (held or sustained), as when a piano key is
+	// struck again. Returns false if the sample couldn't be played (not loaded
+	// yet), leaving the sounds as they were.
+	public synchronized boolean noteOn(int key, int sample, float volume, float rate) {
+		return noteOn(key, sample, volume, rate, Long.MIN_VALUE);
+	}
+
+	// Same as the other noteOn, but starting the sound at a time of the engine
+	// clock (see AudioEngine.playAt), or right away if it is Long.MIN_VALUE; the
+	// sound the key was making, or the one stolen, is faded out from then
+	public synchronized boolean noteOn(int key, int sample, float volume, float rate, long startNanos) {
+		long now = engine.getClockNanos();
+		reclaimInaudible(now);
+		// Play first, so that no sound is faded out for a sample that can't play (the
+		// engines have room for the sounds fading out)
+		int playId = (startNanos == Long.MIN_VALUE) ? engine.play(sample, volume, rate)
+				: engine.playAt(sample, volume, rate, startNanos);
+		if (playId == 0) {
+			return false;
+		}
+		damp(key, startNanos);
+		int voice = findFreeVoice();
+		if (voice == NO_VOICE) {
+			voice = findVoiceToSteal(now);
+			fadeOut(voice, startNanos);
+		}
+		voicePlayIds[voice] = playId;
+		voiceKeys[voice] = key;
+		voiceVolumes[voice] = volume;
+		voiceStarts[voice] = ++lastStart;
+		voiceStartNanos[voice] = Math.max(now, startNanos); // now if right away
+		keyVoices[key] = voice;
+		keyStates[key] = NOTE_HELD;
+		return true;
+	}
+
+	// Release a key: its sound goes on while the sustain pedal is down, and is
+	// faded out otherwise
+	public synchronized void noteOff(int key) {
+		noteOff(key, Long.MIN_VALUE);
+	}
+
+	// Same as the other noteOff, at a time of the engine clock (see noteOn)
+	public synchronized void noteOff(int key, long timeNanos) {
+		if (keyStates[key] != NOTE_HELD) {
+			return;
+		}
+		if (sustain && keyVoices[key] != NO_VOICE) {
+			keyStates[key] = NOTE_SUSTAINED;
+		} else {
+			damp(key, timeNanos);
+		}
+	}
+
+	// Press or release the sustain pedal, damping the sustained notes when released
+	public synchronized void setSustain(boolean down) {
+		setSustain(down, Long.MIN_VALUE);
+	}
+
+	// Same as the other setSustain, at a time of the engine clock (see noteOn)
+	public synchronized void setSustain(boolean down, long timeNanos) {
+		if (sustain == down) {
+			return;
+		}
+		sustain = down;
+		if (!down) {
+			for (int key = 0; key < keyStates.length; key++) {
+				if (keyStates[key] == NOTE_SUSTAINED) {
+					damp(key, timeNanos);
+				}
+			}
+		}
+	}
+
+	public synchronized boolean isSustain() {
+		return sustain;
+	}
+
+	// Fade out every sound
+	public synchronized void allNotesOff() {
+		for (int key = 0; key < keyStates.length; key++) {
+			damp(key, Long.MIN_VALUE);
+		}
+	}
+
+	// State of the note of a key
+	public synchronized int getNoteState(int key) {
+		if (keyStates[key] == NOTE_RELEASING && engine.getClockNanos() - keyReleaseEnds[key] >= 0) {
+			keyStates[key] = NOTE_IDLE;
+		}
+		if ((keyStates[key] == NOTE_HELD || keyStates[key] == NOTE_SUSTAINED)
+				&& keyVoices[key] == NO_VOICE) {
+			keyStates[key] = NOTE_IDLE; // finished by itself, or reclaimed
+		}
+		return keyStates[key];
+	}
+
+	// See if a key is sounding
+	public synchronized boolean isSounding(int key) {
+		int voice = keyVoices[key];
+		return (voice != NO_VOICE) && engine.isPlaying(voicePlayIds[voice]);
+	}
+
+	// Number of voices sounding, freeing the ones that finished by themselves or
+	// became inaudible
+	public synchronized int getActiveVoices() {
+		reclaimInaudible(engine.getClockNanos());
+		int active = 0;
+		for (int voice = 0; voice < voicePlayIds.length; voice++) {
+			if (voicePlayIds[voice] != 0) {
+				if (engine.isPlaying(voicePlayIds[voice])) {
+					active++;
+				} else {
+					free(voice);
+				}
+			}
+		}
+		return active;
+	}
+
+	// Find a voice that is free or whose sound has finished, or NO_VOICE
+	private int findFreeVoice() {
+		for (int voice = 0; voice < voicePlayIds.length; voice++) {
+			if (voicePlayIds[voice] == 0) {
+				return voice;
+			}
+			if (!engine.isPlaying(voicePlayIds[voice])) {
+				free(voice);
+				return voice;
+			}
+		}
+		return NO_VOICE;
+	}
+
+	// Choose a voice whose key is no longer pressed if there is one, and the
+	// quietest one at present among those (the oldest one if several are equally quiet)
+	private int findVoiceToSteal(long now) {
+		int chosen = NO_VOICE;
+		boolean chosenHeld = true;
+		float chosenLevel = 0.0f;
+		for (int voice = 0; voice < voicePlayIds.length; voice++) {
+			boolean held = (keyStates[voiceKeys[voice]] == NOTE_HELD);
+			float level = getLevel(voice, now);
+			if (chosen == NO_VOICE || (chosenHeld && !held) || (held == chosenHeld && (
+					level < chosenLevel || (level == chosenLevel &&
+					voiceStarts[voice] < voiceStarts[chosen])))) {
+				chosen = voice;
+				chosenHeld = held;
+				chosenLevel = level;
+			}
+		}
+		return chosen;
+	}
+
+	// Fade out the voices of released keys that have decayed below hearing (the
+	// keys held keep sounding as long as their samples last)
+	private void reclaimInaudible(long now) {
+		for (int voice = 0; voice < voicePlayIds.length; voice++) {
+			if (voicePlayIds[voice] != 0 && keyStates[voiceKeys[voice]] != NOTE_HELD
+					&& getLevel(voice, now) < INAUDIBLE_LEVEL) {
+				fadeOut(voice, Long.MIN_VALUE);
+			}
+		}
+	}
+
+	// Estimated level of a voice, decayed since it started (its volume until then)
+	private float getLevel(int voice, long now) {
+		long played = Math.max(0, now - voiceStartNanos[voice]);
+		return voiceVolumes[voice] * (float) Math.exp(-DECAY_PER_NANO * played);
+	}
+
+	// Fade out the sound of a key, if there is one, from a time of the engine clock
+	// (Long.MIN_VALUE for right away)
+	private void damp(int key, long timeNanos) {
+		if (keyVoices[key] != NO_VOICE) {
+			fadeOut(keyVoices[key], timeNanos);
+			keyStates[key] = NOTE_RELEASING;
+			keyReleaseEnds[key] = Math.max(engine.getClockNanos(), timeNanos) + RELEASE_NANOS;
+		} else if (keyStates[key] != NOTE_RELEASING) {
+			keyStates[key] = NOTE_IDLE;
+		}
+	}
+
+	private void fadeOut(int voice, long timeNanos) {
+		engine.fadeOutAt(voicePlayIds[voice], timeNanos);
+		free(voice);
+	}
+
+	private void free(int voice) {
+		if (voicePlayIds[voice] != 0 && keyVoices[voiceKeys[voice]] == voice) {
+			keyVoices[voiceKeys[voice]] = NO_VOICE;
+		}
+		voicePlayIds[voice] = 0;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reader of RIFF WAVE files with 16 bit PCM audio, like the ones in
+// "Processed audio files"
+public class WavReader {
+	private WavReader() {
+	}
+
+	// Read a whole WAVE file from a stream (the stream is not closed)
+	public static PcmSample read(InputStream in) throws IOException {
+		byte[] header = new byte[12];
+		readFully(in, header, header.length);
+		if (!(chunkIdIs(header, 0, "RIFF") && chunkIdIs(header, 8, "WAVE"))) {
+			throw new IOException("Not a WAVE file");
+		}
+		int channels = 0;
+		int sampleRate = 0;
+		byte[] chunkHeader = new byte[8];
+		// Go through the chunks until the audio data is found
+		while (true) {
+			readFully(in, chunkHeader, chunkHeader.length);
+			int chunkSize = littleEndianInt(chunkHeader, 4);
+			if (chunkIdIs(chunkHeader, 0, "fmt ")) {
+				byte[] format = new byte[chunkSize + (chunkSize & 1)];
+				readFully(in, format, format.length);
+				int encoding = littleEndianShort(format, 0);
+				channels = littleEndianShort(format, 2);
+				sampleRate = littleEndianInt(format, 4);
+				int bitsPerSample = littleEndianShort(format, 14);
+				if (encoding != 1 || bitsPerSample != 16) {
+					throw new IOException("Only 16 bit PCM is supported");
+				}
+			} else if (chunkIdIs(chunkHeader, 0, "data")) {
+				if (channels == 0) {
+					throw new IOException("Audio data found before its format");
+				}
+				byte[] bytes = new byte[chunkSize];
+				readFully(in, bytes, bytes.length);
+				short[] data = new short[chunkSize / 2];
+				for (int i = 0; i < data.length; i++) {
+					data[i] = (short) littleEndianShort(bytes, i * 2);
+				}
+				return new PcmSample(data, channels, sampleRate);
+			} else {
+				// skip unknown chunk (chunks are padded to an even size)
+				skipFully(in, chunkSize + (chunkSize & 1));
+			}
+		}
+	}
+
+	private static boolean chunkIdIs(byte[] buffer, int offset, String id) {
+		for (int i = 0; i < 4; i++) {
+			if (buffer[offset + i] != id.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int littleEndianShort(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) | (buffer[offset + 1] << 8);
+	}
+
+	private static int littleEndianInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8)
+				| ((buffer[offset + 2] & 0xff) << 16) | (buffer[offset + 3] << 24);
+	}
+
+	private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+		int done = 0;
+		while (done < length) {
+			int read = in.read(buffer, done, length - done);
+			if (read < 0) {
+				throw new EOFException("Truncated WAVE file");
+			}
+			done += read;
+		}
+	}
+
+	private static void skipFully(InputStream in, long length) throws IOException {
+		while (length > 0) {
+			long skipped = in.skip(length);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException("Truncated WAVE file");
+				}
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+}
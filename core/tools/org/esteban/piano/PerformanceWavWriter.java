@@ -0,0 +1,73 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+// Tool that renders a recorded performance (see PerformanceLog) into a WAVE file
+// on a plain JVM, with the samples of a sample bank (see PerformanceRenderer):
+//   java org.esteban.piano.PerformanceWavWriter <bank> <performance> <WAVE file> [spacing] [fixed]
+// The spacing is the one of the "Samples" preference (1 by default); "fixed" plays
+// every note with the mf layer, like the fixed velocity preference.
+public class PerformanceWavWriter {
+	private static final int SAMPLE_RATE = 44100;
+
+	private PerformanceWavWriter() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3 || args.length > 5) {
+			System.err.println("Usage: PerformanceWavWriter <bank> <performance> <WAVE file> [spacing] [fixed]");
+			System.exit(1);
+		}
+		int spacing = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+		boolean dynamic = (args.length < 5) || !"fixed".equals(args[4]);
+		FileInputStream bankIn = new FileInputStream(args[0]);
+		SampleBank bank;
+		try {
+			FileChannel channel = bankIn.getChannel();
+			bank = SampleBank.map(channel, 0, channel.size());
+		} finally {
+			bankIn.close();
+		}
+		PerformanceRenderer renderer = new PerformanceRenderer(bank, SAMPLE_RATE, spacing, dynamic);
+		long start = System.nanoTime();
+		long frames;
+		FileInputStream log = new FileInputStream(args[1]);
+		try {
+			RandomAccessFile wave = new RandomAccessFile(args[2], "rw");
+			try {
+				wave.setLength(0);
+				frames = renderer.render(log.getChannel(), wave.getChannel());
+			} finally {
+				wave.close();
+			}
+		} finally {
+			log.close();
+		}
+		// Throughput, in seconds of audio per second of rendering
+		double audioSeconds = (double) frames / renderer.getSampleRate();
+		double renderSeconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Rendered %.1f s of audio in %.2f s (%.1f x real time)%n",
+				audioSeconds, renderSeconds, audioSeconds / renderSeconds);
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Build time tool that packs the WAVE files of the low latency mixer into a
+// sample bank (see SampleBank), run by the -pre-build target of build.xml:
+//   java org.esteban.piano.SampleBankWriter <directory with the WAVE files> <bank>
+// The files are named like copy-and-rename-audio-files.sh copies them:
+// noteN.wav, noteN.pp.wav and noteN.ff.wav, with N from 0 for C3. Nothing is done if there are none, or
+// if the bank is newer than all of them.
+public class SampleBankWriter {
+	private static final Pattern FILE_NAME = Pattern.compile("note(\\d+)(\\.(pp|ff))?\\.wav");
+
+	private SampleBankWriter() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: SampleBankWriter <directory with the WAVE files> <bank>");
+			System.exit(1);
+		}
+		File directory = new File(args[0]);
+		File bank = new File(args[1]);
+		// Find the samples
+		ArrayList<Integer> numbers = new ArrayList<Integer>();
+		ArrayList<File> files = new ArrayList<File>();
+		long newest = 0;
+		File[] candidates = directory.listFiles();
+		if (candidates != null) {
+			for (File file : candidates) {
+				Matcher matcher = FILE_NAME.matcher(file.getName());
+				if (!matcher.matches()) {
+					continue;
+				}
+				int layer = NoteMapping.LAYER_MF;
+				if ("pp".equals(matcher.group(3))) {
+					layer = NoteMapping.LAYER_PP;
+				} else if ("ff".equals(matcher.group(3))) {
+					layer = NoteMapping.LAYER_FF;
+				}
+				int note = NoteMapping.FIRST_BUNDLED_NOTE + Integer.parseInt(matcher.group(1));
+				numbers.add(Integer.valueOf(layer * NoteMapping.NUMBER_OF_NOTES + note));
+				files.add(file);
+				newest = Math.max(newest, file.lastModified());
+			}
+		}
+		if (files.isEmpty()) {
+			System.out.println("No samples in " + directory + ", sample bank not made");
+			return;
+		}
+		if (bank.exists() && bank.lastModified() >= newest) {
+			System.out.println("Sample bank " + bank + " up to date");
+			return;
+		}
+		// Read and pack them
+		int[] sampleNumbers = new int[files.size()];
+		PcmSample[] samples = new PcmSample[files.size()];
+		for (int i = 0; i < samples.length; i++) {
+			sampleNumbers[i] = numbers.get(i).intValue();
+			InputStream in = new BufferedInputStream(new FileInputStream(files.get(i)));
+			try {
+				samples[i] = WavReader.read(in);
+			} finally {
+				in.close();
+			}
+		}
+		FileOutputStream out = new FileOutputStream(bank);
+		try {
+			write(out.getChannel(), sampleNumbers, samples);
+		} finally {
+			out.close();
+		}
+		System.out.println("Sample bank " + bank + " made with " + samples.length + " samples");
+	}
+
+	// Write a bank with some samples and their numbers
+	public static void write(FileChannel out, int[] sampleNumbers, PcmSample[] samples)
+			throws IOException {
+		// Index, with the offset of each entry
+		ByteBuffer index = ByteBuffer.allocate(SampleBank.HEADER_BYTES
+				+ samples.length * SampleBank.ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		index.putInt(SampleBank.MAGIC);
+		index.putInt(SampleBank.VERSION);
+		index.putInt(samples.length);
+		long offset = index.capacity();
+		for (int i = 0; i < samples.length; i++) {
+			offset = (offset + 3) & ~3L; // aligned
+			if (offset + samples[i].getSizeInBytes() > Integer.MAX_VALUE) {
+				throw new IOException("Sample bank too big");
+			}
+			index.putInt(sampleNumbers[i]);
+			index.putInt(samples[i].getChannels());
+			index.putInt(samples[i].getSampleRate());
+			index.putInt(samples[i].getFrames());
+			index.putInt((int) offset);
+			offset += samples[i].getSizeInBytes();
+		}
+		index.flip();
+		writeFully(out, index);
+		// Audio of each entry
+		for (PcmSample sample : samples) {
+			long position = out.position();
+			ByteBuffer audio = ByteBuffer.allocate((int) (((position + 3) & ~3L) - position)
+					+ sample.getSizeInBytes()).order(ByteOrder.LITTLE_ENDIAN);
+			audio.position(audio.capacity() - sample.getSizeInBytes()); // padding
+			ShortBuffer data = sample.getData();
+			for (int i = 0; i < data.limit(); i++) {
+				audio.putShort(data.get(i));
+			}
+			audio.flip();
+			writeFully(out, audio);
+		}
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esteban.piano;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Tool that replays touch traces (see TouchTrace) on a plain JVM through the logic
+// that turns touches into notes (see TouchKeys), listing the notes they play and
+// timing the handling of each event:
+//   java org.esteban.piano.TouchTraceReplayer [update] <trace or directory>...
+// A trace with a .notes file next to it (same name) is checked against it, failing
+// at the first difference; "update" writes the .notes files instead, after a change
+// meant to play other notes. Without a .notes file, the notes are printed. A
+// directory replays every .ptt trace in it, as a regression suite (see
+// core/traces). Exits with 1 if some trace fails.
+// Velocities are those of the pressure preference, with every dynamic layer.
+public class TouchTraceReplayer implements TouchKeys.Listener {
+	private static final String TRACE_SUFFIX = ".ptt";
+	private static final String NOTES_SUFFIX = ".notes";
+	// passes over each trace to time it, the first ones to warm up the JIT
+	private static final int WARM_UP_PASSES = 20;
+	private static final int TIMED_PASSES = 50;
+	// touch to velocity conversion of PianoLayout
+	private static final float VELOCITY_EXPONENT = 0.6f;
+	private static final String[] NOTE_NAMES = {"C", "C#", "D", "D#", "E", "F", "F#", "G",
+			"G#", "A", "A#", "B"};
+	private final NoteMapping noteMapping;
+	private final VelocityMap velocityMap;
+	// notes played, one per line, or null while timing
+	private List<String> notes;
+	private long timeMillis;
+
+	// Constructor, for the keyboard of a trace
+	private TouchTraceReplayer(TouchTrace trace) {
+		noteMapping = trace.createNoteMapping();
+		boolean[] layers = new boolean[NoteMapping.NUMBER_OF_LAYERS];
+		Arrays.fill(layers, true);
+		velocityMap = new VelocityMap(VELOCITY_EXPONENT, 0.0f, layers);
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean update = args.length > 0 && "update".equals(args[0]);
+		int first = update ? 1 : 0;
+		if (args.length <= first) {
+			System.err.println("Usage: TouchTraceReplayer [update] <trace or directory>...");
+			System.exit(1);
+		}
+		boolean passed = true;
+		for (int i = first; i < args.length; i++) {
+			File file = new File(args[i]);
+			if (file.isDirectory()) {
+				File[] traces = file.listFiles();
+				Arrays.sort(traces);
+				for (File trace : traces) {
+					if (trace.getName().endsWith(TRACE_SUFFIX)) {
+						passed &= replay(trace, update);
+					}
+				}
+			} else {
+				passed &= replay(file, update);
+			}
+		}
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	// Replay a trace, checking, updating or printing its notes, and timing it.
+	// Returns false if the notes differ from the expected ones.
+	private static boolean replay(File file, boolean update) throws IOException {
+		TouchTrace trace = readTrace(file);
+		TouchTraceReplayer replayer = new TouchTraceReplayer(trace);
+		TouchKeys touchKeys = new TouchKeys(trace.createLayout());
+		TouchPoints points = new TouchPoints();
+		// Play the notes
+		replayer.notes = new ArrayList<String>();
+		int events = replayer.run(file, touchKeys, points, null);
+		List<String> played = replayer.notes;
+		replayer.notes = null;
+		// Time the handling of the events
+		LatencyHistogram eventTimes = new LatencyHistogram(10, 10000); // 10 ns buckets up to 100 us
+		for (int pass = 0; pass < WARM_UP_PASSES + TIMED_PASSES; pass++) {
+			touchKeys.clear();
+			replayer.run(file, touchKeys, points, (pass < WARM_UP_PASSES) ? null : eventTimes);
+		}
+		String timing = String.format("%d events, %d notes; per event p50 %.2f us, p99 %.2f us, max %.2f us",
+				events, countNotesOn(played), eventTimes.getPercentileNanos(0.5) / 1000.0,
+				eventTimes.getPercentileNanos(0.99) / 1000.0, eventTimes.getMaxNanos() / 1000.0);
+		// Compare the notes with the expected ones
+		String name = file.getName();
+		File notesFile = new File(file.getParentFile(),
+				name.substring(0, name.length() - (name.endsWith(TRACE_SUFFIX) ? TRACE_SUFFIX.length() : 0))
+				+ NOTES_SUFFIX);
+		if (update) {
+			writeLines(notesFile, played);
+			System.out.println(name + ": updated, " + timing);
+			return true;
+		}
+		if (!notesFile.exists()) {
+			for (String line : played) {
+				System.out.println(line);
+			}
+			System.out.println(name + ": " + timing);
+			return true;
+		}
+		List<String> expected = readLines(notesFile);
+		for (int line = 0; line < Math.max(expected.size(), played.size()); line++) {
+			String expectedLine = (line < expected.size()) ? expected.get(line) : "(end)";
+			String playedLine = (line < played.size()) ? played.get(line) : "(end)";
+			if (!expectedLine.equals(playedLine)) {
+				System.out.println(name + ": FAILED at line " + (line + 1) + " of " + notesFile.getName()
+						+ ": expected \"" + expectedLine + "\", played \"" + playedLine + "\"");
+				return false;
+			}
+		}
+		System.out.println(name + ": OK, " + timing);
+		return true;
+	}
+
+	// Handle every event of a trace, timing each one if there are times to record.
+	// Returns the number of events.
+	private int run(File file, TouchKeys touchKeys, TouchPoints points, LatencyHistogram eventTimes)
+			throws IOException {
+		int events = 0;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			TouchTraceReader reader = new TouchTraceReader(in.getChannel());
+			while (reader.next(points)) {
+				timeMillis = reader.getTimeNanos() / 1000000;
+				long start = System.nanoTime();
+				touchKeys.find(points, velocityMap);
+				touchKeys.dispatch(this);
+				if (eventTimes != null) {
+					eventTimes.record(System.nanoTime() - start);
+				}
+				events++;
+			}
+		} finally {
+			in.close();
+		}
+		return events;
+	}
+
+	private static TouchTrace readTrace(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return new TouchTraceReader(in.getChannel()).getTrace();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public void onPedalTouched(boolean touched) {
+		if (notes != null) {
+			notes.add(timeMillis + " pedal " + (touched ? "down" : "up"));
+		}
+	}
+
+	// Notes as PianoLayout plays them: keys beyond the piano play nothing
+	@Override
+	public void onKeyPressed(int key, float strength) {
+		int note = noteMapping.getSample(key);
+		if (notes != null && note != NoteMapping.NO_SAMPLE) {
+			notes.add(timeMillis + " on " + key + " " + noteName(note) + " "
+					+ velocityMap.getVelocity(strength));
+		}
+	}
+
+	@Override
+	public void onKeyReleased(int key) {
+		if (notes != null && noteMapping.getSample(key) != NoteMapping.NO_SAMPLE) {
+			notes.add(timeMillis + " off " + key + " " + noteName(noteMapping.getSample(key)));
+		}
+	}
+
+	// Name of a note, like C4 (A0 is note 0)
+	private static String noteName(int note) {
+		int fromC0 = note + 9;
+		return NOTE_NAMES[fromC0 % NoteMapping.NOTES_PER_OCTAVE] + (fromC0 / NoteMapping.NOTES_PER_OCTAVE);
+	}
+
+	private static int countNotesOn(List<String> lines) {
+		int count = 0;
+		for (String line : lines) {
+			if (line.contains(" on ")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+
+	private static void writeLines(File file, List<String> lines) throws IOException {
+		Writer out = new FileWriter(file);
+		try {
+			for (String line : lines) {
+				out.write(line);
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
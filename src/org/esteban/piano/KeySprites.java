@@ -0,0 +1,113 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+// Pre-rendered images of the key shapes in each of their states.
+// All of them are rendered once into a single bitmap (an atlas), so drawing a key
+// is a bitmap copy instead of the rasterization of its path.
+public class KeySprites {
+	// Sets up the paint used to render a shape in a state
+	public interface Painter {
+		void setUpPaint(Paint paint, int shape, int state);
+	}
+
+	private final int shapes, states;
+	// space around each shape, for its stroke
+	private final int padding;
+	// rendered images
+	private Bitmap atlas;
+	// area of the atlas of each shape and state, in index shape * states + state
+	private final Rect[] cells;
+	// objects reused while drawing
+	private final RectF bounds;
+	private final Rect destination;
+
+	// Constructor
+	public KeySprites(int shapes, int states, int padding) {
+		this.shapes = shapes;
+		this.states = states;
+		this.padding = padding;
+		cells = new Rect[shapes * states];
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = new Rect();
+		}
+		bounds = new RectF();
+		destination = new Rect();
+	}
+
+	// Render the shapes (one path per shape) in all their states
+	public void build(Path[] shapePaths, Paint paint, Painter painter) {
+		release();
+		// Place the shapes side by side, one row of the atlas per state
+		int width = 0;
+		int height = 0;
+		for (int shape = 0; shape < shapes; shape++) {
+			shapePaths[shape].computeBounds(bounds, true);
+			int cellWidth = (int) Math.ceil(bounds.width()) + 2 * padding;
+			int cellHeight = (int) Math.ceil(bounds.height()) + 2 * padding;
+			for (int state = 0; state < states; state++) {
+				cells[shape * states + state].set(width, state * cellHeight,
+						width + cellWidth, (state + 1) * cellHeight);
+			}
+			width += cellWidth;
+			height = Math.max(height, cellHeight);
+		}
+		atlas = Bitmap.createBitmap(Math.max(width, 1), Math.max(height * states, 1),
+				Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(atlas);
+		for (int shape = 0; shape < shapes; shape++) {
+			shapePaths[shape].computeBounds(bounds, true);
+			for (int state = 0; state < states; state++) {
+				Rect cell = cells[shape * states + state];
+				painter.setUpPaint(paint, shape, state);
+				canvas.save();
+				canvas.translate(cell.left + padding - bounds.left, cell.top + padding - bounds.top);
+				canvas.drawPath(shapePaths[shape], paint);
+				canvas.restore();
+			}
+		}
+	}
+
+	// Draw a shape in a state, with the top left corner of its bounds at a point
+	public void draw(Canvas canvas, int shape, int state, float left, float top) {
+		if (atlas == null) {
+			return;
+		}
+		Rect cell = cells[shape * states + state];
+		int x = Math.round(left) - padding;
+		int y = Math.round(top) - padding;
+		destination.set(x, y, x + cell.width(), y + cell.height());
+		canvas.drawBitmap(atlas, cell, destination, null);
+	}
+
+	// Free the rendered images
+	public void release() {
+		if (atlas != null) {
+			atlas.recycle(); // mark the bitmap as dead
+			atlas = null;
+		}
+	}
+}
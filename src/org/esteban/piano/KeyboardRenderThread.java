@@ -0,0 +1,251 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Process;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+// Thread that draws the keyboard on a SurfaceView, so that drawing never delays the
+// handling of touches. The touch thread only publishes the state of each key through
+// a KeyStateHandoff and wakes this thread up; the keys whose state changed are drawn
+// from a KeySprites atlas into a bitmap, and the changed area is copied to the surface.
+public class KeyboardRenderThread extends Thread implements SurfaceHolder.Callback {
+	// Keyboard layout to draw, replaced as a whole when the view size changes
+	public static class Geometry {
+		private final int width, height;
+		private final Path[] shapePaths; // one path per shape, see KeySprites
+		private final RectF[] keyBounds;
+		private final int[] keyShapes;
+		private final OctaveBar octaveBar;
+
+		// Constructor (the arguments are copied)
+		public Geometry(int width, int height, Path[] shapePaths, RectF[] keyBounds, int[] keyShapes,
+				OctaveBar octaveBar) {
+			this.width = width;
+			this.height = height;
+			this.shapePaths = new Path[shapePaths.length];
+			for (int i = 0; i < shapePaths.length; i++) {
+				this.shapePaths[i] = new Path(shapePaths[i]);
+			}
+			this.keyBounds = new RectF[keyBounds.length];
+			for (int i = 0; i < keyBounds.length; i++) {
+				this.keyBounds[i] = new RectF(keyBounds[i]);
+			}
+			this.keyShapes = keyShapes.clone();
+			this.octaveBar = new OctaveBar(octaveBar);
+		}
+	}
+
+	// drawing statistics, logged every FRAME_STATS_PERIOD frames
+	private static final int FRAME_STATS_PERIOD = 100;
+	private final SurfaceHolder holder;
+	private final KeyStateHandoff keyStates;
+	private final KeySprites.Painter painter;
+	private final Paint paint;
+	private final KeySprites keySprites;
+	// set by other threads
+	private volatile Geometry newGeometry;
+	private final AtomicBoolean redrawRequested;
+	private volatile boolean running;
+	// guards the surface between its creation and destruction
+	private final Object surfaceLock = new Object();
+	private boolean surfaceReady;
+	// owned by this thread
+	private Geometry geometry;
+	private Bitmap keyboardBitmap;
+	private Canvas keyboardCanvas;
+	private int[] currentStates;
+	private final int[] drawnStates;
+	private final RectF dirtyBounds;
+	private final Rect dirtyRect;
+	private final FrameStats frameStats;
+	private final LatencyStats latencyStats;
+
+	// Constructor
+	public KeyboardRenderThread(SurfaceHolder holder, KeyStateHandoff keyStates, int numberOfKeys,
+			int numberOfShapes, int numberOfStates, float strokeWidth, KeySprites.Painter painter,
+			LatencyStats latencyStats) {
+		super("KeyboardRenderThread");
+		this.latencyStats = latencyStats;
+		this.holder = holder;
+		this.keyStates = keyStates;
+		this.painter = painter;
+		paint = new Paint();
+		paint.setStrokeWidth(strokeWidth);
+		keySprites = new KeySprites(numberOfShapes, numberOfStates, (int) Math.ceil(strokeWidth));
+		currentStates = new int[numberOfKeys];
+		drawnStates = new int[numberOfKeys];
+		dirtyBounds = new RectF();
+		dirtyRect = new Rect();
+		frameStats = new FrameStats();
+		redrawRequested = new AtomicBoolean(true);
+		running = true;
+		holder.addCallback(this);
+	}
+
+	// Use a new keyboard layout, drawing the whole keyboard again
+	public void setGeometry(Geometry geometry) {
+		newGeometry = geometry;
+		wake();
+	}
+
+	// Draw the latest published key states
+	public void wake() {
+		LockSupport.unpark(this);
+	}
+
+	// Stop the thread and wait for it to finish
+	public void quit() {
+		running = false;
+		holder.removeCallback(this);
+		wake();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+		while (running) {
+			render();
+			LockSupport.park(this); // until there is something new to draw
+		}
+		keySprites.release();
+		if (keyboardBitmap != null) {
+			keyboardBitmap.recycle(); // mark the bitmap as dead
+		}
+	}
+
+	@Override
+	public void surfaceCreated(SurfaceHolder holder) {
+		synchronized (surfaceLock) {
+			surfaceReady = true;
+		}
+		redrawRequested.set(true);
+		wake();
+	}
+
+	@Override
+	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+		redrawRequested.set(true);
+		wake();
+	}
+
+	@Override
+	public void surfaceDestroyed(SurfaceHolder holder) {
+		// The surface can't be used after returning, so wait for the frame being drawn
+		synchronized (surfaceLock) {
+			surfaceReady = false;
+		}
+	}
+
+	// Draw what changed since the last frame
+	private void render() {
+		long start = System.nanoTime();
+		boolean fullRedraw = redrawRequested.getAndSet(false);
+		// Render the key shapes again for a new layout
+		Geometry latestGeometry = newGeometry;
+		if (latestGeometry != geometry) {
+			geometry = latestGeometry;
+			keySprites.build(geometry.shapePaths, paint, painter);
+			if (keyboardBitmap != null) {
+				keyboardBitmap.recycle(); // mark the bitmap as dead
+			}
+			keyboardBitmap = Bitmap.createBitmap(Math.max(geometry.width, 1),
+					Math.max(geometry.height, 1), Bitmap.Config.ARGB_8888);
+			keyboardCanvas = new Canvas(keyboardBitmap);
+			fullRedraw = true;
+		}
+		int[] latestStates = keyStates.take();
+		if (latestStates != null) {
+			currentStates = latestStates; // ours until the next take()
+		}
+		if (geometry == null) {
+			return; // nothing to draw yet
+		}
+		// Find the area of the changed keys, and draw them on the bitmap
+		if (fullRedraw) {
+			dirtyBounds.set(0.0f, 0.0f, geometry.width, geometry.height);
+		} else {
+			dirtyBounds.setEmpty();
+			for (int i = 0; i < currentStates.length; i++) {
+				if (currentStates[i] != drawnStates[i]) {
+					dirtyBounds.union(geometry.keyBounds[i]);
+				}
+			}
+			if (dirtyBounds.isEmpty()) {
+				return;
+			}
+			// include the stroke of the key edges
+			dirtyBounds.inset(-paint.getStrokeWidth(), -paint.getStrokeWidth());
+		}
+		dirtyBounds.roundOut(dirtyRect);
+		keyboardCanvas.save();
+		keyboardCanvas.clipRect(dirtyRect);
+		keyboardCanvas.drawColor(Color.WHITE);
+		if (dirtyBounds.top < geometry.octaveBar.getHeight()) {
+			geometry.octaveBar.draw(keyboardCanvas);
+		}
+		for (int i = 0; i < currentStates.length; i++) {
+			if (!RectF.intersects(dirtyBounds, geometry.keyBounds[i])) {
+				continue;
+			}
+			drawnStates[i] = currentStates[i];
+			keySprites.draw(keyboardCanvas, geometry.keyShapes[i], drawnStates[i],
+					geometry.keyBounds[i].left, geometry.keyBounds[i].top);
+		}
+		keyboardCanvas.restore();
+		// Copy the area to the surface (which may enlarge it to cover what changed
+		// in its other buffers)
+		synchronized (surfaceLock) {
+			if (!surfaceReady) {
+				redrawRequested.set(true); // draw everything on the next surface
+				return;
+			}
+			Canvas canvas = holder.lockCanvas(dirtyRect);
+			if (canvas == null) {
+				redrawRequested.set(true);
+				return;
+			}
+			canvas.drawBitmap(keyboardBitmap, dirtyRect, dirtyRect, null);
+			holder.unlockCanvasAndPost(canvas);
+		}
+		long end = System.nanoTime();
+		frameStats.record(end - start, (long) dirtyRect.width() * dirtyRect.height());
+		latencyStats.frameDrawn(start, end);
+		if (frameStats.getFrames() >= FRAME_STATS_PERIOD) {
+			Log.d("KeyboardRenderThread", "Drawing: " + frameStats);
+			frameStats.reset();
+		}
+	}
+}
@@ -23,12 +23,15 @@
 
 package org.esteban.piano;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.Activity;
 import android.content.Context;
@@ -36,15 +39,23 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.media.AudioManager;
-import android.media.SoundPool;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Debug;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -52,27 +63,27 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.FrameLayout;
 import android.widget.Toast;
 
 public class MainActivity extends Activity implements OnSharedPreferenceChangeListener {
 
 	// Custom view
 	private PianoLayout pianoView;
-	// List of formerly pressed keys
-	private static Set<Integer> old_pressed;
-	// Preference variables
-	protected String lowerOctavePosition;
-	protected String damper; // boolean preferred, but no boolean array resource possible
-	protected String octaves;
-	protected String orientation;
+	// Preferences, replaced as a whole when one changes (read from any thread)
+	private volatile PianoConfig config;
 	// Preference data interface
 	static SharedPreferences sharedPreferences;
 	// Flags to detect key presses
 	private boolean upPressed;
 	private boolean downPressed;
+	// request of the MIDI file chosen to be played
+	private static final int IMPORT_MIDI_REQUEST = 1;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -83,15 +94,8 @@ public class MainActivity extends Activity implements OnSharedPreferenceChangeLi
 		// ...didn't call the on change listener. So:
 		sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
 		sharedPreferences.registerOnSharedPreferenceChangeListener(this);
-		// Save preferences into variables
-		lowerOctavePosition = sharedPreferences.getString("pref_rows",
-				this.getString(R.string.pref_rows_default_value));
-		damper = sharedPreferences.getString("pref_damper",
-				this.getString(R.string.pref_damper_default_value));
-		octaves = sharedPreferences.getString("pref_octaves",
-				this.getString(R.string.pref_octaves_default_value));
-		orientation = sharedPreferences.getString("pref_orient",
-				this.getString(R.string.pref_orient_default_value));
+		// Save preferences into a configuration
+		config = new PianoConfig(sharedPreferences, this);
 
 		// Make volume button always control just the media volume
 		setVolumeControlStream(AudioManager.STREAM_MUSIC);
@@ -104,22 +108,33 @@ public class MainActivity extends Activity implements OnSharedPreferenceChangeLi
 		getWindow().setFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN,
 				WindowManager.LayoutParams.FLAG_FULLSCREEN);
 		// Set preferred orientation
-		if (orientation.equals(this.getString(R.string.pref_orient_landscape_value))) {
-			setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
-		}
-		if (orientation.equals(this.getString(R.string.pref_orient_portrait_value))) {
-			setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
-		}
+		applyOrientation();
 		// Set view
 		pianoView = new PianoLayout(this.getApplicationContext());
-		setContentView(pianoView);
+		if (config.getRenderMode() == PianoConfig.RenderMode.SURFACE) {
+			// Draw the keyboard on a surface behind the view, from a thread of its own
+			// (the view only handles touches)
+			SurfaceView surfaceView = new SurfaceView(this.getApplicationContext());
+			FrameLayout frame = new FrameLayout(this.getApplicationContext());
+			frame.addView(surfaceView);
+			frame.addView(pianoView);
+			pianoView.startRenderThread(surfaceView.getHolder());
+			setContentView(frame);
+		} else {
+			setContentView(pianoView);
+		}
 	}
 
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
 
-		pianoView.destroy();
+		// Stop following the preferences, which would otherwise act on the audio
+		// shared with the next activity (see PianoApplication)
+		sharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
+		// Keep the sounds loaded for the next activity if this one is only being
+		// created again
+		pianoView.destroy(isChangingConfigurations());
 	}
 
 	// Initialize options menu contents
@@ -132,90 +147,110 @@ public class MainActivity extends Activity implements OnSharedPreferenceChangeLi
 
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
-		// Not checking item argument because there's only one option in the menu
-		startActivity(new Intent(MainActivity.this, SettingsActivity.class));
-		return true;
+		switch (item.getItemId()) {
+		case R.id.record:
+			pianoView.toggleRecording();
+			return true;
+		case R.id.play:
+			pianoView.togglePlayback();
+			return true;
+		case R.id.export_midi:
+			pianoView.exportMidi();
+			return true;
+		case R.id.capture_touches:
+			pianoView.toggleTouchCapture();
+			return true;
+		case R.id.dump_stats:
+			pianoView.dumpStats();
+			return true;
+		case R.id.import_midi:
+			Intent chooser = new Intent(Intent.ACTION_GET_CONTENT).setType("audio/midi")
+					.addCategory(Intent.CATEGORY_OPENABLE);
+			startActivityForResult(chooser, IMPORT_MIDI_REQUEST);
+			return true;
+		default:
+			startActivity(new Intent(MainActivity.this, SettingsActivity.class));
+			return true;
+		}
+	}
+
+	// Play the MIDI file chosen
+	@Override
+	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+		if (requestCode == IMPORT_MIDI_REQUEST && resultCode == RESULT_OK && data != null
+				&& data.getData() != null) {
+			pianoView.importMidi(data.getData());
+		}
+	}
+
+	// Set preferred screen orientation
+	private void applyOrientation() {
+		if (config.getOrientation() == PianoConfig.Orientation.LANDSCAPE) {
+			setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
+		} else {
+			setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
+		}
 	}
 
 	// Implement the method that is called when a shared preference is changed, added or removed
 	@Override
 	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-		if (key.equals("pref_damper")) {
-			damper = sharedPreferences.getString(key,
-					this.getString(R.string.pref_damper_default_value));
-		}
-		if (key.equals("pref_rows")) {
-			// See if the preference was really changed or just the dialog shown
-			if (!(lowerOctavePosition.equals(sharedPreferences.getString(key,
-					this.getString(R.string.pref_rows_default_value))))) {
-				// Update variable
-				lowerOctavePosition = sharedPreferences.getString(key,
-					this.getString(R.string.pref_rows_default_value));
-				// Swap rows
-				for (int i = 0; i < (pianoView.numberOfNotes / 2); i++) {
-					Collections.swap(pianoView.keys, i, i + 12);
-				}
-			}
+		// Read the preferences again, and see what really changed (the preference may
+		// have been just shown in a dialog)
+		PianoConfig oldConfig = config;
+		config = new PianoConfig(sharedPreferences, this);
+		if (config.getRenderMode() != oldConfig.getRenderMode()
+				|| config.getRowCount() != oldConfig.getRowCount()
+				|| config.getOctavesPerRow() != oldConfig.getOctavesPerRow()) {
+			// Create the views again
+			recreate();
+			return;
 		}
-		if (key.equals("pref_octaves")) {
-			// See if the preference was really changed or just the dialog shown
-			if (!(octaves.equals(sharedPreferences.getString(key,
-					this.getString(R.string.pref_octaves_default_value))))) {
-				// Update variable
-				octaves = sharedPreferences.getString(key,
-					this.getString(R.string.pref_octaves_default_value));
-				// Release old sounds and clear their identifications
-				for (int id : pianoView.soundIds) {
-					pianoView.pianoSounds.unload(id);
-				}
-				pianoView.soundIds.clear();
-				// Load new sounds and save their identifications
-				for (int i = 0; i < pianoView.numberOfNotes; i++) {
-					int resourceId;
-					if (octaves.equals(this.getString(R.string.pref_octaves_34_value))) {
-						resourceId = this.getApplicationContext().getResources().
-								getIdentifier("note"
-										+ i,
-										"raw", this.getApplicationContext().getPackageName());
-						pianoView.soundIds.add(pianoView.pianoSounds.load(
-								this.getApplicationContext(), resourceId, 1));
-					}
-					if (octaves.equals(MainActivity.this.getString(R.string.pref_octaves_45_value))) {
-						resourceId = this.getApplicationContext().getResources().
-								getIdentifier("note"
-								+ Integer.toString(i + 12),
-										"raw", this.getApplicationContext().getPackageName());
-						pianoView.soundIds.add(pianoView.pianoSounds.load(
-								this.getApplicationContext(), resourceId, 1));
-					}
-					if (octaves.equals(MainActivity.this.getString(R.string.pref_octaves_35_value))) {
-						resourceId = this.getApplicationContext().getResources().
-								getIdentifier("note"
-								+ Integer.toString(i + (i / 12) * 12),
-										"raw", this.getApplicationContext().getPackageName());
-						pianoView.soundIds.add(pianoView.pianoSounds.load(
-								this.getApplicationContext(), resourceId, 1));
-					}
-				}
-			}
+		if (config.getDamper() != oldConfig.getDamper()) {
+			pianoView.updateSustain();
 		}
-		if (key.equals("pref_orient")) {
-			// Update variable
-			orientation = sharedPreferences.getString(key,
-					this.getString(R.string.pref_orient_default_value));
-			// Set preferred screen orientation
-			if (orientation.equals(this.getString(R.string.pref_orient_landscape_value))) {
-				setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
-			}
-			if (orientation.equals(this.getString(R.string.pref_orient_portrait_value))) {
-				setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
-			}
+		if (config.getRowOrder() != oldConfig.getRowOrder()) {
+			// Place the rows again
+			pianoView.createShapes();
+			pianoView.redraw();
+		}
+		if (!config.hasSameOctaves(oldConfig)) {
+			// Load new sounds (the old ones stay cached)
+			pianoView.changeOctaves();
+		}
+		if (config.getOrientation() != oldConfig.getOrientation()) {
+			applyOrientation();
+		}
+		if (config.isStatsShown() != oldConfig.isStatsShown()) {
+			pianoView.setStatsShown(config.isStatsShown());
+		}
+		if (config.getEngine() != oldConfig.getEngine()) {
+			// Replace the audio engine, loading the sounds again
+			pianoView.changeAudioEngine();
+		} else if (config.getSampleSpacing() != oldConfig.getSampleSpacing()) {
+			// Load the samples of the new roots (the old ones stay cached)
+			pianoView.rootMapping = pianoView.createRootMapping();
+			pianoView.velocityMap = pianoView.createVelocityMap();
+			pianoView.midiVelocityMap = pianoView.createMidiVelocityMap();
+			pianoView.loadSounds();
+		} else if (config.getVelocity() != oldConfig.getVelocity()) {
+			pianoView.velocityMap = pianoView.createVelocityMap();
 		}
 	}
 
 	// Respond to special key press combination when there is no hardware menu key to show the menu
 	@Override
 	public boolean dispatchKeyEvent(KeyEvent event) {
+		// Use some keys as a sustain pedal
+		if (pianoView.isPedalKey(event.getKeyCode())) {
+			if (event.getAction() == KeyEvent.ACTION_DOWN) {
+				pianoView.setPedalKeyPressed(true);
+			}
+			if (event.getAction() == KeyEvent.ACTION_UP) {
+				pianoView.setPedalKeyPressed(false);
+			}
+			return true;
+		}
 		// Set flags according to key presses and releases
 		if (event.getKeyCode() == KeyEvent.KEYCODE_VOLUME_UP) {
 			if (event.getAction() == KeyEvent.ACTION_DOWN) {
@@ -251,35 +286,159 @@ public class MainActivity extends Activity implements OnSharedPreferenceChangeLi
 		return super.dispatchKeyEvent(event);
 	}
 
-	public class PianoLayout extends View {
+	public class PianoLayout extends View implements SampleLoader.Listener, KeySprites.Painter,
+			PerformancePlayer.Listener, TouchKeys.Listener {
 		// a Paint object is needed to be able to draw anything
 		private Paint pianoPaint;
 		// view dimensions (fixed)
 		private int pianoWidth, pianoHeight;
 		// Path objects that define the shapes of the keys
 		private Path symmetricWhiteKey, asymCFWhiteKey, asymEBWhiteKey, blackKey;
+		// rows of keys, and octaves in each row
+		private int numberOfRows;
+		private int octavesPerRow;
 		// notes in the keyboard
 		private int numberOfNotes;
-		private int numberOfBlackKeys;
-		private ArrayList<Integer> blackKeyNoteNumbers;
-		// keys
+		// keys, and their places and the index to find the key under a touch
 		private ArrayList<Path> keys;
-		// sounds
-		private SoundPool pianoSounds;
-		// sound identifications array, to associate a piano key with its sound
-		private ArrayList<Integer> soundIds; // returned by sound pool load
-		private ArrayList<Integer> playIds; // returned by sound pool play 
+		private KeyboardLayout keyboardLayout;
+		// strip above the keys to see and move the octaves of the keyboard, as a
+		// fraction of the view height, and the pointer swiping along it
+		private static final int OCTAVE_BAR_FRACTION = 16;
+		private static final int NO_POINTER = -1;
+		private OctaveBar octaveBar;
+		private int octaveBarPointer;
+		private float octaveBarX;
+		// owner of the audio engine, the sound loader and the placed layouts, which
+		// outlive the activity
+		private PianoApplication application;
+		// sounds of all the notes available (see NoteMapping)
+		private AudioEngine audioEngine;
+		// octaves of the keyboard, to associate a piano key with its sound
+		private NoteMapping noteMapping;
+		// samples shared between neighbouring notes, according to the preference
+		// (replaced from the UI thread, also read by the MIDI thread)
+		private volatile RootMapping rootMapping;
+		// voices playing the sounds of the keys, of the recording being played and of
+		// a MIDI controller
+		private VoiceManager voiceManager;
+		// background loading of the sounds (of the application)
+		private SampleLoader sampleLoader;
+		// time of creation, to measure the time until the keyboard is shown
+		private long createdMillis;
+		private boolean firstFrameDrawn;
 		// objects needed to draw outside of onDraw
 		private Bitmap pianoBitmap;
 		private Canvas pianoCanvas;
-		// list of keys that must be shown as pressed
-		private ArrayList<Integer> justPressedKeys;
+		// bounds of the keys, and the state each key was drawn in, to redraw only the
+		// keys that change (set to false to compare frame times with full redraws)
+		private static final boolean DIRTY_REGION_DRAWING = true;
+		private static final int KEY_NORMAL = 0;
+		private static final int KEY_PRESSED = 1;
+		private static final int KEY_LOADING = 2;
+		private static final int NUMBER_OF_KEY_STATES = 3;
+		private RectF[] keyBounds;
+		private int[] drawnKeyStates;
+		private RectF dirtyBounds;
+		private Rect dirtyRect;
+		// pre-rendered key shapes (see KeyboardLayout), and the shape of each key
+		private KeySprites keySprites;
+		private int[] keyShapes;
+		// task to redraw keys from other threads
+		private Runnable keysUpdater;
+		// drawing statistics, logged every FRAME_STATS_PERIOD frames
+		private static final int FRAME_STATS_PERIOD = 100;
+		private FrameStats frameStats;
+		// thread that draws the keyboard on a surface instead of this view (null if
+		// the view draws it), and the key states published to it
+		private KeyboardRenderThread renderThread;
+		private KeyStateHandoff keyStateHandoff;
+		// latencies of each stage from a touch to its sound and picture (see
+		// LatencyStats), logged every LATENCY_STATS_PERIOD notes to compare both ways
+		// of drawing, and the touch-to-play count at which they are logged next
+		private static final int LATENCY_STATS_PERIOD = 100;
+		private LatencyStats latencyStats;
+		private long nextLatencyLog;
+		// overlay with the main statistics, refreshed every STATS_OVERLAY_MILLIS while
+		// shown, its lines (rebuilt without allocating memory), and the garbage
+		// collections counted since it was shown
+		private static final long STATS_OVERLAY_MILLIS = 500;
+		private static final int STATS_OVERLAY_LINES = 4;
+		private static final float STATS_TEXT_DIPS = 14.0f;
+		private boolean statsShown;
+		private StringBuilder[] statsLines;
+		private Paint statsPaint;
+		private Rect statsRect;
+		private Runnable statsUpdater;
+		private int statsGcStart;
+		// conversion of touch pressures into loudness and dynamic layers
+		private static final float VELOCITY_EXPONENT = 0.6f;
+		private static final float VELOCITY_SIZE_WEIGHT = 0.5f;
+		private volatile VelocityMap velocityMap;
+		// conversion of the velocities of MIDI controllers and of the recordings
+		// played, whatever the touch preference
+		private volatile VelocityMap midiVelocityMap;
+		// pointers of the touch sample being handled, and the keys they press (also
+		// used to show the just pressed ones), with the time of the sample and whether
+		// the event changed some key
+		private TouchPoints touchPoints;
+		private TouchKeys touchKeys;
+		private long touchEventNanos;
+		private boolean touchKeysChanged;
+		// engine clock minus touch time for the keys pressed by the event being
+		// handled (Long.MIN_VALUE until the first one), so the keys crossed by a
+		// slide between two events keep their spacing (see touchOnsetNanos)
+		private long touchToEngineNanos;
+		// capture of the touch events into a touch trace (null if not capturing)
+		private static final int TOUCH_TRACE_CAPACITY = 512;
+		private TouchTraceRecorder touchTraceRecorder;
+		// on-screen sustain pedal, a strip below the keys as high as the octave bar,
+		// and whether it or a hardware key used as a pedal are pressed
+		private RectF pedalBounds;
+		private Rect pedalRect;
+		private Paint pedalPaint;
+		private boolean pedalTouched;
+		private boolean pedalKeyPressed;
+		// recording of the notes played (null if not recording), with the note of each
+		// pressed key and the last pedal position recorded
+		private static final String PERFORMANCE_FILE = "performance.pnr";
+		private static final int RECORDER_CAPACITY = 4096;
+		private PerformanceRecorder recorder;
+		private int[] recordedNotes;
+		private boolean recordedSustain;
+		// playback of the recording (null if not playing), with its own voice keys
+		// after the keys of the keyboard, one per note of the piano, and its pedal
+		// (written by the player thread)
+		private PerformancePlayer player;
+		private volatile boolean playbackSustain;
+		// notes of the playback being held, shown pressed on their keys
+		private boolean[] playedNotes;
+		// recording converted from the last MIDI file played, and name of the MIDI
+		// files saved in the Music directory
+		private static final String IMPORTED_FILE = "imported.pnr";
+		private static final String EXPORTED_MIDI_FILE = "piano.mid";
+		// notes of a MIDI controller, routed from the USB input through a queue to
+		// the MIDI thread, which plays them on voice keys after the ones of the
+		// playback; the notes held and the pedal position, written by the MIDI thread
+		private static final int MIDI_QUEUE_CAPACITY = 1024;
+		private MidiRouter midiRouter;
+		private MidiRouter.Listener midiListener;
+		private UsbMidiInput usbMidiInput;
+		private boolean[] midiNotes;
+		private volatile boolean midiSustain;
+		// sustain of the pedals handled in the UI thread (see updateSustain)
+		private volatile boolean screenSustain;
+		// update of the keys requested by the MIDI thread, not done yet
+		private AtomicBoolean midiKeysPending;
+		private Runnable midiKeysUpdater;
 
 		// Constructor
 		public PianoLayout(Context context) {
 			super(context);
 
 			// Initialization
+			createdMillis = SystemClock.uptimeMillis();
+			firstFrameDrawn = false;
 			pianoPaint = new Paint();
 			pianoPaint.setStrokeWidth(2.0f); // stroke width used when Style is Stroke or StrokeAndFill, in pixels?
 			symmetricWhiteKey = new Path();
@@ -287,53 +446,277 @@ public class MainActivity extends Activity implements OnSharedPreferenceChangeLi
 			asymEBWhiteKey = new Path();
 			blackKey = new Path();
 			keys = new ArrayList<Path>();
-			numberOfNotes = 24; // two octaves
-			numberOfBlackKeys = 10; // two octaves
-			blackKeyNoteNumbers = new ArrayList<Integer>();
-			old_pressed = new HashSet<Integer>();
-			justPressedKeys = new ArrayList<Integer>();
-			pianoSounds = new SoundPool(24, AudioManager.STREAM_MUSIC, 0);
-			soundIds = new ArrayList<Integer>();
-			playIds = new ArrayList<Integer>();
-			for (int i = 0; i < numberOfNotes; i++) {
-				int resourceId;
-				// Load the sound of each note, saving the identifications
-				// (audio files saved as res/raw/note0.ogg etc.)
-				if (octaves.equals(MainActivity.this.getString(R.string.pref_octaves_34_value))) {
-					resourceId = context.getResources().getIdentifier("note"
-							+ Integer.toString(i),
-							"raw", context.getPackageName());
-					soundIds.add(pianoSounds.load(context, resourceId, 1));
+			dirtyBounds = new RectF();
+			dirtyRect = new Rect();
+			keysUpdater = new Runnable() {
+				@Override
+				public void run() {
+					updateKeys();
 				}
-				if (octaves.equals(MainActivity.this.getString(R.string.pref_octaves_45_value))) {
-					resourceId = context.getResources().getIdentifier("note"
-							+ Integer.toString(i + 12),
-							"raw", context.getPackageName());
-					soundIds.add(pianoSounds.load(context, resourceId, 1));
+			};
+			frameStats = new FrameStats();
+			latencyStats = new LatencyStats();
+			nextLatencyLog = LATENCY_STATS_PERIOD;
+			statsShown = false;
+			statsLines = new StringBuilder[STATS_OVERLAY_LINES];
+			for (int i = 0; i < STATS_OVERLAY_LINES; i++) {
+				statsLines[i] = new StringBuilder(64);
+			}
+			statsPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+			statsPaint.setTextSize(STATS_TEXT_DIPS * context.getResources().getDisplayMetrics().density);
+			statsRect = new Rect();
+			statsUpdater = new Runnable() {
+				@Override
+				public void run() {
+					updateStatsOverlay();
 				}
-				if (octaves.equals(MainActivity.this.getString(R.string.pref_octaves_35_value))) {
-					resourceId = context.getResources().getIdentifier("note"
-							+ Integer.toString(i + (i / 12) * 12),
-							"raw", context.getPackageName());
-					soundIds.add(pianoSounds.load(context, resourceId, 1));
+			};
+			numberOfRows = config.getRowCount();
+			octavesPerRow = config.getOctavesPerRow();
+			numberOfNotes = numberOfRows * octavesPerRow * NoteMapping.NOTES_PER_OCTAVE;
+			keyboardLayout = new KeyboardLayout(numberOfRows, octavesPerRow);
+			octaveBar = new OctaveBar();
+			octaveBarPointer = NO_POINTER;
+			noteMapping = config.getNoteMapping();
+			keyBounds = new RectF[numberOfNotes];
+			drawnKeyStates = new int[numberOfNotes];
+			keyShapes = new int[numberOfNotes];
+			keySprites = new KeySprites(KeyboardLayout.NUMBER_OF_SHAPES, NUMBER_OF_KEY_STATES,
+					(int) Math.ceil(pianoPaint.getStrokeWidth()));
+			touchPoints = new TouchPoints();
+			touchKeys = new TouchKeys(keyboardLayout);
+			pedalBounds = new RectF();
+			pedalRect = new Rect();
+			pedalPaint = new Paint();
+			pedalPaint.setStyle(Paint.Style.FILL);
+			pedalTouched = false;
+			pedalKeyPressed = false;
+			recordedNotes = new int[numberOfNotes];
+			playbackSustain = false;
+			playedNotes = new boolean[NoteMapping.NUMBER_OF_NOTES];
+			midiNotes = new boolean[NoteMapping.NUMBER_OF_NOTES];
+			midiSustain = false;
+			screenSustain = false;
+			midiKeysPending = new AtomicBoolean(false);
+			midiKeysUpdater = new Runnable() {
+				@Override
+				public void run() {
+					midiKeysPending.set(false);
+					updateKeys();
 				}
-				playIds.add(null);
+			};
+			application = (PianoApplication) MainActivity.this.getApplication();
+			application.attachAudio(config.getEngine(), this);
+			audioEngine = application.getAudioEngine();
+			voiceManager = createVoiceManager();
+			rootMapping = createRootMapping();
+			velocityMap = createVelocityMap();
+			midiVelocityMap = createMidiVelocityMap();
+			sampleLoader = application.getSampleLoader();
+			midiListener = createMidiListener();
+			midiRouter = new MidiRouter(MIDI_QUEUE_CAPACITY);
+			midiRouter.start(midiListener);
+			usbMidiInput = new UsbMidiInput(context, midiRouter);
+			for (int i = 0; i < numberOfNotes; i++) {
 				// Create key objects
 				keys.add(new Path());
-				// Record the note numbers of the black keys
-				switch (i % 12) {
-				case 1:
-				case 3:
-				case 6:
-				case 8:
-				case 10:
-					blackKeyNoteNumbers.add(Integer.valueOf(i));
-					break;
-				default:
-					break;
-				}
+				keyBounds[i] = new RectF();
+				keyShapes[i] = keyboardLayout.getShape(i);
 			}
+			updateSustain();
+			loadSounds();
 			pianoCanvas = new Canvas();
+			setStatsShown(config.isStatsShown());
+		}
+
+		// Draw the keyboard on a surface, from a thread of its own
+		private void startRenderThread(SurfaceHolder holder) {
+			keyStateHandoff = new KeyStateHandoff(numberOfNotes);
+			renderThread = new KeyboardRenderThread(holder, keyStateHandoff, numberOfNotes,
+					KeyboardLayout.NUMBER_OF_SHAPES, NUMBER_OF_KEY_STATES, pianoPaint.getStrokeWidth(), this,
+					latencyStats);
+			renderThread.start();
+			publishKeys();
+		}
+
+		// Create the sharing of samples chosen in the preferences, between the
+		// samples the audio engine has
+		private RootMapping createRootMapping() {
+			boolean[] availableSamples = new boolean[NoteMapping.NUMBER_OF_SAMPLES];
+			for (int sample = 0; sample < availableSamples.length; sample++) {
+				availableSamples[sample] = audioEngine.hasSample(sample);
+			}
+			return new RootMapping(config.getSampleSpacing(), availableSamples,
+					audioEngine.getMaxPitchShift());
+		}
+
+		// Create the conversion of touches into velocities chosen in the preferences,
+		// with the dynamic layers the audio engine has for every note
+		private VelocityMap createVelocityMap() {
+			if (config.getVelocity() == PianoConfig.Velocity.FIXED) {
+				return new VelocityMap();
+			}
+			float sizeWeight = (config.getVelocity() == PianoConfig.Velocity.SIZE)
+					? VELOCITY_SIZE_WEIGHT : 0.0f;
+			return new VelocityMap(VELOCITY_EXPONENT, sizeWeight,
+					VelocityMap.findPlayableLayers(rootMapping));
+		}
+
+		// Create the conversion of MIDI velocities, with the dynamic layers the audio
+		// engine has for every note (as PerformanceRenderer)
+		private VelocityMap createMidiVelocityMap() {
+			return new VelocityMap(1.0f, 0.0f, VelocityMap.findPlayableLayers(rootMapping));
+		}
+
+		// Replace the audio engine by the one chosen in the preferences
+		private void changeAudioEngine() {
+			midiRouter.stop(); // the MIDI notes wait in the queue meanwhile
+			application.attachAudio(config.getEngine(), this);
+			audioEngine = application.getAudioEngine();
+			voiceManager = createVoiceManager();
+			rootMapping = createRootMapping(); // the engine may have other samples
+			velocityMap = createVelocityMap();
+			midiVelocityMap = createMidiVelocityMap();
+			sampleLoader = application.getSampleLoader();
+			updateSustain();
+			loadSounds();
+			Arrays.fill(midiNotes, false);
+			midiRouter.start(midiListener);
+		}
+
+		// Voices for the keys, then the notes of the playback and of a MIDI controller
+		private VoiceManager createVoiceManager() {
+			return new VoiceManager(audioEngine, numberOfNotes + 2 * NoteMapping.NUMBER_OF_NOTES);
+		}
+
+		// Voice key of a note played by a MIDI controller
+		private int midiKey(int note) {
+			return numberOfNotes + NoteMapping.NUMBER_OF_NOTES + note;
+		}
+
+		// Play the notes of a MIDI controller, from the MIDI thread, through the same
+		// path as the keys touched, showing them pressed
+		private MidiRouter.Listener createMidiListener() {
+			return new MidiRouter.Listener() {
+				@Override
+				public void onNoteOn(int note, int velocity, long timeNanos) {
+					if (playNote(midiKey(note), note, velocity, midiVelocityMap, Long.MIN_VALUE)) {
+						latencyStats.record(LatencyStats.MIDI_TO_PLAY, timeNanos, System.nanoTime());
+						midiNotes[note] = true;
+						requestMidiKeysUpdate();
+					}
+				}
+
+				@Override
+				public void onNoteOff(int note, long timeNanos) {
+					voiceManager.noteOff(midiKey(note));
+					midiNotes[note] = false;
+					requestMidiKeysUpdate();
+				}
+
+				@Override
+				public void onPedal(boolean down, long timeNanos) {
+					midiSustain = down;
+					applySustain(Long.MIN_VALUE);
+				}
+			};
+		}
+
+		// Redraw the keys changed by the MIDI thread, once for all the changes made
+		// before the UI thread gets to it
+		private void requestMidiKeysUpdate() {
+			if (midiKeysPending.compareAndSet(false, true)) {
+				post(midiKeysUpdater);
+			}
+		}
+
+		// See if a hardware key is used as a sustain pedal (a space bar, or the
+		// button of a headset)
+		private boolean isPedalKey(int keyCode) {
+			return keyCode == KeyEvent.KEYCODE_SPACE || keyCode == KeyEvent.KEYCODE_HEADSETHOOK;
+		}
+
+		private void setPedalKeyPressed(boolean pressed) {
+			pedalKeyPressed = pressed;
+			updateSustain();
+		}
+
+		// Hold the notes of released keys while a pedal is pressed, or while none is
+		// if the damper preference is to let the notes ring
+		private void updateSustain() {
+			boolean sustain = isPedalSustaining();
+			if (recorder != null && sustain != recordedSustain) {
+				recordedSustain = sustain;
+				recorder.record(PerformanceLog.PEDAL, 0, sustain ? 1 : 0,
+						SystemClock.uptimeMillis() * 1000000L);
+			}
+			screenSustain = sustain;
+			applySustain(Long.MIN_VALUE);
+		}
+
+		// Hold the notes if the pedals of the UI thread, the pedal of a MIDI
+		// controller or the one of the playback are down, from any of their threads,
+		// at a time of the engine clock (Long.MIN_VALUE for right away)
+		private void applySustain(long timeNanos) {
+			VoiceManager voices = voiceManager;
+			synchronized (voices) { // the threads must see the pedal as they set it
+				boolean sustain = screenSustain || midiSustain || playbackSustain;
+				if (sustain == voices.isSustain()) {
+					return;
+				}
+				voices.setSustain(sustain, timeNanos);
+			}
+			postInvalidate(pedalRect.left, pedalRect.top, pedalRect.right, pedalRect.bottom);
+		}
+
+		// Play the octaves chosen in the preferences
+		private void changeOctaves() {
+			setNoteMapping(config.getNoteMapping());
+		}
+
+		// Move the keyboard up (or down, if negative) by some octaves, unless it
+		// would go beyond the piano
+		private void shiftOctaves(int shift) {
+			NoteMapping shifted = noteMapping.shifted(shift);
+			if (shifted != null) {
+				setNoteMapping(shifted);
+			}
+		}
+
+		// Play other octaves, loading their sounds and showing them on the octave bar
+		private void setNoteMapping(NoteMapping mapping) {
+			noteMapping = mapping;
+			placeOctaveBar();
+			loadSounds();
+			redraw();
+		}
+
+		// Load the sound of each key in the background, according to the octaves
+		// of the keyboard, starting from the middle of the keyboard
+		private void loadSounds() {
+			sampleLoader.clear(); // forget sounds of other octaves
+			for (int i = 0; i < numberOfNotes; i++) {
+				// middle key, then alternately one more to the left and to the right
+				int key = (numberOfNotes / 2) + ((i % 2 == 0) ? (i / 2) : -((i + 1) / 2));
+				int root = rootMapping.getRoot(noteMapping.getSample(key));
+				if (root != NoteMapping.NO_SAMPLE) { // keys beyond the piano have no sound
+					// only loaded if not cached or requested for another key
+					sampleLoader.request(root);
+				}
+			}
+			updateKeys(); // show the keys still loading
+		}
+
+		// Show keys as playable when their sounds are loaded
+		@Override
+		public void onSampleReady(int sample) {
+			post(keysUpdater);
+		}
+
+		@Override
+		public void onAllSamplesReady(long millis) {
+			Log.i("PianoLayout", "All notes ready in " + millis + " ms. Sample cache: "
+					+ audioEngine.getSampleCache());
 		}
 
 		// Draw on canvas, from bitmap
@@ -341,10 +724,23 @@ public class MainActivity extends Activity implements OnSharedPreferenceChangeLi
 		protected void onDraw(Canvas canvas) {
 			super.onDraw(canvas);
 
-			// draw the keyboard on the bitmap
-			drawOnBitmap();
-			// draw the bitmap to the real canvas c
-			canvas.drawBitmap(pianoBitmap, 0, 0, null);
+			if (pianoBitmap != null) { // otherwise drawn by the render thread
+				// draw the bitmap (kept up to date by drawOnBitmap and updateKeys) to
+				// the real canvas c
+				canvas.drawBitmap(pianoBitmap, 0, 0, null);
+				latencyStats.frameShown(System.nanoTime());
+				if (!firstFrameDrawn) {
+					firstFrameDrawn = true;
+					Log.i("PianoLayout", "First frame drawn in "
+							+ (SystemClock.uptimeMillis() - createdMillis) + " ms");
+				}
+			}
+			// The pedal is drawn by the view in both cases, on top of the keyboard
+			pedalPaint.setColor(voiceManager.isSustain() ? Color.DKGRAY : Color.LTGRAY);
+			canvas.drawRect(pedalBounds, pedalPaint);
+			if (statsShown) {
+				drawStatsOverlay(canvas);
+			}
 		}
 
 		// React when the user touches, stops touching, or touches in a new way,
@@ -362,110 +758,457 @@ public class MainActivity extends Activity implements OnSharedPreferenceChangeLi
 					)) {
 				return false;
 			}
-			// Use of maps to keep track of:
-			//       all affected keys:  pressed_map
-			//       pressed keys:       new_pressed
-			Set<Integer> new_pressed = new HashSet<Integer>();
-			HashMap<Integer, Float> pressed_map = new HashMap<Integer, Float>();
-			// For every pointer, see which key the point belongs to
+			long start = System.nanoTime();
+			long eventNanos = event.getEventTime() * 1000000L;
+			// Move the octaves with a swipe along the octave bar
+			trackOctaveBar(event, actionCode);
+			// Handle the samples batched into a move since the previous event, oldest
+			// first, so that the keys crossed by a fast slide are played too, then the
+			// event itself
+			touchKeysChanged = false;
+			touchToEngineNanos = Long.MIN_VALUE;
+			for (int sample = 0; sample < event.getHistorySize(); sample++) {
+				copyHistoricalPointers(event, sample);
+				handleTouchPoints();
+			}
+			copyPointers(event, actionCode);
+			handleTouchPoints();
+			// Redraw the keys that changed to give visual feedback to the user
+			if (touchKeysChanged) {
+				latencyStats.keysChanged(eventNanos);
+			}
+			updateKeys();
+			latencyStats.record(LatencyStats.TOUCH_HANDLING, start, System.nanoTime());
+			LatencyHistogram touchToPlay = latencyStats.get(LatencyStats.TOUCH_TO_PLAY);
+			if (touchToPlay.getCount() >= nextLatencyLog) {
+				nextLatencyLog = touchToPlay.getCount() + LATENCY_STATS_PERIOD;
+				Log.d("PianoLayout", "Drawing in " + config.getRenderMode() + " mode. Touch to play: "
+						+ touchToPlay + ". Touch to frame: "
+						+ latencyStats.get(LatencyStats.TOUCH_TO_FRAME) + ". Touch handling: "
+						+ latencyStats.get(LatencyStats.TOUCH_HANDLING));
+			}
+
+			return true;
+		}
+
+		// Copy the pointers of a touch event
+		private void copyPointers(MotionEvent event, int actionCode) {
+			touchPoints.set(actionCode, event.getActionIndex(), event.getEventTime());
+			for (int pointerIndex = 0; pointerIndex < event.getPointerCount(); pointerIndex++) {
+				touchPoints.add(event.getPointerId(pointerIndex), event.getX(pointerIndex),
+						event.getY(pointerIndex), event.getPressure(pointerIndex),
+						event.getSize(pointerIndex));
+			}
+		}
+
+		// Copy the pointers of a historical sample of a touch event, as a move
+		private void copyHistoricalPointers(MotionEvent event, int sample) {
+			touchPoints.set(TouchPoints.ACTION_MOVE, event.getActionIndex(),
+					event.getHistoricalEventTime(sample));
 			for (int pointerIndex = 0; pointerIndex < event.getPointerCount(); pointerIndex++) {
-				// Get coordinates of the point for the current pointer
-				int x = (int)event.getX(pointerIndex);
-				int y = (int)event.getY(pointerIndex);
-				int keyWasFound = 0; // flag to do something with a key
-				int noteFound = 0; // variable to store the note number of the affected key
-				// Check black keys first, because white keys' bounding rectangles overlap with
-				// black keys
-				int blackKeyFound = 0; // flag to skip white keys check
-				// Check black keys
-				for (int i = 0; i < numberOfBlackKeys; i++) {
-					RectF bounds = new RectF();
-					keys.get(blackKeyNoteNumbers.get(i)).computeBounds(bounds, true);
-					if (bounds.contains((float) x, (float) y)) {
-						blackKeyFound = 1;
-						keyWasFound = 1;
-						noteFound = blackKeyNoteNumbers.get(i);
-					}
+				touchPoints.add(event.getPointerId(pointerIndex),
+						event.getHistoricalX(pointerIndex, sample),
+						event.getHistoricalY(pointerIndex, sample),
+						event.getHistoricalPressure(pointerIndex, sample),
+						event.getHistoricalSize(pointerIndex, sample));
+			}
+		}
+
+		// Capture the copied pointers if asked and find the keys they press, then press
+		// or release the pedal, play the newly pressed keys and stop the released ones
+		// (see onPedalTouched, onKeyPressed and onKeyReleased), without allocating
+		// memory (this runs for every move of every finger)
+		private void handleTouchPoints() {
+			if (touchTraceRecorder != null) {
+				touchTraceRecorder.record(touchPoints);
+			}
+			touchEventNanos = touchPoints.getTimeMillis() * 1000000L;
+			touchKeys.find(touchPoints, velocityMap);
+			latencyStats.record(LatencyStats.TOUCH_TO_HIT_TEST, touchEventNanos, System.nanoTime());
+			touchKeys.dispatch(this);
+		}
+
+		// Time of the engine clock to play a key pressed by the sample being handled:
+		// the first key of an event plays right away, and the next ones as much later
+		// as they were pressed, so a slide doesn't play the keys it crossed as a chord
+		private long touchOnsetNanos() {
+			touchToEngineNanos = Math.max(touchToEngineNanos,
+					audioEngine.getClockNanos() - touchEventNanos);
+			return touchEventNanos + touchToEngineNanos;
+		}
+
+		// Press or release the pedal before the keys, to hold the keys released at the
+		// same time
+		@Override
+		public void onPedalTouched(boolean touched) {
+			pedalTouched = touched;
+			updateSustain();
+		}
+
+		// Play the sound of a newly pressed key (also shown as pressed), as loud as it
+		// was touched
+		@Override
+		public void onKeyPressed(int key, float strength) {
+			touchKeysChanged = true;
+			int note = noteMapping.getSample(key);
+			if (rootMapping.getRoot(note) == NoteMapping.NO_SAMPLE) {
+				return; // key beyond the piano, or too far from any sample
+			}
+			int velocity = velocityMap.getVelocity(strength);
+			if (!playNote(key, note, velocity, velocityMap, touchOnsetNanos())) {
+				Log.e("PianoLayout.onTouchEvent", "Key " + key + " not playable!");
+				return;
+			}
+			latencyStats.record(LatencyStats.TOUCH_TO_PLAY, touchEventNanos, System.nanoTime());
+			if (recorder != null) {
+				recordedNotes[key] = note;
+				recorder.record(PerformanceLog.NOTE_ON, note, velocity, touchEventNanos);
+			}
+		}
+
+		// Stop the sound of a released key, unless sustained
+		@Override
+		public void onKeyReleased(int key) {
+			touchKeysChanged = true;
+			voiceManager.noteOff(key);
+			if (recorder != null && recordedNotes[key] != NoteMapping.NO_SAMPLE) {
+				recorder.record(PerformanceLog.NOTE_OFF, recordedNotes[key], 0, touchEventNanos);
+				recordedNotes[key] = NoteMapping.NO_SAMPLE;
+			}
+		}
+
+		// Start capturing the touch events into a touch trace file, with the layout of
+		// the keyboard, or stop and save it (see TouchTraceReplayer)
+		private void toggleTouchCapture() {
+			if (touchTraceRecorder != null) {
+				touchTraceRecorder.finish();
+				if (touchTraceRecorder.getError() != null) {
+					Log.e("PianoLayout.toggleTouchCapture", "Touch trace not saved: "
+							+ touchTraceRecorder.getError());
 				}
-				// Check white keys, if necessary
-				for (int i = 0; (i < numberOfNotes) && (blackKeyFound == 0); i++) {
-					if (blackKeyNoteNumbers.contains(i)) {
-						continue; // skip black keys -already checked
-					}
-					RectF bounds = new RectF();
-					keys.get(i).computeBounds(bounds, true);
-					if (bounds.contains((float) x, (float) y)) {
-						keyWasFound = 1;
-						noteFound = i;
-					}
+				Log.i("PianoLayout", "Captured " + touchTraceRecorder.getRecorded() + " touch events, "
+						+ touchTraceRecorder.getDropped() + " dropped");
+				touchTraceRecorder = null;
+				Toast.makeText(getContext(), "Touch capture saved", Toast.LENGTH_SHORT).show();
+				return;
+			}
+			if (pianoWidth == 0) {
+				return; // no keys yet
+			}
+			File directory = getContext().getExternalFilesDir(null);
+			if (directory == null) {
+				directory = getContext().getFilesDir(); // no external storage
+			}
+			File file = new File(directory, "touches-" + System.currentTimeMillis() + ".ptt");
+			int[] octaves = new int[numberOfNotes / NoteMapping.NOTES_PER_OCTAVE];
+			for (int group = 0; group < octaves.length; group++) {
+				octaves[group] = noteMapping.getOctave(group);
+			}
+			TouchTrace trace = new TouchTrace((float) pianoWidth, (float) pianoHeight,
+					keyboardLayout.getKeysTop(), keyboardLayout.getKeysBottom(), numberOfRows,
+					octavesPerRow, config.getRowOrder() == PianoConfig.RowOrder.HIGHER_OCTAVE_UP, octaves);
+			try {
+				touchTraceRecorder = new TouchTraceRecorder(file, trace, TOUCH_TRACE_CAPACITY);
+			} catch (IOException e) {
+				Log.e("PianoLayout.toggleTouchCapture", "Can't capture touches: " + e);
+				return;
+			}
+			touchTraceRecorder.start();
+			Toast.makeText(getContext(), "Capturing touches to " + file, Toast.LENGTH_LONG).show();
+		}
+
+		// Follow a pointer put down on the octave bar, moving the keyboard an octave
+		// for every octave of the bar the pointer moves along it
+		private void trackOctaveBar(MotionEvent event, int actionCode) {
+			if (actionCode == MotionEvent.ACTION_DOWN || actionCode == MotionEvent.ACTION_POINTER_DOWN) {
+				int pointerIndex = event.getActionIndex();
+				if (octaveBarPointer == NO_POINTER && event.getY(pointerIndex) < octaveBar.getHeight()) {
+					octaveBarPointer = event.getPointerId(pointerIndex);
+					octaveBarX = event.getX(pointerIndex);
 				}
-				// Save found key
-				if (keyWasFound == 1) {
-					// save note number and pressure in all affected keys map
-					if (pressed_map.containsKey(noteFound)) {
-						pressed_map.put(noteFound,
-								Math.max(event.getPressure(pointerIndex),
-										pressed_map.get(noteFound)));
-					} else {
-						pressed_map.put(noteFound, event.getPressure(pointerIndex));
-					}
-					// if appropriate, save note number in pressed keys map
-					if ((pointerIndex != event.getActionIndex() || (
-							actionCode != MotionEvent.ACTION_UP &&
-							actionCode != MotionEvent.ACTION_POINTER_UP ))) {
-						new_pressed.add(noteFound);
-					}
+				return;
+			}
+			if (octaveBarPointer == NO_POINTER) {
+				return;
+			}
+			int pointerIndex = event.findPointerIndex(octaveBarPointer);
+			if (pointerIndex < 0 || (pointerIndex == event.getActionIndex() && (
+					actionCode == MotionEvent.ACTION_UP ||
+					actionCode == MotionEvent.ACTION_POINTER_UP ))) {
+				octaveBarPointer = NO_POINTER; // lifted
+				return;
+			}
+			float moved = event.getX(pointerIndex) - octaveBarX;
+			if (Math.abs(moved) >= octaveBar.getOctaveLength()) {
+				int shift = (moved > 0.0f) ? 1 : -1;
+				octaveBarX += shift * octaveBar.getOctaveLength();
+				shiftOctaves(shift);
+			}
+		}
+
+		// Play a note of the piano with the voice of a key, as loud as a velocity (in
+		// the gain and layer of a velocity map), at a time of the engine clock
+		// (Long.MIN_VALUE for right away). Returns false if it couldn't be played (its
+		// sound is then loaded first).
+		private boolean playNote(int key, int note, int velocity, VelocityMap velocities, long startNanos) {
+			int sample = velocities.getLayer(velocity) * NoteMapping.NUMBER_OF_NOTES + note;
+			int root = rootMapping.getRoot(sample);
+			if (NoteMapping.getLayer(sample) != NoteMapping.LAYER_MF
+					&& (root == NoteMapping.NO_SAMPLE || !audioEngine.isReady(root))) {
+				// Load other layers only once played, using the mf one meanwhile
+				if (root != NoteMapping.NO_SAMPLE) {
+					sampleLoader.requestFirst(root);
 				}
+				sample = note;
+				root = rootMapping.getRoot(sample);
 			}
-			// Map of newly pressed keys (pressed keys that weren't already pressed)
-			Set<Integer> just_pressed = new HashSet<Integer>(new_pressed);
-			just_pressed.removeAll(old_pressed);
-			// Play the sound of each newly pressed key
-			Iterator<Integer> it = just_pressed.iterator();
-			justPressedKeys.clear(); // empty the list of just pressed keys (used to draw them)
-			while (it.hasNext()) {
-				int i = it.next();
-				justPressedKeys.add(i); // add the key (note number) to the list so that it can be shown as pressed
-				try {
-					playIds.set(i, pianoSounds.play(soundIds.get(i), 1.0f, 1.0f, 1, 0, 1.0f));
-				} catch (Exception e) {
-					Log.e("PianoLayout.onTouchEvent", "Key " + i + " not playable!");
+			if (root == NoteMapping.NO_SAMPLE) {
+				return false;
+			}
+			// Play the sample of the note, or the one of its root at its pitch
+			if (!voiceManager.noteOn(key, root, velocities.getGain(velocity),
+					rootMapping.getRate(sample), startNanos)) {
+				sampleLoader.requestFirst(rootMapping.getRoot(note)); // in case it wasn't loaded
+				return false;
+			}
+			return true;
+		}
+
+		// See if the pedals of the player hold the notes, according to the damper preference
+		private boolean isPedalSustaining() {
+			boolean pedalPressed = pedalTouched || pedalKeyPressed;
+			return (config.getDamper() == PianoConfig.Damper.DAMPEN) ? pedalPressed : !pedalPressed;
+		}
+
+		// Start recording the notes played, or stop and save the recording
+		private void toggleRecording() {
+			if (recorder != null) {
+				recorder.finish();
+				if (recorder.getError() != null) {
+					Log.e("PianoLayout.toggleRecording", "Recording not saved: " + recorder.getError());
+				}
+				Log.i("PianoLayout", "Recorded " + recorder.getRecorded() + " events, "
+						+ recorder.getDropped() + " dropped");
+				recorder = null;
+				Toast.makeText(getContext(), "Recording saved", Toast.LENGTH_SHORT).show();
+				return;
+			}
+			if (player != null) {
+				player.quit();
+			}
+			try {
+				recorder = new PerformanceRecorder(new File(getContext().getFilesDir(), PERFORMANCE_FILE),
+						RECORDER_CAPACITY);
+			} catch (IOException e) {
+				Log.e("PianoLayout.toggleRecording", "Can't record: " + e);
+				return;
+			}
+			recorder.start();
+			// Keys already pressed are left out, and the pedal starts where it is
+			Arrays.fill(recordedNotes, NoteMapping.NO_SAMPLE);
+			recordedSustain = !isPedalSustaining();
+			updateSustain();
+			Toast.makeText(getContext(), "Recording", Toast.LENGTH_SHORT).show();
+		}
+
+		// Play the recording, or stop playing it
+		private void togglePlayback() {
+			if (player != null) {
+				player.quit(); // cleaned up in onPlaybackEnded
+				return;
+			}
+			File file = new File(getContext().getFilesDir(), PERFORMANCE_FILE);
+			if (recorder != null || !file.exists()) {
+				Toast.makeText(getContext(), "No recording to play", Toast.LENGTH_SHORT).show();
+				return;
+			}
+			startPlayback(file);
+		}
+
+		private void startPlayback(File file) {
+			player = new PerformancePlayer(file, audioEngine, this);
+			player.start();
+		}
+
+		// Save the recording as a MIDI file in the Music directory, in the background
+		private void exportMidi() {
+			final File file = new File(getContext().getFilesDir(), PERFORMANCE_FILE);
+			if (recorder != null || !file.exists()) {
+				Toast.makeText(getContext(), "No recording to save", Toast.LENGTH_SHORT).show();
+				return;
+			}
+			final File directory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC);
+			new Thread("MidiExport") {
+				@Override
+				public void run() {
+					final File midi = new File(directory, EXPORTED_MIDI_FILE);
+					String message;
+					try {
+						directory.mkdirs();
+						FileInputStream in = new FileInputStream(file);
+						try {
+							FileOutputStream out = new FileOutputStream(midi);
+							try {
+								MidiFile.fromPerformance(in.getChannel(), out.getChannel());
+							} finally {
+								out.close();
+							}
+						} finally {
+							in.close();
+						}
+						message = "Saved as " + midi;
+					} catch (IOException e) {
+						Log.e("PianoLayout.exportMidi", "MIDI file not saved", e);
+						message = "MIDI file not saved";
+					}
+					final String shown = message;
+					post(new Runnable() {
+						@Override
+						public void run() {
+							Toast.makeText(getContext(), shown, Toast.LENGTH_LONG).show();
+						}
+					});
 				}
+			}.start();
+		}
+
+		// Play a MIDI file: convert it into a recording in the background, then play it
+		private void importMidi(final Uri uri) {
+			if (player != null) {
+				player.quit();
 			}
-			// Stop the sound of released keys
-			if (damper.equals(
-					MainActivity.this.getString(R.string.pref_damper_dampen_value))) {
-				Set<Integer> just_released = new HashSet<Integer>(old_pressed);
-				just_released.removeAll(new_pressed);
-				it = just_released.iterator();
-				while (it.hasNext()) {
-					int i = it.next();
-					pianoSounds.stop(playIds.get(i));
+			final File file = new File(getContext().getFilesDir(), IMPORTED_FILE);
+			new Thread("MidiImport") {
+				@Override
+				public void run() {
+					IOException error = null;
+					try {
+						ParcelFileDescriptor descriptor = getContext().getContentResolver()
+								.openFileDescriptor(uri, "r");
+						try {
+							FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+							FileOutputStream out = new FileOutputStream(file);
+							try {
+								MidiFile.toPerformance(in.getChannel(), out.getChannel());
+							} finally {
+								out.close();
+							}
+						} finally {
+							descriptor.close();
+						}
+					} catch (IOException e) {
+						error = e;
+					}
+					final IOException failure = error;
+					post(new Runnable() {
+						@Override
+						public void run() {
+							if (failure != null) {
+								Log.e("PianoLayout.importMidi", "MIDI file not played: " + failure);
+								Toast.makeText(getContext(), "Can't play this MIDI file",
+										Toast.LENGTH_SHORT).show();
+							} else if (player == null && recorder == null) {
+								startPlayback(file);
+							}
+						}
+					});
 				}
+			}.start();
+		}
+
+		// Time until a time of the engine clock, in milliseconds
+		private long millisUntil(long nanos) {
+			return Math.max(0, (nanos - audioEngine.getClockNanos()) / 1000000);
+		}
+
+		// Play the events of the recording, from the player thread. They are handed
+		// over in order, ahead of time if the engine schedules sounds (see
+		// PerformancePlayer), and given to the voices at once with their time, so that
+		// the engine places starts and releases alike; the keys are shown at the time.
+		@Override
+		public void onNoteOn(final int note, int velocity, long startNanos) {
+			if (playNote(numberOfNotes + note, note, velocity, midiVelocityMap, startNanos)) {
+				postDelayed(new Runnable() {
+					@Override
+					public void run() {
+						playedNotes[note] = (player != null);
+						updateKeys();
+					}
+				}, millisUntil(startNanos));
 			}
-			// Update map of pressed keys
-			old_pressed = new_pressed;
-			// Force a call to onDraw() to give visual feedback to the user
-			this.invalidate();
+		}
 
-			return true;
+		@Override
+		public void onNoteOff(final int note, long startNanos) {
+			voiceManager.noteOff(numberOfNotes + note, startNanos);
+			postDelayed(new Runnable() {
+				@Override
+				public void run() {
+					playedNotes[note] = false;
+					updateKeys();
+				}
+			}, millisUntil(startNanos));
+		}
+
+		@Override
+		public void onPedal(boolean down, long startNanos) {
+			playbackSustain = down;
+			applySustain(startNanos);
+		}
+
+		@Override
+		public void onPlaybackEnded(final IOException error) {
+			post(new Runnable() {
+				@Override
+				public void run() {
+					if (error != null) {
+						Log.e("PianoLayout.onPlaybackEnded", "Recording not played: " + error);
+					}
+					// Release the notes of the recording
+					player = null;
+					playbackSustain = false;
+					applySustain(Long.MIN_VALUE);
+					for (int note = 0; note < NoteMapping.NUMBER_OF_NOTES; note++) {
+						voiceManager.noteOff(numberOfNotes + note);
+					}
+					Arrays.fill(playedNotes, false);
+					updateKeys();
+				}
+			});
 		}
 
 		// Create shapes
 		private void createShapes() {
-			// Define the shapes
+			if (pianoWidth == 0) {
+				return; // no size yet
+			}
+			// Every row has its octaves across the whole width, between the octave
+			// bar and the pedal
+			placeOctaveBar();
+			pedalBounds.set(0.0f, pianoHeight - octaveBar.getHeight(), pianoWidth, pianoHeight);
+			pedalBounds.roundOut(pedalRect);
+			// Place the keys, unless this size was already seen (by this activity or a
+			// previous one, before a rotation)
+			boolean higherOctaveUp = (config.getRowOrder() == PianoConfig.RowOrder.HIGHER_OCTAVE_UP);
+			keyboardLayout = application.getLayoutCache().get(numberOfRows, octavesPerRow,
+					(float) pianoWidth, octaveBar.getHeight(), pedalBounds.top, higherOctaveUp);
+			touchKeys.setLayout(keyboardLayout);
+			float octaveWidth = keyboardLayout.getOctaveWidth();
+			float rowHeight = keyboardLayout.getRowHeight();
+			// Define the shapes, at the top left corner
 			// ___
 			// |  |
 			// |  |_ 
 			// |    |
 			// |____|
 			//
+			asymCFWhiteKey.reset();
 			asymCFWhiteKey.moveTo(0.0f, 0.0f);
-			asymCFWhiteKey.lineTo((float) pianoWidth * 17 / 168, 0.0f);
-			asymCFWhiteKey.lineTo((float) pianoWidth * 17 / 168, (float) pianoHeight / 4);
-			asymCFWhiteKey.lineTo((float) pianoWidth / 7, (float) pianoHeight / 4);
-			asymCFWhiteKey.lineTo((float) pianoWidth / 7, (float) pianoHeight / 2);
-			asymCFWhiteKey.lineTo(0.0f, (float) pianoHeight / 2);
+			asymCFWhiteKey.lineTo(octaveWidth * 17 / 168, 0.0f);
+			asymCFWhiteKey.lineTo(octaveWidth * 17 / 168, rowHeight / 2);
+			asymCFWhiteKey.lineTo(octaveWidth / 7, rowHeight / 2);
+			asymCFWhiteKey.lineTo(octaveWidth / 7, rowHeight);
+			asymCFWhiteKey.lineTo(0.0f, rowHeight);
 			asymCFWhiteKey.lineTo(0.0f, 0.0f);
 			//    __
 			//   |  |
@@ -473,21 +1216,21 @@ public class MainActivity extends Activity implements OnSharedPreferenceChangeLi
 			// |    |
 			// |____|
 			//
-			asymEBWhiteKey.moveTo((float) pianoWidth / 24, 0.0f);
-			asymEBWhiteKey.lineTo((float) pianoWidth / 7, 0.0f);
-			asymEBWhiteKey.lineTo((float) pianoWidth / 7, (float) pianoHeight / 2);
-			asymEBWhiteKey.lineTo(0.0f, (float) pianoHeight / 2);
-			asymEBWhiteKey.lineTo(0.0f, (float) pianoHeight / 4);
-			asymEBWhiteKey.lineTo((float) pianoWidth / 24, (float) pianoHeight / 4);
-			asymEBWhiteKey.lineTo((float) pianoWidth / 24, 0.0f);
-			asymEBWhiteKey.offset((float) pianoWidth * 2 / 7, 0.0f);
+			asymEBWhiteKey.reset();
+			asymEBWhiteKey.moveTo(octaveWidth / 24, 0.0f);
+			asymEBWhiteKey.lineTo(octaveWidth / 7, 0.0f);
+			asymEBWhiteKey.lineTo(octaveWidth / 7, rowHeight);
+			asymEBWhiteKey.lineTo(0.0f, rowHeight);
+			asymEBWhiteKey.lineTo(0.0f, rowHeight / 2);
+			asymEBWhiteKey.lineTo(octaveWidth / 24, rowHeight / 2);
+			asymEBWhiteKey.lineTo(octaveWidth / 24, 0.0f);
 			//  __
 			// |  |
 			// |  |
 			// |__|
 			//
-			blackKey.addRect(0.0f, 0.0f, (float) pianoWidth / 12, (float) pianoHeight / 4, Path.Direction.CW);
-			blackKey.offset((float) pianoWidth * 17 / 168, 0.0f);
+			blackKey.reset();
+			blackKey.addRect(0.0f, 0.0f, octaveWidth / 12, rowHeight / 2, Path.Direction.CW);
 			//
 			//    __
 			//   |  |
@@ -495,138 +1238,335 @@ public class MainActivity extends Activity implements OnSharedPreferenceChangeLi
 			// |      |
 			// |______|
 			//
-			symmetricWhiteKey.moveTo((float) pianoWidth / 24, 0.0f);
-			symmetricWhiteKey.lineTo((float) pianoWidth * 17 / 168, 0.0f);
-			symmetricWhiteKey.lineTo((float) pianoWidth * 17 / 168, (float) pianoHeight / 4);
-			symmetricWhiteKey.lineTo((float) pianoWidth / 7, (float) pianoHeight / 4);
-			symmetricWhiteKey.lineTo((float) pianoWidth / 7, (float) pianoHeight / 2);
-			symmetricWhiteKey.lineTo(0.0f, (float) pianoHeight / 2);
-			symmetricWhiteKey.lineTo(0.0f, (float) pianoHeight / 4);
-			symmetricWhiteKey.lineTo((float) pianoWidth / 24, (float) pianoHeight / 4);
-			symmetricWhiteKey.lineTo((float) pianoWidth / 24, 0.0f);
-			symmetricWhiteKey.offset((float) pianoWidth / 7, 0.0f);
-			// Save the shapes as keys
-			for (int i = 0; i < (numberOfNotes / 2); i++) {
-				if (blackKeyNoteNumbers.contains(i)) {
-					// Black keys
-					switch (i) {
-					case 3: // D# = Eb
-					case 8: // G# = Ab 
-					case 10: // A# = Bb
-						blackKey.offset((float) pianoWidth / 7, 0.0f);
-						break;
-					case 6: // F# = Gb
-						blackKey.offset((float) pianoWidth * 2 / 7, 0.0f);
-						break;
-					default:
-						break;
-					}
-					keys.get(i).set(blackKey);
-					blackKey.offset(0.0f, (float) pianoHeight / 2);
-					keys.get(i + 12).set(blackKey);
-					blackKey.offset(0.0f, (float) -pianoHeight / 2);
-				} else {
-					// White keys
-					if ((i == 0) || (i == 5)) {
-						// CF key
-						if (i == 5) { // F
-							asymCFWhiteKey.offset((float) pianoWidth * 3 / 7, 0.0f);
-						}
-						keys.get(i).set(asymCFWhiteKey);
-						asymCFWhiteKey.offset(0.0f, (float) pianoHeight / 2);
-						keys.get(i + 12).set(asymCFWhiteKey);
-						asymCFWhiteKey.offset(0.0f, (float) -pianoHeight / 2);
-					}
-					if ((i == 2) || (i == 7) || (i == 9)) {
-						// symmetric key
-						switch (i) {
-						case 7: // G
-							symmetricWhiteKey.offset((float) pianoWidth * 3 / 7, 0.0f);
-							break;
-						case 9: // A
-							symmetricWhiteKey.offset((float) pianoWidth / 7, 0.0f);
-							break;
-						default:
-							break;
-						}
-						keys.get(i).set(symmetricWhiteKey);
-						symmetricWhiteKey.offset(0.0f, (float) pianoHeight / 2);
-						keys.get(i + 12).set(symmetricWhiteKey);
-						symmetricWhiteKey.offset(0.0f, (float) -pianoHeight / 2);					
-					}
-					if ((i == 4) || (i == 11)) {
-						// EB key
-						if (i == 11) { // B
-							asymEBWhiteKey.offset((float) pianoWidth * 4 / 7, 0.0f);
-						}
-						keys.get(i).set(asymEBWhiteKey);
-						asymEBWhiteKey.offset(0.0f, (float) pianoHeight / 2);
-						keys.get(i + 12).set(asymEBWhiteKey);
-						asymEBWhiteKey.offset(0.0f, (float) -pianoHeight / 2);
-					}
-				}
+			symmetricWhiteKey.reset();
+			symmetricWhiteKey.moveTo(octaveWidth / 24, 0.0f);
+			symmetricWhiteKey.lineTo(octaveWidth * 17 / 168, 0.0f);
+			symmetricWhiteKey.lineTo(octaveWidth * 17 / 168, rowHeight / 2);
+			symmetricWhiteKey.lineTo(octaveWidth / 7, rowHeight / 2);
+			symmetricWhiteKey.lineTo(octaveWidth / 7, rowHeight);
+			symmetricWhiteKey.lineTo(0.0f, rowHeight);
+			symmetricWhiteKey.lineTo(0.0f, rowHeight / 2);
+			symmetricWhiteKey.lineTo(octaveWidth / 24, rowHeight / 2);
+			symmetricWhiteKey.lineTo(octaveWidth / 24, 0.0f);
+			// Save a copy of its shape as each key, moved to its place
+			for (int i = 0; i < numberOfNotes; i++) {
+				Path key = keys.get(i);
+				key.set(shapePath(keyShapes[i]));
+				key.offset(keyboardLayout.getLeft(i), keyboardLayout.getTop(i));
+				keyBounds[i].set(keyboardLayout.getLeft(i), keyboardLayout.getTop(i),
+						keyboardLayout.getRight(i), keyboardLayout.getBottom(i));
+			}
+		}
+
+		// Path defining a key shape
+		private Path shapePath(int shape) {
+			switch (shape) {
+			case KeyboardLayout.SHAPE_CF:
+				return asymCFWhiteKey;
+			case KeyboardLayout.SHAPE_EB:
+				return asymEBWhiteKey;
+			case KeyboardLayout.SHAPE_BLACK:
+				return blackKey;
+			default:
+				return symmetricWhiteKey;
+			}
+		}
+
+		// Show the octaves of the keyboard on the octave bar
+		private void placeOctaveBar() {
+			octaveBar.set((float) pianoWidth, (float) pianoHeight / OCTAVE_BAR_FRACTION,
+					noteMapping.getLowestNote(), noteMapping.getHighestNote());
+		}
+
+		// State a key must be drawn in
+		private int keyState(int i) {
+			int sample = noteMapping.getSample(i);
+			if (touchKeys.getPressedKeys().isJustPressed(i) || (sample != NoteMapping.NO_SAMPLE
+					&& (playedNotes[sample] || midiNotes[sample]))) {
+				return KEY_PRESSED;
+			}
+			int root = rootMapping.getRoot(sample);
+			if (root == NoteMapping.NO_SAMPLE || !audioEngine.isReady(root)) {
+				return KEY_LOADING; // also shown for keys without sound
+			}
+			return KEY_NORMAL;
+		}
+
+		// Redraw the whole keyboard
+		private void redraw() {
+			if (renderThread != null) {
+				renderThread.setGeometry(createGeometry());
+				publishKeys();
+				return;
+			}
+			if (pianoBitmap == null) {
+				return; // not shown yet
+			}
+			long start = System.nanoTime();
+			drawOnBitmap();
+			frameStats.record(System.nanoTime() - start, (long) pianoWidth * pianoHeight);
+			this.invalidate();
+		}
+
+		// Redraw just the keys whose state changed since they were last drawn
+		private void updateKeys() {
+			if (renderThread != null) {
+				publishKeys();
+				return;
+			}
+			if (pianoBitmap == null) {
+				return; // not shown yet
+			}
+			if (!DIRTY_REGION_DRAWING) {
+				redraw();
+				return;
 			}
-			// Exchange rows depending on preference
-			if (lowerOctavePosition.equals(
-					MainActivity.this.getString(
-							R.string.pref_rows_higher_octave_in_upper_row_value))) {
-				// Swap rows
-				for (int i = 0; i < (pianoView.numberOfNotes / 2); i++) {
-					Collections.swap(pianoView.keys, i, i + 12);
+			long start = System.nanoTime();
+			// Find the area of the changed keys
+			dirtyBounds.setEmpty();
+			for (int i = 0; i < numberOfNotes; i++) {
+				if (keyState(i) != drawnKeyStates[i]) {
+					dirtyBounds.union(keyBounds[i]);
 				}
 			}
+			if (dirtyBounds.isEmpty()) {
+				return;
+			}
+			// include the stroke of the key edges
+			dirtyBounds.inset(-pianoPaint.getStrokeWidth(), -pianoPaint.getStrokeWidth());
+			dirtyBounds.roundOut(dirtyRect);
+			// Erase the area and draw the keys in it again
+			pianoCanvas.save();
+			pianoCanvas.clipRect(dirtyRect);
+			pianoCanvas.drawColor(Color.WHITE);
+			if (dirtyBounds.top < octaveBar.getHeight()) {
+				octaveBar.draw(pianoCanvas);
+			}
+			drawKeys(dirtyBounds);
+			pianoCanvas.restore();
+			long end = System.nanoTime();
+			frameStats.record(end - start, (long) dirtyRect.width() * dirtyRect.height());
+			latencyStats.record(LatencyStats.FRAME_TIME, start, end); // shown by onDraw
+			if (frameStats.getFrames() >= FRAME_STATS_PERIOD) {
+				Log.d("PianoLayout", "Drawing: " + frameStats);
+				frameStats.reset();
+			}
+			// Update just the changed area of the view
+			this.invalidate(dirtyRect);
+		}
+
+		// Hand the state of every key over to the render thread
+		private void publishKeys() {
+			int[] states = keyStateHandoff.getWriteBuffer();
+			for (int i = 0; i < numberOfNotes; i++) {
+				states[i] = keyState(i);
+			}
+			keyStateHandoff.publish();
+			renderThread.wake();
+		}
+
+		// Copy of the keyboard layout for the render thread
+		private KeyboardRenderThread.Geometry createGeometry() {
+			return new KeyboardRenderThread.Geometry(pianoWidth, pianoHeight, shapePaths(),
+					keyBounds, keyShapes, octaveBar);
+		}
+
+		// Path of each shape (C, D, E and C# are examples of each shape)
+		private Path[] shapePaths() {
+			return new Path[] {keys.get(0), keys.get(2), keys.get(4), keys.get(1)};
 		}
 
 		// Draw on bitmap
 		protected void drawOnBitmap() {
 			// Erase the canvas
 			pianoCanvas.drawColor(Color.WHITE);
+			octaveBar.draw(pianoCanvas);
 			// Draw the keys
+			drawKeys(null);
+		}
+
+		// Draw the keys that overlap an area (all keys if the area is null)
+		private void drawKeys(RectF area) {
 			for (int i = 0; i < numberOfNotes; i++) {
-				if (blackKeyNoteNumbers.contains(i)) {
-					// Black keys
-					pianoPaint.setStyle(Paint.Style.FILL); // all filled; ignore all stroke-related settings in the paint
-					if (justPressedKeys.contains(i)) {
-						pianoPaint.setColor(Color.LTGRAY);
-					} else {
-						pianoPaint.setColor(Color.BLACK);
-					}
+				if (area != null && !RectF.intersects(area, keyBounds[i])) {
+					continue;
+				}
+				drawnKeyStates[i] = keyState(i);
+				keySprites.draw(pianoCanvas, keyShapes[i], drawnKeyStates[i],
+						keyBounds[i].left, keyBounds[i].top);
+			}
+		}
+
+		// Set up the paint to render a key shape in a state (see KeySprites)
+		@Override
+		public void setUpPaint(Paint paint, int shape, int state) {
+			if (shape == KeyboardLayout.SHAPE_BLACK) {
+				// Black keys
+				paint.setStyle(Paint.Style.FILL); // all filled; ignore all stroke-related settings in the paint
+				if (state == KEY_PRESSED) {
+					paint.setColor(Color.LTGRAY);
+				} else if (state == KEY_LOADING) {
+					paint.setColor(Color.GRAY); // sound still loading
+				} else {
+					paint.setColor(Color.BLACK);
+				}
+			} else {
+				// White keys
+				if (state == KEY_PRESSED) {
+					paint.setStyle(Paint.Style.FILL); // all filled; ignore all stroke-related settings in the paint
+					paint.setColor(Color.DKGRAY);
 				} else {
-					// White keys
-					if (justPressedKeys.contains(i)) {
-						pianoPaint.setStyle(Paint.Style.FILL); // all filled; ignore all stroke-related settings in the paint
-						pianoPaint.setColor(Color.DKGRAY);
+					paint.setStyle(Paint.Style.STROKE); // stroked
+					if (state == KEY_LOADING) {
+						paint.setColor(Color.LTGRAY); // sound still loading
 					} else {
-						pianoPaint.setStyle(Paint.Style.STROKE); // stroked
-						pianoPaint.setColor(Color.BLACK);
+						paint.setColor(Color.BLACK);
 					}
 				}
-				pianoCanvas.drawPath(keys.get(i), pianoPaint);
 			}
 		}
 
-		// Free resources
-		public void destroy() {
+		// Show or hide the statistics overlay, counting the garbage collections while
+		// it is shown (counting them makes allocations a bit slower)
+		private void setStatsShown(boolean shown) {
+			if (shown == statsShown) {
+				return;
+			}
+			statsShown = shown;
+			removeCallbacks(statsUpdater);
+			if (shown) {
+				Debug.startAllocCounting();
+				statsGcStart = Debug.getGlobalGcInvocationCount();
+				updateStatsOverlay();
+			} else {
+				Debug.stopAllocCounting();
+				invalidate(statsRect);
+			}
+		}
+
+		// Build the lines of the statistics overlay again, and redraw it
+		private void updateStatsOverlay() {
+			appendStats(statsLines[0], "Touch to play ", latencyStats.get(LatencyStats.TOUCH_TO_PLAY));
+			appendStats(statsLines[1], "Touch to frame ", latencyStats.get(LatencyStats.TOUCH_TO_FRAME));
+			appendStats(statsLines[2], "Frame time ", latencyStats.get(LatencyStats.FRAME_TIME));
+			StringBuilder line = statsLines[3];
+			line.setLength(0);
+			line.append("Voices ").append(voiceManager.getActiveVoices()).append(", GCs ")
+					.append(Debug.getGlobalGcInvocationCount() - statsGcStart);
+			invalidate(statsRect);
+			postDelayed(statsUpdater, STATS_OVERLAY_MILLIS);
+		}
+
+		// Make a line of the overlay with the median and 99th percentile of a histogram
+		private void appendStats(StringBuilder line, String name, LatencyHistogram histogram) {
+			line.setLength(0);
+			line.append(name).append("p50 ");
+			LatencyHistogram.appendMillis(line, histogram.getPercentileNanos(0.5));
+			line.append(" p99 ");
+			LatencyHistogram.appendMillis(line, histogram.getPercentileNanos(0.99));
+		}
+
+		// Draw the statistics overlay below the octave bar, on a translucent background
+		private void drawStatsOverlay(Canvas canvas) {
+			float lineHeight = statsPaint.getTextSize() * 1.25f;
+			int top = (int) Math.ceil(octaveBar.getHeight());
+			statsRect.set(0, top, pianoWidth / 2,
+					top + (int) Math.ceil(lineHeight * (STATS_OVERLAY_LINES + 0.5f)));
+			statsPaint.setColor(0xc0000000);
+			canvas.drawRect(statsRect, statsPaint);
+			statsPaint.setColor(Color.WHITE);
+			float y = statsRect.top;
+			for (StringBuilder line : statsLines) {
+				y += lineHeight;
+				canvas.drawText(line, 0, line.length(), lineHeight / 2, y, statsPaint);
+			}
+		}
+
+		// Save the statistics to a file, with the device and the settings they were
+		// measured with, to compare devices and builds
+		private void dumpStats() {
+			File directory = getContext().getExternalFilesDir(null);
+			if (directory == null) {
+				directory = getContext().getFilesDir(); // no external storage
+			}
+			File file = new File(directory, "stats-" + System.currentTimeMillis() + ".txt");
+			try {
+				PrintWriter out = new PrintWriter(new FileWriter(file));
+				try {
+					out.println("Device: " + Build.MANUFACTURER + " " + Build.MODEL + ", Android "
+							+ Build.VERSION.RELEASE + " (API " + Build.VERSION.SDK_INT + ")");
+					out.println("Build: " + getAppVersion());
+					out.println("Engine: " + config.getEngine() + ", drawing: " + config.getRenderMode()
+							+ ", rows: " + numberOfRows + ", octaves per row: " + octavesPerRow);
+					out.println("Drawing: " + frameStats);
+					if (statsShown) {
+						out.println("GCs: " + (Debug.getGlobalGcInvocationCount() - statsGcStart));
+					}
+					latencyStats.dump(out);
+				} finally {
+					out.close();
+				}
+				Toast.makeText(getContext(), "Saved as " + file, Toast.LENGTH_LONG).show();
+			} catch (IOException e) {
+				Log.e("PianoLayout.dumpStats", "Statistics not saved", e);
+				Toast.makeText(getContext(), "Statistics not saved", Toast.LENGTH_SHORT).show();
+			}
+		}
+
+		// Version of the application, as in the manifest
+		private String getAppVersion() {
+			try {
+				PackageInfo info = getContext().getPackageManager()
+						.getPackageInfo(getContext().getPackageName(), 0);
+				return info.versionName + " (" + info.versionCode + ")";
+			} catch (PackageManager.NameNotFoundException e) {
+				return "unknown";
+			}
+		}
+
+		// Free resources, but the audio engine and its sounds if asked
+		public void destroy(boolean keepAudio) {
+			setStatsShown(false);
+			if (touchTraceRecorder != null) {
+				toggleTouchCapture(); // save what was captured
+			}
+			usbMidiInput.release();
+			midiRouter.stop();
+			if (recorder != null) {
+				toggleRecording(); // save what was recorded
+			}
+			if (player != null) {
+				player.quit();
+			}
+			if (renderThread != null) {
+				renderThread.quit(); // stop drawing
+			}
 			if (pianoBitmap != null) {
 				pianoBitmap.recycle(); // mark the bitmap as dead
 			}
-			if (pianoSounds != null) {
-				pianoSounds.release(); // release the sound pool resources
-			}
+			keySprites.release();
+			application.detachAudio(this, keepAudio);
 		}
 
 		// Deal with view size changes
 		@Override
 		protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-			if (pianoBitmap != null) {
-				pianoBitmap.recycle(); // mark the bitmap as dead
-			}
 			pianoWidth = w;
 			pianoHeight = h;
-			pianoBitmap = Bitmap.createBitmap(pianoWidth, pianoHeight, Bitmap.Config.ARGB_8888);
-			pianoCanvas.setBitmap(pianoBitmap);
 			this.createShapes();
-			this.drawOnBitmap();
+			if (renderThread != null) {
+				// Leave the drawing to the render thread
+				renderThread.setGeometry(createGeometry());
+			} else {
+				if (pianoBitmap != null) {
+					pianoBitmap.recycle(); // mark the bitmap as dead
+				}
+				pianoBitmap = Bitmap.createBitmap(pianoWidth, pianoHeight, Bitmap.Config.ARGB_8888);
+				pianoCanvas.setBitmap(pianoBitmap);
+				// Render the key shapes
+				keySprites.build(shapePaths(), pianoPaint, this);
+				this.drawOnBitmap();
+			}
             // Inform the user about the key combination to access the menu
             // (because the keyboard takes up the whole screen)
             Toast.makeText(MainActivity.this.getApplicationContext(), "Vol" + "\u2191" + "+" + "Vol" + "\u2193" + " " + "\u2192" + " menu",
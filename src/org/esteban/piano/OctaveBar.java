@@ -0,0 +1,73 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+// Strip above the keys showing the whole range of the piano, with the notes of
+// the keyboard highlighted. Swiping along it moves the keyboard by octaves.
+public class OctaveBar {
+	// whole strip, and the part of it with the notes of the keyboard
+	private final RectF bar;
+	private final RectF window;
+	private final Paint paint;
+
+	// Constructor
+	public OctaveBar() {
+		bar = new RectF();
+		window = new RectF();
+		paint = new Paint();
+	}
+
+	// Constructor, copying another bar (to hand it over to another thread)
+	public OctaveBar(OctaveBar other) {
+		bar = new RectF(other.bar);
+		window = new RectF(other.window);
+		paint = new Paint();
+	}
+
+	// Set the size of the strip and the notes of the keyboard (which may be
+	// beyond the ends of the piano)
+	public void set(float width, float height, int lowestNote, int highestNote) {
+		bar.set(0.0f, 0.0f, width, height);
+		float noteWidth = width / NoteMapping.NUMBER_OF_NOTES;
+		window.set(Math.max(0.0f, lowestNote * noteWidth), 0.0f,
+				Math.min(width, (highestNote + 1) * noteWidth), height);
+	}
+
+	public float getHeight() {
+		return bar.height();
+	}
+
+	// Length of the strip that corresponds to an octave
+	public float getOctaveLength() {
+		return bar.width() * NoteMapping.NOTES_PER_OCTAVE / NoteMapping.NUMBER_OF_NOTES;
+	}
+
+	public void draw(Canvas canvas) {
+		paint.setStyle(Paint.Style.FILL);
+		paint.setColor(Color.LTGRAY);
+		canvas.drawRect(bar, paint);
+		paint.setColor(Color.DKGRAY);
+		canvas.drawRect(window, paint);
+	}
+}
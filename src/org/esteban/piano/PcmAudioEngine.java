@@ -0,0 +1,405 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+// Low latency audio engine: mixes uncompressed samples in software (see PcmMixer)
+// and streams the result to an AudioTrack at the native output rate of the device.
+// The samples are used from the sample bank assets/samples.bank.wav (see SampleBank),
+// mapped into memory when the engine is created (or copied out of the package and
+// mapped by the first load, if it was compressed). Without it, they are read from
+// assets/note0.wav to assets/note35.wav, plus the optional noteN.pp.wav and
+// noteN.ff.wav layers (see SampleResources), when first needed.
+public class PcmAudioEngine implements AudioEngine, SampleCache.Loader<PcmSample>, Runnable {
+	// maximum simultaneous voices (as many as SoundPool streams), plus the extra
+	// voices that can be fading out
+	private static final int MAX_VOICES = 24;
+	private static final int MAX_FADING_VOICES = 8;
+	// most semitones a sample is played away from its pitch (rates of 1/8 to 8)
+	private static final int MAX_PITCH_SHIFT = 36;
+	// duration of the fade out of stopped voices
+	private static final int FADE_MILLIS = 50;
+	// minimum frames mixed per block
+	private static final int MIN_BLOCK_FRAMES = 64;
+	// sample bank made at build time (see build.xml), named like a WAVE file only so
+	// that aapt stores it uncompressed and it can be mapped from the package
+	private static final String BANK_ASSET = "samples.bank.wav";
+	// start of the names of the copies of the bank (see openCopiedBank)
+	private static final String BANK_COPY_PREFIX = "samples.bank.";
+	// context used to open the samples
+	private Context context;
+	// decoded samples
+	private SampleCache<PcmSample> samples;
+	// samples found in the assets
+	private boolean[] availableSamples;
+	// mapped sample bank, or null
+	private SampleBank bank;
+	// samples of a bank that has to be copied out of the package before mapping it,
+	// which the first load does (see getBank), or null
+	private boolean[] uncopiedBankSamples;
+	// mixer of the playing samples
+	private PcmMixer mixer;
+	// output stream
+	private AudioTrack track;
+	// thread that mixes and writes the blocks
+	private Thread audioThread;
+	private volatile boolean running;
+
+	// Constructor
+	public PcmAudioEngine(Context context, int numberOfSamples, long memoryBudget) {
+		this.context = context;
+		samples = new SampleCache<PcmSample>(this, numberOfSamples, memoryBudget);
+		long start = SystemClock.uptimeMillis();
+		bank = openBank(context);
+		if (bank != null) {
+			Log.i("PcmAudioEngine", "Sample bank of " + bank.size() + " samples mapped in "
+					+ (SystemClock.uptimeMillis() - start) + " ms");
+		} else {
+			uncopiedBankSamples = readBankSamples(context, numberOfSamples);
+		}
+		availableSamples = findAssets(context, numberOfSamples);
+		// Use the native rate and the minimum buffer size of the device, which avoid
+		// resampling and buffering in the system mixer
+		int sampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+		int bufferBytes = AudioTrack.getMinBufferSize(sampleRate,
+				AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+		int bytesPerFrame = 2 * PcmMixer.CHANNELS;
+		if (bufferBytes <= 0) {
+			bufferBytes = 4 * MIN_BLOCK_FRAMES * bytesPerFrame; // size query failed
+		}
+		// Mix half a buffer at a time, so that one half is written while the other plays
+		int blockFrames = Math.max(bufferBytes / bytesPerFrame / 2, MIN_BLOCK_FRAMES);
+		bufferBytes = Math.max(bufferBytes, 2 * blockFrames * bytesPerFrame);
+		mixer = new PcmMixer(sampleRate, blockFrames, MAX_VOICES + MAX_FADING_VOICES);
+		mixer.setInterpolation(PcmMixer.INTERPOLATION_CUBIC); // for pitch-shifted samples
+		track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+				AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT,
+				bufferBytes, AudioTrack.MODE_STREAM);
+		Log.i("PcmAudioEngine", "Output at " + sampleRate + " Hz, blocks of "
+				+ blockFrames + " frames, buffer of " + bufferBytes + " bytes");
+		running = true;
+		audioThread = new Thread(this, "PcmAudioEngine");
+		audioThread.start();
+	}
+
+	// Audio thread: mix blocks and write them to the output until released
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+		short[] block = new short[mixer.getBlockFrames() * PcmMixer.CHANNELS];
+		track.play();
+		while (running) {
+			mixer.mix(block);
+			track.write(block, 0, block.length); // blocks while the buffer is full
+		}
+		track.stop();
+	}
+
+	// Map the sample bank of the assets into memory, or its copy for this version
+	// of the application, or return null if there is neither
+	private static SampleBank openBank(Context context) {
+		try {
+			AssetFileDescriptor descriptor;
+			try {
+				descriptor = context.getAssets().openFd(BANK_ASSET);
+			} catch (FileNotFoundException e) {
+				// missing, or compressed in the package
+				File copy = getBankCopy(context);
+				return copy.exists() ? mapBankCopy(copy) : null;
+			}
+			try {
+				FileInputStream in = descriptor.createInputStream();
+				try {
+					return SampleBank.map(in.getChannel(), descriptor.getStartOffset(),
+							descriptor.getLength());
+				} finally {
+					in.close(); // the mapping stays valid
+				}
+			} finally {
+				descriptor.close();
+			}
+		} catch (IOException e) {
+			Log.e("PcmAudioEngine.openBank", "Sample bank not mappable!", e);
+			return null;
+		}
+	}
+
+	// See which samples the bank asset has from its index, when it can't be mapped
+	// yet, or return null if there is no bank
+	private static boolean[] readBankSamples(Context context, int numberOfSamples) {
+		try {
+			InputStream asset;
+			try {
+				asset = context.getAssets().open(BANK_ASSET);
+			} catch (FileNotFoundException e) {
+				return null; // no bank
+			}
+			try {
+				return SampleBank.readSamples(asset, numberOfSamples);
+			} finally {
+				asset.close();
+			}
+		} catch (IOException e) {
+			Log.e("PcmAudioEngine.readBankSamples", "Sample bank not readable!", e);
+			return null;
+		}
+	}
+
+	// Get the mapped bank, first copying it out of the package if it can't be mapped
+	// from there. Called from the loading thread, as copying takes long.
+	private synchronized SampleBank getBank() {
+		if (uncopiedBankSamples != null) {
+			uncopiedBankSamples = null; // copy only once
+			long start = SystemClock.uptimeMillis();
+			try {
+				bank = openCopiedBank(context);
+				Log.i("PcmAudioEngine", "Sample bank of " + bank.size() + " samples copied in "
+						+ (SystemClock.uptimeMillis() - start) + " ms");
+			} catch (IOException e) {
+				Log.e("PcmAudioEngine.getBank", "Sample bank not copyable!", e);
+			}
+		}
+		return bank;
+	}
+
+	// File of the copy of the bank for the installed version of the application, so
+	// that an update always makes a new copy
+	private static File getBankCopy(Context context) {
+		long installed = 0;
+		try {
+			installed = context.getPackageManager()
+					.getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+		} catch (PackageManager.NameNotFoundException e) {
+			// not possible for the own package
+		}
+		return new File(context.getFilesDir(), BANK_COPY_PREFIX + installed);
+	}
+
+	// Copy the bank asset out of the package (where it was compressed), delete the
+	// copies of other versions, and map the new copy
+	private static SampleBank openCopiedBank(Context context) throws IOException {
+		File copy = getBankCopy(context);
+		File partial = new File(context.getFilesDir(), BANK_ASSET + ".part");
+		InputStream asset = context.getAssets().open(BANK_ASSET);
+		try {
+			OutputStream out = new FileOutputStream(partial);
+			try {
+				byte[] buffer = new byte[64 * 1024];
+				int read;
+				while ((read = asset.read(buffer)) >= 0) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			asset.close();
+		}
+		if (!partial.renameTo(copy)) {
+			throw new IOException("Sample bank copy not renamable");
+		}
+		File[] files = context.getFilesDir().listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(BANK_COPY_PREFIX) && !file.equals(copy)) {
+					file.delete();
+				}
+			}
+		}
+		return mapBankCopy(copy);
+	}
+
+	private static SampleBank mapBankCopy(File copy) throws IOException {
+		FileInputStream in = new FileInputStream(copy);
+		try {
+			return SampleBank.map(in.getChannel(), 0, copy.length());
+		} finally {
+			in.close();
+		}
+	}
+
+	// See which samples are in the assets, listing them once
+	private boolean[] findAssets(Context context, int numberOfSamples) {
+		boolean[] found = new boolean[numberOfSamples];
+		try {
+			HashSet<String> names = new HashSet<String>(Arrays.asList(context.getAssets().list("")));
+			for (int sample = 0; sample < numberOfSamples; sample++) {
+				String name = SampleResources.getAssetName(sample);
+				found[sample] = (name != null && names.contains(name))
+						|| (bank != null && bank.has(sample))
+						|| (uncopiedBankSamples != null && uncopiedBankSamples[sample]);
+			}
+		} catch (IOException e) {
+			Log.e("PcmAudioEngine.findAssets", "Assets not listable!", e);
+		}
+		return found;
+	}
+
+	@Override
+	public boolean hasSample(int sample) {
+		return availableSamples[sample];
+	}
+
+	@Override
+	public void load(int sample) {
+		samples.get(sample);
+	}
+
+	@Override
+	public boolean isReady(int sample) {
+		return samples.isLoaded(sample);
+	}
+
+	@Override
+	public void unload(int sample) {
+		samples.remove(sample);
+	}
+
+	@Override
+	public int play(int sample, float volume, float rate) {
+		PcmSample pcm = samples.getIfLoaded(sample);
+		if (pcm == null) {
+			return 0;
+		}
+		return mixer.start(pcm, volume, rate);
+	}
+
+	// Start the sound at the mixer frame of its time, so it is sample accurate
+	@Override
+	public int playAt(int sample, float volume, float rate, long startNanos) {
+		PcmSample pcm = samples.getIfLoaded(sample);
+		if (pcm == null) {
+			return 0;
+		}
+		return mixer.start(pcm, volume, rate,
+				(long) ((double) startNanos * mixer.getSampleRate() / 1e9));
+	}
+
+	// Frames mixed so far, as time
+	@Override
+	public long getClockNanos() {
+		return (long) ((double) mixer.getFramePosition() * 1e9 / mixer.getSampleRate());
+	}
+
+	@Override
+	public boolean canSchedule() {
+		return true;
+	}
+
+	@Override
+	public void stop(int playId) {
+		mixer.stop(playId);
+	}
+
+	@Override
+	public void fadeOut(int playId) {
+		mixer.release(playId, mixer.getSampleRate() * FADE_MILLIS / 1000);
+	}
+
+	@Override
+	public void fadeOutAt(int playId, long stopNanos) {
+		mixer.release(playId, mixer.getSampleRate() * FADE_MILLIS / 1000,
+				(long) ((double) stopNanos * mixer.getSampleRate() / 1e9));
+	}
+
+	@Override
+	public boolean isPlaying(int playId) {
+		return mixer.isPlaying(playId);
+	}
+
+	@Override
+	public int getMaxPitchShift() {
+		return MAX_PITCH_SHIFT;
+	}
+
+	@Override
+	public int getMaxVoices() {
+		return MAX_VOICES;
+	}
+
+	@Override
+	public SampleCache<?> getSampleCache() {
+		return samples;
+	}
+
+	@Override
+	public void release() {
+		running = false;
+		try {
+			audioThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		track.release();
+	}
+
+	// Get a sample from the bank (a view of the mapped file), or read it from the assets
+	@Override
+	public PcmSample loadSample(int sample) {
+		SampleBank bank = getBank();
+		if (bank != null && bank.has(sample)) {
+			return bank.get(sample);
+		}
+		if (!availableSamples[sample]) {
+			return null;
+		}
+		try {
+			InputStream in = new BufferedInputStream(
+					context.getAssets().open(SampleResources.getAssetName(sample)));
+			try {
+				return WavReader.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e("PcmAudioEngine.load", "Sample " + sample + " not loadable!", e);
+			return null;
+		}
+	}
+
+	@Override
+	public int sampleSize(PcmSample loaded) {
+		return loaded.getSizeInBytes();
+	}
+
+	@Override
+	public void unloadSample(int sample, PcmSample loaded) {
+		// nothing to do: the mixer keeps it while playing, then it is garbage collected
+	}
+}
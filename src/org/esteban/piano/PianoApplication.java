@@ -0,0 +1,122 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import android.app.Application;
+
+// State of the application that outlives its activities: the audio engine with
+// its loaded sounds and their background loader, and the keyboard layouts of the
+// last sizes of the keyboard. When the activity is created again (after a
+// rotation or a preference change), its keyboard attaches to the same engine, so
+// the sounds already loaded play right away instead of being loaded again.
+public class PianoApplication extends Application implements SampleLoader.Listener {
+	// memory for loaded sounds, enough to keep every note
+	private static final long SAMPLE_MEMORY_BUDGET = 16 * 1024 * 1024;
+	// layouts kept, one per orientation
+	private static final int CACHED_LAYOUTS = 2;
+	// audio engine (null until a keyboard attaches), of the type chosen when created
+	private AudioEngine audioEngine;
+	private PianoConfig.Engine engineType;
+	// background loading of the sounds, and the keyboard it reports to (null while
+	// none is attached)
+	private SampleLoader sampleLoader;
+	private volatile SampleLoader.Listener sampleListener;
+	private KeyboardLayoutCache layoutCache;
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		layoutCache = new KeyboardLayoutCache(CACHED_LAYOUTS);
+	}
+
+	// Attach a keyboard to the audio engine of a type, which reports the loading of
+	// the sounds to a listener. The engine is created, or replaced if it is of
+	// another type, only when needed.
+	public void attachAudio(PianoConfig.Engine type, SampleLoader.Listener listener) {
+		if (audioEngine != null && type != engineType) {
+			releaseAudio();
+		}
+		if (audioEngine == null) {
+			engineType = type;
+			audioEngine = (type == PianoConfig.Engine.MIXER)
+					? new PcmAudioEngine(this, NoteMapping.NUMBER_OF_SAMPLES, SAMPLE_MEMORY_BUDGET)
+					: new SoundPoolEngine(this, NoteMapping.NUMBER_OF_SAMPLES, SAMPLE_MEMORY_BUDGET);
+			// a thread per processor
+			int threads = Math.min(4, Math.max(2, Runtime.getRuntime().availableProcessors()));
+			sampleLoader = new SampleLoader(audioEngine, NoteMapping.NUMBER_OF_SAMPLES, threads, this);
+		}
+		sampleListener = listener;
+	}
+
+	// Detach a keyboard from the audio engine. The engine and its sounds are kept for
+	// the keyboard of the next activity if asked (when the activity is only being
+	// created again), or released.
+	public void detachAudio(SampleLoader.Listener listener, boolean keep) {
+		if (sampleListener != listener) {
+			return; // another keyboard is attached already
+		}
+		sampleListener = null;
+		if (!keep) {
+			releaseAudio();
+		}
+	}
+
+	public AudioEngine getAudioEngine() {
+		return audioEngine;
+	}
+
+	public SampleLoader getSampleLoader() {
+		return sampleLoader;
+	}
+
+	public KeyboardLayoutCache getLayoutCache() {
+		return layoutCache;
+	}
+
+	// Pass the loading progress on to the attached keyboard, if any
+	@Override
+	public void onSampleReady(int sample) {
+		SampleLoader.Listener listener = sampleListener;
+		if (listener != null) {
+			listener.onSampleReady(sample);
+		}
+	}
+
+	@Override
+	public void onAllSamplesReady(long millis) {
+		SampleLoader.Listener listener = sampleListener;
+		if (listener != null) {
+			listener.onAllSamplesReady(millis);
+		}
+	}
+
+	// Free the layouts, which are placed again when needed
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		layoutCache.clear();
+	}
+
+	private void releaseAudio() {
+		sampleLoader.shutdown(); // stop loading sounds
+		audioEngine.release(); // release the audio engine resources
+		sampleLoader = null;
+		audioEngine = null;
+	}
+}
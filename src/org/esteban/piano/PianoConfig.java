@@ -0,0 +1,150 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+// Preferences of the keyboard, read once into typed values.
+// Never changed once created: a new one replaces it whenever a preference changes,
+// so any thread (touches, drawing, audio) can read the current one without locks or
+// string comparisons.
+public class PianoConfig {
+	// pref_rows: which row has the lower octaves
+	public enum RowOrder { LOWER_OCTAVE_UP, HIGHER_OCTAVE_UP }
+	// pref_damper: what happens to released keys while the pedal isn't pressed
+	public enum Damper { DAMPEN, SUSTAIN }
+	// pref_orient
+	public enum Orientation { LANDSCAPE, PORTRAIT }
+	// pref_engine
+	public enum Engine { SOUNDPOOL, MIXER }
+	// pref_render: drawing from the view, or from a thread on a surface
+	public enum RenderMode { VIEW, SURFACE }
+	// pref_velocity: what sets the loudness of a note
+	public enum Velocity { FIXED, PRESSURE, SIZE }
+
+	private final RowOrder rowOrder;
+	private final Damper damper;
+	private final String octaves; // first octave of each row, see NoteMapping
+	private final Orientation orientation;
+	private final Engine engine;
+	private final RenderMode renderMode;
+	private final Velocity velocity;
+	private final int sampleSpacing;
+	private final int rowCount;
+	private final int octavesPerRow;
+	// pref_stats: whether the performance statistics are shown over the keyboard
+	private final boolean statsShown;
+	// octaves of the keys, from the octaves and rows preferences
+	private final NoteMapping noteMapping;
+
+	// Constructor, reading the preferences (or their default values)
+	public PianoConfig(SharedPreferences preferences, Context context) {
+		rowOrder = getString(preferences, context, "pref_rows", R.string.pref_rows_default_value)
+				.equals(context.getString(R.string.pref_rows_higher_octave_in_upper_row_value))
+				? RowOrder.HIGHER_OCTAVE_UP : RowOrder.LOWER_OCTAVE_UP;
+		damper = getString(preferences, context, "pref_damper", R.string.pref_damper_default_value)
+				.equals(context.getString(R.string.pref_damper_dampen_value))
+				? Damper.DAMPEN : Damper.SUSTAIN;
+		octaves = getString(preferences, context, "pref_octaves", R.string.pref_octaves_default_value);
+		orientation = getString(preferences, context, "pref_orient", R.string.pref_orient_default_value)
+				.equals(context.getString(R.string.pref_orient_portrait_value))
+				? Orientation.PORTRAIT : Orientation.LANDSCAPE;
+		engine = getString(preferences, context, "pref_engine", R.string.pref_engine_default_value)
+				.equals(context.getString(R.string.pref_engine_mixer_value))
+				? Engine.MIXER : Engine.SOUNDPOOL;
+		renderMode = getString(preferences, context, "pref_render", R.string.pref_render_default_value)
+				.equals(context.getString(R.string.pref_render_surface_value))
+				? RenderMode.SURFACE : RenderMode.VIEW;
+		String velocityValue = getString(preferences, context, "pref_velocity",
+				R.string.pref_velocity_default_value);
+		if (velocityValue.equals(context.getString(R.string.pref_velocity_pressure_value))) {
+			velocity = Velocity.PRESSURE;
+		} else if (velocityValue.equals(context.getString(R.string.pref_velocity_size_value))) {
+			velocity = Velocity.SIZE;
+		} else {
+			velocity = Velocity.FIXED;
+		}
+		sampleSpacing = Integer.parseInt(getString(preferences, context, "pref_spacing",
+				R.string.pref_spacing_default_value));
+		rowCount = Integer.parseInt(getString(preferences, context, "pref_row_count",
+				R.string.pref_row_count_default_value));
+		octavesPerRow = Integer.parseInt(getString(preferences, context, "pref_row_octaves",
+				R.string.pref_row_octaves_default_value));
+		statsShown = getString(preferences, context, "pref_stats", R.string.pref_stats_default_value)
+				.equals(context.getString(R.string.pref_stats_shown_value));
+		noteMapping = NoteMapping.forPreference(octaves, rowCount, octavesPerRow);
+	}
+
+	private static String getString(SharedPreferences preferences, Context context, String key,
+			int defaultValueId) {
+		return preferences.getString(key, context.getString(defaultValueId));
+	}
+
+	public RowOrder getRowOrder() {
+		return rowOrder;
+	}
+
+	public Damper getDamper() {
+		return damper;
+	}
+
+	public Orientation getOrientation() {
+		return orientation;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	public RenderMode getRenderMode() {
+		return renderMode;
+	}
+
+	public Velocity getVelocity() {
+		return velocity;
+	}
+
+	public int getSampleSpacing() {
+		return sampleSpacing;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getOctavesPerRow() {
+		return octavesPerRow;
+	}
+
+	public boolean isStatsShown() {
+		return statsShown;
+	}
+
+	// Octaves of the keys chosen in the preferences
+	public NoteMapping getNoteMapping() {
+		return noteMapping;
+	}
+
+	// See if another configuration has the same octaves for the keys
+	public boolean hasSameOctaves(PianoConfig other) {
+		return octaves.equals(other.octaves) && rowCount == other.rowCount
+				&& octavesPerRow == other.octavesPerRow;
+	}
+}
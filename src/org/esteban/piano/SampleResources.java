@@ -0,0 +1,104 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+// Where the audio of each sample is stored (see NoteMapping for the numbers).
+// Looked up in static tables instead of building and resolving names each time.
+public class SampleResources {
+	// compressed samples of the mf layer, decoded by SoundPool (see
+	// copy-and-rename-audio-files.sh)
+	private static final int[] RAW_RESOURCES = {
+		R.raw.note0,
+		R.raw.note1,
+		R.raw.note2,
+		R.raw.note3,
+		R.raw.note4,
+		R.raw.note5,
+		R.raw.note6,
+		R.raw.note7,
+		R.raw.note8,
+		R.raw.note9,
+		R.raw.note10,
+		R.raw.note11,
+		R.raw.note12,
+		R.raw.note13,
+		R.raw.note14,
+		R.raw.note15,
+		R.raw.note16,
+		R.raw.note17,
+		R.raw.note18,
+		R.raw.note19,
+		R.raw.note20,
+		R.raw.note21,
+		R.raw.note22,
+		R.raw.note23,
+		R.raw.note24,
+		R.raw.note25,
+		R.raw.note26,
+		R.raw.note27,
+		R.raw.note28,
+		R.raw.note29,
+		R.raw.note30,
+		R.raw.note31,
+		R.raw.note32,
+		R.raw.note33,
+		R.raw.note34,
+		R.raw.note35
+	};
+	// uncompressed samples, read by the low latency mixer: noteN.wav for the mf
+	// layer, and noteN.pp.wav and noteN.ff.wav for the optional layers, numbered
+	// from C3 like the compressed ones; null for notes without bundled samples
+	private static final String[] LAYER_SUFFIXES = new String[NoteMapping.NUMBER_OF_LAYERS];
+	static {
+		LAYER_SUFFIXES[NoteMapping.LAYER_MF] = ".wav";
+		LAYER_SUFFIXES[NoteMapping.LAYER_PP] = ".pp.wav";
+		LAYER_SUFFIXES[NoteMapping.LAYER_FF] = ".ff.wav";
+	}
+	private static final String[] ASSETS = new String[NoteMapping.NUMBER_OF_SAMPLES];
+	static {
+		for (int sample = 0; sample < ASSETS.length; sample++) {
+			int file = getFileNumber(sample);
+			if (file >= 0) {
+				ASSETS[sample] = "note" + file + LAYER_SUFFIXES[NoteMapping.getLayer(sample)];
+			}
+		}
+	}
+
+	private SampleResources() {
+	}
+
+	// Number N in the file names (noteN) of the sample of a bundled note, or -1
+	public static int getFileNumber(int sample) {
+		int file = NoteMapping.getNote(sample) - NoteMapping.FIRST_BUNDLED_NOTE;
+		return (file >= 0 && file < NoteMapping.NUMBER_OF_BUNDLED_NOTES) ? file : -1;
+	}
+
+	// Resource identification of the Ogg Vorbis file of a sample, or 0 if it isn't
+	// bundled (only the mf layer of some notes is)
+	public static int getResourceId(int sample) {
+		int file = getFileNumber(sample);
+		return (file >= 0 && NoteMapping.getLayer(sample) == NoteMapping.LAYER_MF)
+				? RAW_RESOURCES[file] : 0;
+	}
+
+	// Asset name of the WAVE file of a sample, or null if there can't be one
+	public static String getAssetName(int sample) {
+		return ASSETS[sample];
+	}
+}
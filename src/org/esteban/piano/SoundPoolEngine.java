@@ -0,0 +1,302 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.SoundPool;
+import android.os.Handler;
+import android.os.SystemClock;
+
+// Audio engine based on the Android SoundPool, which decodes the Ogg Vorbis samples
+// from res/raw
+public class SoundPoolEngine implements AudioEngine, SampleCache.Loader<Integer>,
+		SoundPool.OnLoadCompleteListener {
+	// maximum simultaneous streams, plus the extra streams that can be fading out
+	private static final int MAX_VOICES = 24;
+	private static final int MAX_FADING_VOICES = 8;
+	private static final int MAX_STREAMS = MAX_VOICES + MAX_FADING_VOICES;
+	// fade out of stopped streams: volume steps and time between steps
+	private static final int FADE_STEPS = 5;
+	private static final int FADE_STEP_MILLIS = 10;
+	// duration of the longest sample (SoundPool doesn't tell when a stream ends)
+	private static final long SAMPLE_MILLIS = 2100;
+	// memory held by a sample decoded by SoundPool (16 bit stereo at 44100 Hz)
+	private static final int SAMPLE_BYTES = (int) (SAMPLE_MILLIS * 44100 / 1000 * 4);
+	// most semitones a sample is played away from its pitch (SoundPool rates go
+	// from 0.5 to 2)
+	private static final int MAX_PITCH_SHIFT = 12;
+	// maximum wait for the sound pool to decode a sample
+	private static final long LOAD_TIMEOUT_MILLIS = 10000;
+	// context used to find and load the samples
+	private Context context;
+	// sounds
+	private SoundPool pianoSounds;
+	// sound identifications returned by sound pool load
+	private SampleCache<Integer> soundIds;
+	// samples decoded by the sound pool, and load results of the sounds not marked
+	// as ready yet (both guarded by this engine)
+	private boolean[] readySamples;
+	private Map<Integer, Integer> loadStatuses;
+	// streams started last (as many as the sound pool can play), with their volume,
+	// estimated end time and remaining fade out steps; the stream is 0 once stopped
+	// (guarded by this engine, as notes are played from the UI and MIDI threads and
+	// faded out by the handler of the UI thread)
+	private int[] streamIds;
+	private float[] streamVolumes;
+	private long[] streamEnds;
+	private int[] streamFadeSteps;
+	private int nextStream;
+	// task that lowers the volume of the fading streams, and whether it is posted
+	// (guarded by this engine)
+	private Handler fadeHandler;
+	private Runnable fader;
+	private boolean fading;
+
+	// Constructor
+	public SoundPoolEngine(Context context, int numberOfSamples, long memoryBudget) {
+		this.context = context;
+		pianoSounds = new SoundPool(MAX_STREAMS, AudioManager.STREAM_MUSIC, 0);
+		pianoSounds.setOnLoadCompleteListener(this);
+		soundIds = new SampleCache<Integer>(this, numberOfSamples, memoryBudget);
+		readySamples = new boolean[numberOfSamples];
+		loadStatuses = new HashMap<Integer, Integer>();
+		streamIds = new int[MAX_STREAMS];
+		streamVolumes = new float[MAX_STREAMS];
+		streamEnds = new long[MAX_STREAMS];
+		streamFadeSteps = new int[MAX_STREAMS];
+		nextStream = 0;
+		fadeHandler = new Handler();
+		fader = new Runnable() {
+			@Override
+			public void run() {
+				fadeStep();
+			}
+		};
+		fading = false;
+	}
+
+	@Override
+	public void load(int sample) {
+		Integer soundId = soundIds.get(sample);
+		if (soundId == null) {
+			return;
+		}
+		// Wait for the sound pool to decode it, unless another thread saw it decoded
+		// already (taking its load result)
+		long deadline = SystemClock.uptimeMillis() + LOAD_TIMEOUT_MILLIS;
+		synchronized (this) {
+			while (!loadStatuses.containsKey(soundId)) {
+				if (readySamples[sample]) {
+					return;
+				}
+				long remaining = deadline - SystemClock.uptimeMillis();
+				if (remaining <= 0) {
+					return;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			readySamples[sample] = (loadStatuses.remove(soundId) == 0)
+					&& soundId.equals(soundIds.peek(sample));
+			notifyAll(); // other threads waiting for the same sample
+		}
+	}
+
+	@Override
+	public synchronized boolean isReady(int sample) {
+		return readySamples[sample];
+	}
+
+	// Wake up the threads waiting for the sound pool to decode a sample
+	@Override
+	public synchronized void onLoadComplete(SoundPool soundPool, int soundId, int status) {
+		loadStatuses.put(soundId, status);
+		notifyAll();
+	}
+
+	@Override
+	public void unload(int sample) {
+		soundIds.remove(sample);
+	}
+
+	@Override
+	public synchronized int play(int sample, float volume, float rate) {
+		Integer soundId = soundIds.getIfLoaded(sample);
+		if (soundId == null || !isReady(sample)) {
+			return 0;
+		}
+		int streamId = pianoSounds.play(soundId, volume, volume, 1, 0, rate);
+		if (streamId != 0) {
+			// Remember the stream, replacing the oldest one
+			streamIds[nextStream] = streamId;
+			streamVolumes[nextStream] = volume;
+			streamEnds[nextStream] = SystemClock.uptimeMillis() + (long) (SAMPLE_MILLIS / rate);
+			streamFadeSteps[nextStream] = 0;
+			nextStream = (nextStream + 1) % MAX_STREAMS;
+		}
+		return streamId;
+	}
+
+	// SoundPool can't delay a sound: it is played right away, so the caller must
+	// call at the time
+	@Override
+	public int playAt(int sample, float volume, float rate, long startNanos) {
+		return play(sample, volume, rate);
+	}
+
+	@Override
+	public long getClockNanos() {
+		return System.nanoTime();
+	}
+
+	@Override
+	public boolean canSchedule() {
+		return false;
+	}
+
+	@Override
+	public synchronized void stop(int playId) {
+		pianoSounds.stop(playId);
+		int stream = findStream(playId);
+		if (stream >= 0) {
+			streamIds[stream] = 0;
+		}
+	}
+
+	@Override
+	public synchronized void fadeOut(int playId) {
+		int stream = findStream(playId);
+		if (stream < 0) {
+			pianoSounds.stop(playId);
+			return;
+		}
+		if (streamFadeSteps[stream] == 0) {
+			streamFadeSteps[stream] = FADE_STEPS;
+		}
+		if (!fading) {
+			fading = true;
+			fadeHandler.postDelayed(fader, FADE_STEP_MILLIS);
+		}
+	}
+
+	// Faded out right away, as sounds can't be delayed (see playAt)
+	@Override
+	public void fadeOutAt(int playId, long stopNanos) {
+		fadeOut(playId);
+	}
+
+	@Override
+	public synchronized boolean isPlaying(int playId) {
+		int stream = findStream(playId);
+		return (stream >= 0)
+				&& (SystemClock.uptimeMillis() < streamEnds[stream]);
+	}
+
+	@Override
+	public int getMaxVoices() {
+		return MAX_VOICES;
+	}
+
+	@Override
+	public SampleCache<?> getSampleCache() {
+		return soundIds;
+	}
+
+	@Override
+	public int getMaxPitchShift() {
+		return MAX_PITCH_SHIFT;
+	}
+
+	@Override
+	public boolean hasSample(int sample) {
+		return SampleResources.getResourceId(sample) != 0;
+	}
+
+	@Override
+	public void release() {
+		fadeHandler.removeCallbacks(fader);
+		pianoSounds.release(); // release the sound pool resources
+	}
+
+	// Load a sample into the sound pool (decoded in the background by the pool)
+	@Override
+	public Integer loadSample(int sample) {
+		if (!hasSample(sample)) {
+			return null;
+		}
+		int soundId = pianoSounds.load(context, SampleResources.getResourceId(sample), 1);
+		return (soundId != 0) ? Integer.valueOf(soundId) : null;
+	}
+
+	@Override
+	public int sampleSize(Integer loaded) {
+		return SAMPLE_BYTES;
+	}
+
+	@Override
+	public void unloadSample(int sample, Integer loaded) {
+		synchronized (this) {
+			readySamples[sample] = false;
+		}
+		pianoSounds.unload(loaded);
+	}
+
+	// Lower the volume of the fading streams, stopping the ones that reach silence
+	private synchronized void fadeStep() {
+		fading = false;
+		for (int stream = 0; stream < MAX_STREAMS; stream++) {
+			if (streamIds[stream] == 0 || streamFadeSteps[stream] == 0) {
+				continue;
+			}
+			streamFadeSteps[stream]--;
+			if (streamFadeSteps[stream] == 0) {
+				pianoSounds.stop(streamIds[stream]);
+				streamIds[stream] = 0;
+			} else {
+				float volume = streamVolumes[stream] * streamFadeSteps[stream] / FADE_STEPS;
+				pianoSounds.setVolume(streamIds[stream], volume, volume);
+				fading = true;
+			}
+		}
+		if (fading) {
+			fadeHandler.postDelayed(fader, FADE_STEP_MILLIS);
+		}
+	}
+
+	// Find a remembered stream, or -1 if it is not playing anymore
+	private int findStream(int playId) {
+		if (playId == 0) {
+			return -1;
+		}
+		for (int stream = 0; stream < MAX_STREAMS; stream++) {
+			if (streamIds[stream] == playId) {
+				return stream;
+			}
+		}
+		return -1;
+	}
+}
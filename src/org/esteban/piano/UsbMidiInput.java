@@ -0,0 +1,199 @@
+/*
+ * This file is part of Piano.
+ *
+ * Piano is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Piano is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Piano.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esteban.piano;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import android.os.Process;
+import android.util.Log;
+
+// Input of a class compliant USB MIDI controller, through the USB host API.
+// Opens the first MIDI device attached (now or later), asking for permission if
+// needed, and reads its event packets from a thread of its own into a MidiRouter.
+// USB MIDI event packets have 4 bytes: cable and code index, then a MIDI message.
+public class UsbMidiInput extends BroadcastReceiver {
+	private static final String ACTION_USB_PERMISSION = "org.esteban.piano.USB_PERMISSION";
+	// USB audio class, and its MIDI streaming subclass
+	private static final int SUBCLASS_MIDI_STREAMING = 3;
+	// longest wait for a packet, so that the reader notices when it is stopped
+	private static final int READ_TIMEOUT_MILLIS = 100;
+	private final Context context;
+	private final UsbManager usbManager;
+	private final MidiRouter router;
+	// device being read, and its reader, or null
+	private UsbDevice device;
+	private Reader reader;
+
+	// Reads the packets of a device
+	private class Reader extends Thread {
+		private final UsbDeviceConnection connection;
+		private final UsbInterface usbInterface;
+		private final UsbEndpoint endpoint;
+		private volatile boolean running;
+
+		// Constructor
+		Reader(UsbDeviceConnection connection, UsbInterface usbInterface, UsbEndpoint endpoint) {
+			super("UsbMidiInput");
+			this.connection = connection;
+			this.usbInterface = usbInterface;
+			this.endpoint = endpoint;
+			running = true;
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+			byte[] packets = new byte[Math.max(endpoint.getMaxPacketSize(), 4)];
+			while (running) {
+				int read = connection.bulkTransfer(endpoint, packets, packets.length, READ_TIMEOUT_MILLIS);
+				long now = System.nanoTime();
+				for (int i = 0; i + 4 <= read; i += 4) {
+					int codeIndex = packets[i] & 0x0f;
+					if (codeIndex >= 0x8 && codeIndex <= 0xe) { // channel messages
+						router.send(packets[i + 1] & 0xff, packets[i + 2] & 0xff, packets[i + 3] & 0xff, now);
+					}
+				}
+			}
+		}
+
+		// Stop reading and close the device
+		void quit() {
+			running = false;
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			connection.releaseInterface(usbInterface);
+			connection.close();
+		}
+	}
+
+	// Constructor, starting to look for devices
+	public UsbMidiInput(Context context, MidiRouter router) {
+		this.context = context;
+		this.router = router;
+		usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+		IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
+		filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+		filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+		context.registerReceiver(this, filter);
+		if (usbManager != null) {
+			for (UsbDevice attached : usbManager.getDeviceList().values()) {
+				if (findMidiInterface(attached) != null) {
+					connect(attached);
+					break;
+				}
+			}
+		}
+	}
+
+	// Follow the devices attached and detached, and the permissions given
+	@Override
+	public void onReceive(Context receiverContext, Intent intent) {
+		UsbDevice changed = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+		if (changed == null) {
+			return;
+		}
+		String action = intent.getAction();
+		if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+			if (changed.equals(device)) {
+				disconnect();
+			}
+		} else if (device == null && findMidiInterface(changed) != null) {
+			if (!ACTION_USB_PERMISSION.equals(action)
+					|| intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+				connect(changed);
+			}
+		}
+	}
+
+	// Stop reading and looking for devices
+	public void release() {
+		context.unregisterReceiver(this);
+		disconnect();
+	}
+
+	// Open a MIDI device and start reading it, or ask for permission to
+	private void connect(UsbDevice candidate) {
+		if (!usbManager.hasPermission(candidate)) {
+			usbManager.requestPermission(candidate,
+					PendingIntent.getBroadcast(context, 0, new Intent(ACTION_USB_PERMISSION), 0));
+			return;
+		}
+		UsbInterface usbInterface = findMidiInterface(candidate);
+		UsbEndpoint endpoint = findInputEndpoint(usbInterface);
+		UsbDeviceConnection connection = usbManager.openDevice(candidate);
+		if (endpoint == null || connection == null) {
+			Log.e("UsbMidiInput.connect", "MIDI device " + candidate.getDeviceName() + " not readable!");
+			return;
+		}
+		if (!connection.claimInterface(usbInterface, true)) {
+			Log.e("UsbMidiInput.connect", "MIDI device " + candidate.getDeviceName() + " busy!");
+			connection.close();
+			return;
+		}
+		device = candidate;
+		reader = new Reader(connection, usbInterface, endpoint);
+		reader.start();
+		Log.i("UsbMidiInput", "Reading MIDI device " + candidate.getDeviceName());
+	}
+
+	private void disconnect() {
+		if (reader != null) {
+			reader.quit();
+			reader = null;
+		}
+		device = null;
+	}
+
+	// MIDI streaming interface of a device, or null if it isn't a MIDI device
+	private static UsbInterface findMidiInterface(UsbDevice candidate) {
+		for (int i = 0; i < candidate.getInterfaceCount(); i++) {
+			UsbInterface usbInterface = candidate.getInterface(i);
+			if (usbInterface.getInterfaceClass() == UsbConstants.USB_CLASS_AUDIO
+					&& usbInterface.getInterfaceSubclass() == SUBCLASS_MIDI_STREAMING
+					&& findInputEndpoint(usbInterface) != null) {
+				return usbInterface;
+			}
+		}
+		return null;
+	}
+
+	// Bulk endpoint of an interface that sends to the host, or null
+	private static UsbEndpoint findInputEndpoint(UsbInterface usbInterface) {
+		for (int i = 0; i < usbInterface.getEndpointCount(); i++) {
+			UsbEndpoint endpoint = usbInterface.getEndpoint(i);
+			if (endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
+					&& endpoint.getDirection() == UsbConstants.USB_DIR_IN) {
+				return endpoint;
+			}
+		}
+		return null;
+	}
+}